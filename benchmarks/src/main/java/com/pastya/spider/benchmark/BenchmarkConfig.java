@@ -0,0 +1,25 @@
+package com.pastya.spider.benchmark;
+
+import java.io.File;
+
+import com.pastya.spider.config.CrawlConfig;
+
+/**
+ * CrawlConfig with the defaults of every section filled in, as the yaml binding would produce it.
+ */
+final class BenchmarkConfig {
+
+   private BenchmarkConfig() {
+   }
+
+   static CrawlConfig newCrawlConfig() {
+      CrawlConfig config = new CrawlConfig();
+      config.setAgentInfo(new CrawlConfig.AgentInfo());
+      config.setUrlFilters(new CrawlConfig.UrlFilters());
+      config.setRunnableInfo(new CrawlConfig.RunnableInfo());
+      config.setCrawlerInfo(new CrawlConfig.CrawlerInfo());
+      config.getCrawlerInfo().setStorageFolder(new File(System.getProperty("java.io.tmpdir"), "pastya-bot-benchmarks").getAbsolutePath());
+      config.getCrawlerInfo().setPolitenessDelay(0);
+      return config;
+   }
+}
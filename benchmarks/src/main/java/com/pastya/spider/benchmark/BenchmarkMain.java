@@ -0,0 +1,26 @@
+package com.pastya.spider.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks like the JMH launcher, but writes the results as JSON to jmh-result.json unless a result format is given, so the results of two
+ * releases can be diffed.
+ */
+public final class BenchmarkMain {
+
+   private BenchmarkMain() {
+   }
+
+   public static void main(String[] args) throws Exception {
+      List<String> options = new ArrayList<String>(Arrays.asList(args));
+      if (!options.contains("-rf")) {
+         options.add(0, "-rf");
+         options.add(1, "json");
+      }
+      Main.main(options.toArray(new String[options.size()]));
+   }
+}
@@ -0,0 +1,89 @@
+package com.pastya.spider.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pastya.spider.fetch.FetchItem;
+import com.pastya.spider.fetch.FetchItemQueue;
+import com.pastya.spider.utils.LongSet;
+
+/**
+ * Cost of queueing an item and taking one out of the {@link FetchItemQueue}, from {@value #THREADS} threads at once as crawler threads do.
+ *
+ * <p>
+ * Each operation adds an item, takes the next available one and finishes it. With a single host every thread competes for the same host queue, with
+ * many hosts they spread over the shards. The seen set accepts every item, so the same items are queued over and over without growing the queue.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FetchItemQueueBenchmark {
+
+   static final int THREADS = 8;
+
+   private static final int ITEMS = 1 << 16;
+
+   @Param({ "1", "1000" })
+   public int hosts;
+
+   private FetchItem[] items;
+   private FetchItemQueue queue;
+   private final AtomicInteger nextItem = new AtomicInteger();
+
+   @Setup(Level.Trial)
+   public void setUpItems() {
+      items = new FetchItem[ITEMS];
+      for (int i = 0; i < ITEMS; i++) {
+         items[i] = FetchItem.create("http://host" + (i % hosts) + ".example.com/section" + (i % 17) + "/page" + i + ".html", 0);
+      }
+   }
+
+   @Setup(Level.Iteration)
+   public void setUpQueue() {
+      queue = new FetchItemQueue(THREADS, 0, new LongSet() {
+         public boolean add(long value) {
+            return true;
+         }
+
+         public boolean contains(long value) {
+            return false;
+         }
+
+         public long size() {
+            return 0;
+         }
+
+         public void clear() {
+         }
+      }, null, -1);
+   }
+
+   @Benchmark
+   @Threads(THREADS)
+   public FetchItem addAndGet() {
+      queue.addPageFetchItem(items[nextItem.getAndIncrement() & (ITEMS - 1)]);
+      FetchItem item = queue.getPageFetchItem();
+      if (item != null) {
+         queue.finishPageFetchItem(item, true);
+      }
+      return item;
+   }
+}
@@ -0,0 +1,138 @@
+package com.pastya.spider.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.crawl.Page;
+import com.pastya.spider.fetch.AsyncFetcher;
+import com.pastya.spider.fetch.FetchItem;
+import com.pastya.spider.fetch.FetchResult;
+import com.pastya.spider.fetch.Fetcher;
+
+/**
+ * Pages per second of the blocking {@link Fetcher} against the {@link AsyncFetcher}, with the same number of fetches in flight against a local server
+ * spread over {@value #CONCURRENT_FETCHES} loopback hosts.
+ *
+ * <p>
+ * The blocking fetcher needs one benchmark thread per fetch in flight, the async one is driven by a single thread plus its I/O reactor threads. The thread
+ * count of each client is logged at tear down.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class FetcherBenchmark {
+
+   protected static final Logger logger = LoggerFactory.getLogger(FetcherBenchmark.class);
+
+   static final int CONCURRENT_FETCHES = 64;
+
+   @Param({ "10" })
+   public int serverLatencyMillis;
+
+   @Param({ "16384" })
+   public int pageSize;
+
+   private LocalHttpServer server;
+   private CrawlConfig config;
+   private Fetcher fetcher;
+   private AsyncFetcher asyncFetcher;
+   private final AtomicInteger nextHost = new AtomicInteger();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      byte[] page = new byte[pageSize];
+      Arrays.fill(page, (byte) 'a');
+      server = new LocalHttpServer(page, "text/plain; charset=UTF-8", serverLatencyMillis, false);
+      config = BenchmarkConfig.newCrawlConfig();
+      config.getRunnableInfo().setMaxThreads(CONCURRENT_FETCHES);
+      config.getRunnableInfo().setMaxAsyncFetches(CONCURRENT_FETCHES);
+      fetcher = new Fetcher(config);
+      asyncFetcher = new AsyncFetcher(config, fetcher.getDnsCache());
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      logger.info("Blocking fetcher threads: {}, async fetcher threads: 1 + {}", CONCURRENT_FETCHES, countThreads("I/O dispatcher"));
+      asyncFetcher.shutDown();
+      fetcher.shutDown();
+      server.stop();
+   }
+
+   @Benchmark
+   @Threads(CONCURRENT_FETCHES)
+   public int blockingFetcher() throws Exception {
+      FetchItem item = FetchItem.create(server.url(nextHost.getAndIncrement() % CONCURRENT_FETCHES), 0);
+      FetchResult fetchResult = fetcher.fetchPage(item);
+      try {
+         return load(item, fetchResult);
+      } finally {
+         fetchResult.discardContentIfNotConsumed();
+      }
+   }
+
+   @Benchmark
+   @Threads(1)
+   @OperationsPerInvocation(CONCURRENT_FETCHES)
+   public int asyncFetcher() throws Exception {
+      List<FetchItem> items = new ArrayList<FetchItem>(CONCURRENT_FETCHES);
+      List<CompletableFuture<FetchResult>> futures = new ArrayList<CompletableFuture<FetchResult>>(CONCURRENT_FETCHES);
+      for (int i = 0; i < CONCURRENT_FETCHES; i++) {
+         FetchItem item = FetchItem.create(server.url(i), 0);
+         items.add(item);
+         futures.add(asyncFetcher.fetchPage(item));
+      }
+      int bytes = 0;
+      for (int i = 0; i < CONCURRENT_FETCHES; i++) {
+         bytes += load(items.get(i), futures.get(i).get());
+      }
+      return bytes;
+   }
+
+   private int load(FetchItem item, FetchResult fetchResult) throws IOException {
+      Page page = new Page(item);
+      if (!fetchResult.fetchContent(page, config.getCrawlerInfo().getMaxDownloadSize())) {
+         throw new IllegalStateException("Fetch failed: " + item.getToUrl());
+      }
+      int size = (int) page.getContent().size();
+      page.release();
+      return size;
+   }
+
+   private static int countThreads(String namePrefix) {
+      int count = 0;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+         if (thread.getName().startsWith(namePrefix)) {
+            count++;
+         }
+      }
+      return count;
+   }
+}
@@ -0,0 +1,76 @@
+package com.pastya.spider.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP server on all local interfaces serving one fixed page after a configurable delay, used as fetch target by the benchmarks.
+ *
+ * <p>
+ * On Linux every 127.x.y.z address reaches the loopback interface, so {@link #url(int)} spreads requests over distinct hosts like a real crawl does.
+ * </p>
+ */
+public class LocalHttpServer implements HttpHandler {
+
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final byte[] body;
+   private final String contentType;
+   private final long latencyMillis;
+   private final boolean chunked;
+
+   /**
+    * @param body
+    *           the page served for every request
+    * @param latencyMillis
+    *           delay before each response, simulating a remote server
+    * @param chunked
+    *           if true the page is sent without Content-Length
+    */
+   public LocalHttpServer(byte[] body, String contentType, long latencyMillis, boolean chunked) throws IOException {
+      this.body = body;
+      this.contentType = contentType;
+      this.latencyMillis = latencyMillis;
+      this.chunked = chunked;
+      server = HttpServer.create(new InetSocketAddress(0), 4096);
+      executor = Executors.newFixedThreadPool(512);
+      server.setExecutor(executor);
+      server.createContext("/", this);
+      server.start();
+   }
+
+   /**
+    * @return the url of a page on the given loopback host, 0 to 250
+    */
+   public String url(int host) {
+      return "http://127.0.0." + (host % 250 + 1) + ":" + server.getAddress().getPort() + "/page" + host;
+   }
+
+   public void stop() {
+      server.stop(0);
+      executor.shutdownNow();
+   }
+
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         if (latencyMillis > 0) {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+      exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+         out.write(body);
+      }
+   }
+}
@@ -0,0 +1,171 @@
+package com.pastya.spider.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.crawl.Page;
+import com.pastya.spider.fetch.FetchItem;
+import com.pastya.spider.parser.Parser;
+
+/**
+ * Time to parse a page with {@link Parser}, with the fast link extraction and with Tika.
+ *
+ * <p>
+ * The corpus is every .html file of the folder given with -p corpusDir=..., saved pages of the sites to crawl give the most telling numbers. Without a
+ * folder a corpus of generated pages shaped like common templates is used: head with scripts and styles, navigation, paragraphs with inline links and a
+ * footer. The plain text benchmark parses text with a URL every few lines, which goes through the URL scanner instead of an HTML parser.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+   private static final int GENERATED_PAGES = 32;
+   private static final int TEXT_SIZE = 256 * 1024;
+   private static final String[] WORDS = { "the", "crawler", "fetches", "pages", "and", "follows", "links", "to", "other", "hosts", "of", "a",
+         "site", "which", "is", "polite" };
+
+   @Param({ "" })
+   public String corpusDir;
+
+   @Param({ "true", "false" })
+   public boolean fastLinkExtraction;
+
+   private Parser parser;
+   private final List<Page> pages = new ArrayList<Page>();
+   private Page textPage;
+   private int nextPage;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      CrawlConfig config = BenchmarkConfig.newCrawlConfig();
+      config.getCrawlerInfo().setFastLinkExtraction(fastLinkExtraction);
+      parser = new Parser(config);
+      Random random = new Random(42);
+      if (corpusDir.isEmpty()) {
+         for (int i = 0; i < GENERATED_PAGES; i++) {
+            pages.add(newPage("http://www.site" + i + ".com/articles/" + i + ".html", ContentType.TEXT_HTML, generateHtml(random, i)));
+         }
+      } else {
+         File[] files = new File(corpusDir).listFiles();
+         if (files == null) {
+            throw new IOException("Not a folder: " + corpusDir);
+         }
+         Arrays.sort(files);
+         for (File file : files) {
+            if (file.getName().endsWith(".html")) {
+               pages.add(newPage(file.toURI().toString().replace("file:", "http://corpus"), ContentType.TEXT_HTML, Files.readAllBytes(file.toPath())));
+            }
+         }
+         if (pages.isEmpty()) {
+            throw new IOException("No .html files in " + corpusDir);
+         }
+      }
+      textPage = newPage("http://www.site.com/notes.txt", ContentType.TEXT_PLAIN, generateText(random).getBytes(StandardCharsets.UTF_8));
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      for (Page page : pages) {
+         page.release();
+      }
+      textPage.release();
+   }
+
+   @Benchmark
+   public Object parseHtml() throws Exception {
+      Page page = pages.get(nextPage++ % pages.size());
+      parser.parse(page, page.getFetchItem().getToUrl());
+      return page.getParseData();
+   }
+
+   @Benchmark
+   public Object parsePlainText() throws Exception {
+      parser.parse(textPage, textPage.getFetchItem().getToUrl());
+      return textPage.getParseData();
+   }
+
+   private static Page newPage(String url, ContentType contentType, byte[] content) throws Exception {
+      Page page = new Page(FetchItem.create(url, 0));
+      page.load(new ByteArrayEntity(content, contentType.withCharset(StandardCharsets.UTF_8)), Integer.MAX_VALUE);
+      return page;
+   }
+
+   private static byte[] generateHtml(Random random, int index) {
+      StringBuilder html = new StringBuilder(64 * 1024);
+      html.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n<meta charset=\"utf-8\">\n<title>Article ").append(index).append("</title>\n");
+      html.append("<link rel=\"stylesheet\" href=\"/static/site.css\">\n<link rel=\"canonical\" href=\"/articles/").append(index).append(".html\">\n");
+      html.append("<style>body{font-family:sans-serif}.nav a{padding:4px}</style>\n");
+      html.append("<script>window.dataLayer=window.dataLayer||[];function track(e){dataLayer.push(e)}</script>\n</head>\n<body>\n");
+      html.append("<div class=\"nav\"><ul>\n");
+      for (int i = 0; i < 40; i++) {
+         html.append("<li><a href=\"/section/").append(i).append("/\">Section ").append(i).append("</a></li>\n");
+      }
+      html.append("</ul></div>\n<div class=\"content\">\n<h1>Article ").append(index).append("</h1>\n");
+      int paragraphs = 20 + random.nextInt(60);
+      for (int p = 0; p < paragraphs; p++) {
+         html.append("<p>");
+         int words = 40 + random.nextInt(80);
+         for (int w = 0; w < words; w++) {
+            if (random.nextInt(25) == 0) {
+               html.append("<a href=\"").append(random.nextBoolean() ? "http://www.other" + random.nextInt(500) + ".org" : "").append("/page/")
+                     .append(random.nextInt(10000)).append("?ref=").append(index).append("\">").append(WORDS[random.nextInt(WORDS.length)])
+                     .append("</a> ");
+            } else {
+               html.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ", " : " ");
+            }
+         }
+         html.append("</p>\n");
+         if (random.nextInt(8) == 0) {
+            html.append("<img src=\"/images/").append(random.nextInt(1000)).append(".jpg\" alt=\"figure\">\n");
+         }
+      }
+      html.append("</div>\n<div class=\"footer\">");
+      for (int i = 0; i < 15; i++) {
+         html.append("<a href=\"/about/").append(i).append("\">About ").append(i).append("</a> ");
+      }
+      html.append("&copy; 2017 Site</div>\n<script src=\"/static/app.js\"></script>\n</body>\n</html>\n");
+      return html.toString().getBytes(StandardCharsets.UTF_8);
+   }
+
+   private static String generateText(Random random) {
+      StringBuilder text = new StringBuilder(TEXT_SIZE + 128);
+      while (text.length() < TEXT_SIZE) {
+         if (random.nextInt(40) == 0) {
+            text.append("http://www.site").append(random.nextInt(1000)).append(".com/path/page").append(random.nextInt(100)).append(".html?id=")
+                  .append(random.nextInt()).append(". ");
+         } else {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? ".\n" : " ");
+         }
+      }
+      return text.toString();
+   }
+}
@@ -0,0 +1,93 @@
+package com.pastya.spider.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pastya.spider.parser.UrlScanner;
+
+/**
+ * Time to find the URLs of a plain text document with the {@link UrlScanner} against the regular expression Parser used before.
+ *
+ * <p>
+ * The "prose" corpus is text with a URL every few lines, "tokens" is one long run of path-like tokens without a valid URL, which makes the regular
+ * expression recurse once per token. The regular expression throws a StackOverflowError on "tokens" documents of a few kilobytes, so that benchmark
+ * reports the error for the bigger sizes.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlExtractionBenchmark {
+
+   private static final Pattern LEGACY_PATTERN = Pattern.compile("\\b(((ht|f)tp(s?)\\:\\/\\/|~\\/|\\/)|www.)" +
+         "(\\w+:\\w+@)?(([-\\w]+\\.)+(com|org|net|gov" +
+         "|mil|biz|info|mobi|name|aero|jobs|museum" +
+         "|travel|[a-z]{2}))(:[\\d]{1,5})?" +
+         "(((\\/([-\\w~!$+|.,=]|%[a-f\\d]{2})+)+|\\/)+|\\?|#)?" +
+         "((\\?([-\\w~!$+|.,*:]|%[a-f\\d{2}])+=?" +
+         "([-\\w~!$+|.,*:=]|%[a-f\\d]{2})*)" +
+         "(&(?:[-\\w~!$+|.,*:]|%[a-f\\d{2}])+=?" +
+         "([-\\w~!$+|.,*:=]|%[a-f\\d]{2})*)*)*" +
+         "(#([-\\w~!$+|.,*:=]|%[a-f\\d]{2})*)?\\b");
+
+   private static final String[] WORDS = { "the", "crawler", "fetches", "pages", "and", "follows", "links", "to", "other", "hosts", "of", "a",
+         "site", "which", "is", "polite" };
+
+   @Param({ "prose", "tokens" })
+   public String corpus;
+
+   @Param({ "1024", "1048576" })
+   public int size;
+
+   private String text;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      StringBuilder builder = new StringBuilder(size + 64);
+      Random random = new Random(42);
+      while (builder.length() < size) {
+         if (corpus.equals("tokens")) {
+            builder.append("ab.cd/");
+         } else if (random.nextInt(40) == 0) {
+            builder.append("http://www.site").append(random.nextInt(1000)).append(".com/path/page").append(random.nextInt(100)).append(".html?id=")
+                  .append(random.nextInt()).append(". ");
+         } else {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? ".\n" : " ");
+         }
+      }
+      text = builder.substring(0, size);
+   }
+
+   @Benchmark
+   public int scanner() {
+      return UrlScanner.scan(text).size();
+   }
+
+   @Benchmark
+   public int legacyRegex() {
+      Matcher matcher = LEGACY_PATTERN.matcher(text);
+      int count = 0;
+      while (matcher.find()) {
+         count++;
+      }
+      return count;
+   }
+}
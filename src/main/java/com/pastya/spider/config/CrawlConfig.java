@@ -1,7 +1,12 @@
 package com.pastya.spider.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import com.pastya.spider.dedup.NearDuplicateIndex;
+
 /**
  * Properties specific to Crawler.
  *
@@ -81,6 +86,229 @@ public class CrawlConfig {
       
       private int maxThreads = 7;
 
+      /**
+       * If enabled, crawlers run on virtual threads instead of platform threads, so maxThreads can be raised to tens of thousands of concurrent fetches.
+       * Requires Java 21 or later, older JVMs fall back to platform threads.
+       */
+      private boolean virtualThreads = false;
+
+      /**
+       * Number of I/O reactor threads of the AsyncFetcher. 0 uses one per available processor.
+       */
+      private int asyncIoThreads = 0;
+
+      /**
+       * Maximum number of requests the AsyncFetcher keeps in flight at once.
+       */
+      private int maxAsyncFetches = 1000;
+
+      /**
+       * How long resolved host addresses are cached, in seconds.
+       */
+      private int dnsCacheTtl = 300;
+
+      /**
+       * How long failed host lookups are cached, in seconds.
+       */
+      private int dnsNegativeCacheTtl = 60;
+
+      /**
+       * Number of threads resolving host names in the background.
+       */
+      private int dnsResolverThreads = 8;
+
+      /**
+       * Upper bound of the pooled connections. The pool grows with the number of active hosts up to this size, so each host keeps its connection alive.
+       */
+      private int maxConnections = 1000;
+
+      /**
+       * Maximum number of pooled connections to a single host.
+       */
+      private int maxConnectionsPerHost = 2;
+
+      /**
+       * Milliseconds an idle connection is kept alive, unless the server asks for less.
+       */
+      private int keepAliveTimeout = 30000;
+
+      /**
+       * Number of TLS sessions cached for resumption, one per host and port.
+       */
+      private int tlsSessionCacheSize = 20000;
+
+      /**
+       * How long a cached TLS session may be resumed, in seconds.
+       */
+      private int tlsSessionTimeout = 3600;
+
+      /**
+       * Parse and store pages on their own thread pools, so crawler threads only fetch. The page callbacks of a crawler then run on those pools, for
+       * several pages at a time, and pages are loaded whole before they are parsed.
+       */
+      private boolean stagedPipeline = false;
+
+      /**
+       * Threads of the parse stage of a staged crawl, 0 for one per processor.
+       */
+      private int parseThreads = 0;
+
+      /**
+       * Threads of the store stage of a staged crawl.
+       */
+      private int storeThreads = 2;
+
+      /**
+       * Pages a stage of a staged crawl takes before the previous stage waits for it.
+       */
+      private int stageQueueSize = 100;
+
+      /**
+       * Register the crawl metrics with the platform MBean server.
+       */
+      private boolean jmxMetrics = true;
+
+      /**
+       * Port the crawl metrics are served at on the loopback interface, under "/metrics". 0 to not serve them.
+       */
+      private int metricsPort = 0;
+
+      public int getMaxConnections() {
+         return maxConnections;
+      }
+
+      public void setMaxConnections(int maxConnections) {
+         this.maxConnections = maxConnections;
+      }
+
+      public int getMaxConnectionsPerHost() {
+         return maxConnectionsPerHost;
+      }
+
+      public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+         this.maxConnectionsPerHost = maxConnectionsPerHost;
+      }
+
+      public int getKeepAliveTimeout() {
+         return keepAliveTimeout;
+      }
+
+      public void setKeepAliveTimeout(int keepAliveTimeout) {
+         this.keepAliveTimeout = keepAliveTimeout;
+      }
+
+      public int getTlsSessionCacheSize() {
+         return tlsSessionCacheSize;
+      }
+
+      public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+         this.tlsSessionCacheSize = tlsSessionCacheSize;
+      }
+
+      public int getTlsSessionTimeout() {
+         return tlsSessionTimeout;
+      }
+
+      public void setTlsSessionTimeout(int tlsSessionTimeout) {
+         this.tlsSessionTimeout = tlsSessionTimeout;
+      }
+
+      public boolean isStagedPipeline() {
+         return stagedPipeline;
+      }
+
+      public void setStagedPipeline(boolean stagedPipeline) {
+         this.stagedPipeline = stagedPipeline;
+      }
+
+      public int getParseThreads() {
+         return parseThreads;
+      }
+
+      public void setParseThreads(int parseThreads) {
+         this.parseThreads = parseThreads;
+      }
+
+      public int getStoreThreads() {
+         return storeThreads;
+      }
+
+      public void setStoreThreads(int storeThreads) {
+         this.storeThreads = storeThreads;
+      }
+
+      public int getStageQueueSize() {
+         return stageQueueSize;
+      }
+
+      public void setStageQueueSize(int stageQueueSize) {
+         this.stageQueueSize = stageQueueSize;
+      }
+
+      public boolean isJmxMetrics() {
+         return jmxMetrics;
+      }
+
+      public void setJmxMetrics(boolean jmxMetrics) {
+         this.jmxMetrics = jmxMetrics;
+      }
+
+      public int getMetricsPort() {
+         return metricsPort;
+      }
+
+      public void setMetricsPort(int metricsPort) {
+         this.metricsPort = metricsPort;
+      }
+
+      public int getDnsCacheTtl() {
+         return dnsCacheTtl;
+      }
+
+      public void setDnsCacheTtl(int dnsCacheTtl) {
+         this.dnsCacheTtl = dnsCacheTtl;
+      }
+
+      public int getDnsNegativeCacheTtl() {
+         return dnsNegativeCacheTtl;
+      }
+
+      public void setDnsNegativeCacheTtl(int dnsNegativeCacheTtl) {
+         this.dnsNegativeCacheTtl = dnsNegativeCacheTtl;
+      }
+
+      public int getDnsResolverThreads() {
+         return dnsResolverThreads;
+      }
+
+      public void setDnsResolverThreads(int dnsResolverThreads) {
+         this.dnsResolverThreads = dnsResolverThreads;
+      }
+
+      public int getAsyncIoThreads() {
+         return asyncIoThreads;
+      }
+
+      public void setAsyncIoThreads(int asyncIoThreads) {
+         this.asyncIoThreads = asyncIoThreads;
+      }
+
+      public int getMaxAsyncFetches() {
+         return maxAsyncFetches;
+      }
+
+      public void setMaxAsyncFetches(int maxAsyncFetches) {
+         this.maxAsyncFetches = maxAsyncFetches;
+      }
+
+      public boolean isVirtualThreads() {
+         return virtualThreads;
+      }
+
+      public void setVirtualThreads(boolean virtualThreads) {
+         this.virtualThreads = virtualThreads;
+      }
+
       public int getMaxThreads() {
          return maxThreads;
       }
@@ -141,16 +369,115 @@ public class CrawlConfig {
        */
       private boolean resumable = false;
 
+      /**
+       * Milliseconds between two fsyncs of the frontier log of a resumable crawl. A crash loses at most the pages discovered in this window.
+       */
+      private int resumableSyncDelay = 200;
+
+      /**
+       * Number of frontier log events after which the log of a resumable crawl is compacted into a checkpoint.
+       */
+      private int resumableCheckpointInterval = 1000000;
+
+      /**
+       * If enabled, the ETag, Last-Modified and content hash of every fetched page are kept in the storage folder, and a later crawl asks for each page only
+       * if it changed since.
+       */
+      private boolean incrementalRecrawl = false;
+
       /**
        * Politeness delay in milliseconds (delay between sending two requests to the same host).
        */
       private int politenessDelay = 200;
 
+      /**
+       * If enabled, the robots.txt of every host is fetched and pages it disallows for our user agent are not crawled.
+       */
+      private boolean respectRobotsTxt = true;
+
+      /**
+       * Seconds the parsed robots.txt of a host is cached before it is fetched again.
+       */
+      private int robotsCacheTtl = 86400;
+
+      /**
+       * Maximum number of hosts whose robots.txt is cached. The least recently used are evicted beyond this.
+       */
+      private int robotsCacheSize = 100000;
+
+      /**
+       * Upper bound in milliseconds for the Crawl-delay of a robots.txt, longer delays are cut to this. A Crawl-delay only ever increases the politeness
+       * delay of its host.
+       */
+      private int maxCrawlDelay = 30000;
+
+      /**
+       * Sitemaps or sitemap indexes whose pages are queued when the crawl starts, plain text sitemaps and gzipped sitemaps are read too.
+       */
+      private List<String> sitemapUrls = new ArrayList<String>();
+
+      /**
+       * If enabled, the sitemaps listed in the robots.txt of the crawled hosts are read and their pages queued.
+       */
+      private boolean sitemapDiscovery = false;
+
+      /**
+       * If enabled, visited pages are archived in WARC files in the warc folder of the storage folder.
+       */
+      private boolean warcOutput = false;
+
+      /**
+       * Size in bytes after which a new WARC file is started.
+       */
+      private long warcMaxFileSize = 1073741824L;
+
+      /**
+       * Pages waiting to be written to the WARC files. Pages visited while the queue is full are not archived, crawler threads never wait for the disk.
+       */
+      private int warcQueueSize = 1000;
+
+      /**
+       * Milliseconds between two fsyncs of the current WARC file.
+       */
+      private int warcSyncInterval = 1000;
+
+      /**
+       * If enabled, pages whose content is byte-identical to another page visited before are neither parsed nor followed. The digests are kept in the storage
+       * folder, so pages of an earlier crawl count as well.
+       */
+      private boolean duplicateContentDetection = false;
+
+      /**
+       * If enabled, pages whose text has a SimHash within nearDuplicateDistance bits of an earlier page are neither visited nor followed.
+       */
+      private boolean nearDuplicateDetection = false;
+
+      /**
+       * Number of bits in which the SimHash of two pages may differ for them to be near-duplicates, from 0 to 7.
+       */
+      private int nearDuplicateDistance = 3;
+
       /**
        * Max allowed size of a page. Pages larger than this size will not be fetched.
        */
       private int maxDownloadSize = 1048576;
 
+      /**
+       * If enabled, pages are parsed while they download instead of after being loaded, so link extraction overlaps the transfer.
+       */
+      private boolean streamingParse = false;
+
+      /**
+       * With streaming parse, whether the raw content and the text of each page are kept for visiting. Disable to save memory when only links are needed.
+       */
+      private boolean keepPageContent = true;
+
+      /**
+       * If enabled, links of HTML pages are extracted by a lightweight tokenizer over the raw bytes instead of Tika. Pages it cannot handle still go to
+       * Tika. The text of the page is not extracted on this path.
+       */
+      private boolean fastLinkExtraction = false;
+
       /**
        * Maximum depth of crawling. Default value is -1 which represents no restriction.
        */
@@ -161,6 +488,28 @@ public class CrawlConfig {
        */
       private int maxPages = -1;
 
+      /**
+       * Maximum number of queued pages kept on the heap. Pages queued beyond this are spilled to segment files in the storage folder. Default value is -1
+       * which keeps the whole frontier in memory.
+       */
+      private int maxInMemoryQueueSize = -1;
+
+      /**
+       * If enabled, seen pages are remembered in a Bloom filter instead of an exact set. This needs a fraction of the memory, but a small share of new pages
+       * (see seenSetFalsePositiveRate) is wrongly taken as already seen and not crawled.
+       */
+      private boolean approximateSeenSet = false;
+
+      /**
+       * Number of pages the seen set is sized for up front.
+       */
+      private long seenSetExpectedPages = 1000000;
+
+      /**
+       * Probability that a new page is taken as already seen when approximateSeenSet is enabled.
+       */
+      private double seenSetFalsePositiveRate = 0.001;
+
       public String getStorageFolder() {
          return storageFolder;
       }
@@ -189,6 +538,54 @@ public class CrawlConfig {
          this.resumable = resumable;
       }
 
+      public int getResumableSyncDelay() {
+         return resumableSyncDelay;
+      }
+
+      public void setResumableSyncDelay(int resumableSyncDelay) {
+         this.resumableSyncDelay = resumableSyncDelay;
+      }
+
+      public int getResumableCheckpointInterval() {
+         return resumableCheckpointInterval;
+      }
+
+      public void setResumableCheckpointInterval(int resumableCheckpointInterval) {
+         this.resumableCheckpointInterval = resumableCheckpointInterval;
+      }
+
+      public boolean isIncrementalRecrawl() {
+         return incrementalRecrawl;
+      }
+
+      public void setIncrementalRecrawl(boolean incrementalRecrawl) {
+         this.incrementalRecrawl = incrementalRecrawl;
+      }
+
+      public boolean isStreamingParse() {
+         return streamingParse;
+      }
+
+      public void setStreamingParse(boolean streamingParse) {
+         this.streamingParse = streamingParse;
+      }
+
+      public boolean isKeepPageContent() {
+         return keepPageContent;
+      }
+
+      public void setKeepPageContent(boolean keepPageContent) {
+         this.keepPageContent = keepPageContent;
+      }
+
+      public boolean isFastLinkExtraction() {
+         return fastLinkExtraction;
+      }
+
+      public void setFastLinkExtraction(boolean fastLinkExtraction) {
+         this.fastLinkExtraction = fastLinkExtraction;
+      }
+
       public int getMaxDepth() {
          return maxDepth;
       }
@@ -205,6 +602,38 @@ public class CrawlConfig {
          this.maxPages = maxPages;
       }
 
+      public int getMaxInMemoryQueueSize() {
+         return maxInMemoryQueueSize;
+      }
+
+      public void setMaxInMemoryQueueSize(int maxInMemoryQueueSize) {
+         this.maxInMemoryQueueSize = maxInMemoryQueueSize;
+      }
+
+      public boolean isApproximateSeenSet() {
+         return approximateSeenSet;
+      }
+
+      public void setApproximateSeenSet(boolean approximateSeenSet) {
+         this.approximateSeenSet = approximateSeenSet;
+      }
+
+      public long getSeenSetExpectedPages() {
+         return seenSetExpectedPages;
+      }
+
+      public void setSeenSetExpectedPages(long seenSetExpectedPages) {
+         this.seenSetExpectedPages = seenSetExpectedPages;
+      }
+
+      public double getSeenSetFalsePositiveRate() {
+         return seenSetFalsePositiveRate;
+      }
+
+      public void setSeenSetFalsePositiveRate(double seenSetFalsePositiveRate) {
+         this.seenSetFalsePositiveRate = seenSetFalsePositiveRate;
+      }
+
       public int getPolitenessDelay() {
          return politenessDelay;
       }
@@ -213,6 +642,110 @@ public class CrawlConfig {
          this.politenessDelay = politenessDelay;
       }
 
+      public boolean isRespectRobotsTxt() {
+         return respectRobotsTxt;
+      }
+
+      public void setRespectRobotsTxt(boolean respectRobotsTxt) {
+         this.respectRobotsTxt = respectRobotsTxt;
+      }
+
+      public int getRobotsCacheTtl() {
+         return robotsCacheTtl;
+      }
+
+      public void setRobotsCacheTtl(int robotsCacheTtl) {
+         this.robotsCacheTtl = robotsCacheTtl;
+      }
+
+      public int getRobotsCacheSize() {
+         return robotsCacheSize;
+      }
+
+      public void setRobotsCacheSize(int robotsCacheSize) {
+         this.robotsCacheSize = robotsCacheSize;
+      }
+
+      public int getMaxCrawlDelay() {
+         return maxCrawlDelay;
+      }
+
+      public void setMaxCrawlDelay(int maxCrawlDelay) {
+         this.maxCrawlDelay = maxCrawlDelay;
+      }
+
+      public List<String> getSitemapUrls() {
+         return sitemapUrls;
+      }
+
+      public void setSitemapUrls(List<String> sitemapUrls) {
+         this.sitemapUrls = sitemapUrls;
+      }
+
+      public boolean isSitemapDiscovery() {
+         return sitemapDiscovery;
+      }
+
+      public void setSitemapDiscovery(boolean sitemapDiscovery) {
+         this.sitemapDiscovery = sitemapDiscovery;
+      }
+
+      public boolean isWarcOutput() {
+         return warcOutput;
+      }
+
+      public void setWarcOutput(boolean warcOutput) {
+         this.warcOutput = warcOutput;
+      }
+
+      public long getWarcMaxFileSize() {
+         return warcMaxFileSize;
+      }
+
+      public void setWarcMaxFileSize(long warcMaxFileSize) {
+         this.warcMaxFileSize = warcMaxFileSize;
+      }
+
+      public int getWarcQueueSize() {
+         return warcQueueSize;
+      }
+
+      public void setWarcQueueSize(int warcQueueSize) {
+         this.warcQueueSize = warcQueueSize;
+      }
+
+      public int getWarcSyncInterval() {
+         return warcSyncInterval;
+      }
+
+      public void setWarcSyncInterval(int warcSyncInterval) {
+         this.warcSyncInterval = warcSyncInterval;
+      }
+
+      public boolean isDuplicateContentDetection() {
+         return duplicateContentDetection;
+      }
+
+      public void setDuplicateContentDetection(boolean duplicateContentDetection) {
+         this.duplicateContentDetection = duplicateContentDetection;
+      }
+
+      public boolean isNearDuplicateDetection() {
+         return nearDuplicateDetection;
+      }
+
+      public void setNearDuplicateDetection(boolean nearDuplicateDetection) {
+         this.nearDuplicateDetection = nearDuplicateDetection;
+      }
+
+      public int getNearDuplicateDistance() {
+         return nearDuplicateDistance;
+      }
+
+      public void setNearDuplicateDistance(int nearDuplicateDistance) {
+         this.nearDuplicateDistance = nearDuplicateDistance;
+      }
+
       public int getMaxDownloadSize() {
          return maxDownloadSize;
       }
@@ -240,7 +773,7 @@ public class CrawlConfig {
 
    public static class UrlFilters {
 
-      private boolean skipHttpsPages = true;
+      private boolean skipHttpsPages = false;
       private boolean skipImages = false;
       private boolean skipRedirects = false;
       private boolean skipFtpFiles = true;
@@ -324,5 +857,20 @@ public class CrawlConfig {
       if (crawlerInfo.maxDepth > Short.MAX_VALUE) {
          throw new Exception("Maximum value for crawl depth is " + Short.MAX_VALUE);
       }
+      if (crawlerInfo.approximateSeenSet && (crawlerInfo.seenSetFalsePositiveRate <= 0 || crawlerInfo.seenSetFalsePositiveRate >= 1)) {
+         throw new Exception("Seen set false positive rate should be between 0 and 1: " + crawlerInfo.seenSetFalsePositiveRate);
+      }
+      if (crawlerInfo.warcOutput && (crawlerInfo.warcQueueSize <= 0 || crawlerInfo.warcSyncInterval <= 0 || crawlerInfo.warcMaxFileSize <= 0)) {
+         throw new Exception("WARC queue size, sync interval and max file size should be positive");
+      }
+      if (crawlerInfo.nearDuplicateDetection && (crawlerInfo.nearDuplicateDistance < 0 || crawlerInfo.nearDuplicateDistance > NearDuplicateIndex.MAX_DISTANCE)) {
+         throw new Exception("Near-duplicate distance should be between 0 and " + NearDuplicateIndex.MAX_DISTANCE + ": " + crawlerInfo.nearDuplicateDistance);
+      }
+      if (runnableInfo.stagedPipeline && (runnableInfo.parseThreads < 0 || runnableInfo.storeThreads <= 0 || runnableInfo.stageQueueSize <= 0)) {
+         throw new Exception("Store threads and stage queue size should be positive, parse threads should not be negative");
+      }
+      if (runnableInfo.metricsPort < 0 || runnableInfo.metricsPort > 65535) {
+         throw new Exception("Invalid value for metrics port: " + runnableInfo.metricsPort);
+      }
    }
 }
@@ -0,0 +1,142 @@
+package com.pastya.spider.crawl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.parser.Parser;
+
+/**
+ * The parse and store stages of a staged crawl. Crawler threads only fetch pages and hand them to the parse stage, which runs on a ForkJoinPool sized
+ * for the processors and hands them on to the store stage, which runs on its own threads. So a page which is slow to parse does not hold a fetch, and a
+ * slow fetch does not hold a processor.
+ *
+ * <p>
+ * Each stage takes at most stageQueueSize pages, waiting or running. Handing a page to a full stage blocks, so a backlog of the parse stage slows the
+ * crawler threads down and one of the store stage slows the parse stage down, instead of piling pages up in memory.
+ * </p>
+ */
+public class CrawlPipeline {
+
+   protected static final Logger logger = LoggerFactory.getLogger(CrawlPipeline.class);
+
+   private final ForkJoinPool parsePool;
+   private final ExecutorService storePool;
+   private final Semaphore parseSlots;
+   private final Semaphore storeSlots;
+   private final AtomicInteger pending = new AtomicInteger();
+   private final ThreadLocal<Parser> parsers;
+
+   public CrawlPipeline(final CrawlConfig config) {
+      CrawlConfig.RunnableInfo runnableInfo = config.getRunnableInfo();
+      int parseThreads = runnableInfo.getParseThreads() > 0 ? runnableInfo.getParseThreads() : Runtime.getRuntime().availableProcessors();
+      parsePool = new ForkJoinPool(parseThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+      final AtomicInteger storeThreadCount = new AtomicInteger();
+      storePool = new ThreadPoolExecutor(runnableInfo.getStoreThreads(), runnableInfo.getStoreThreads(), 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  return new Thread(r, "StoreThread " + storeThreadCount.incrementAndGet());
+               }
+            });
+      parseSlots = new Semaphore(runnableInfo.getStageQueueSize());
+      storeSlots = new Semaphore(runnableInfo.getStageQueueSize());
+      // Parsers keep buffers between pages, each parse thread gets its own
+      parsers = new ThreadLocal<Parser>() {
+         @Override
+         protected Parser initialValue() {
+            try {
+               return new Parser(config);
+            } catch (InstantiationException | IllegalAccessException e) {
+               throw new IllegalStateException("Cannot create a parser", e);
+            }
+         }
+      };
+      logger.info("Staged crawl with {} parse threads and {} store threads", parseThreads, runnableInfo.getStoreThreads());
+   }
+
+   /**
+    * Runs the task on the parse stage, waiting while the stage is full.
+    *
+    * @throws InterruptedException
+    *            if interrupted while waiting, the task is not run
+    */
+   public void parse(Runnable task) throws InterruptedException {
+      submit(parsePool, parseSlots, task);
+   }
+
+   /**
+    * Runs the task on the store stage, waiting while the stage is full.
+    *
+    * @throws InterruptedException
+    *            if interrupted while waiting, the task is not run
+    */
+   public void store(Runnable task) throws InterruptedException {
+      submit(storePool, storeSlots, task);
+   }
+
+   /**
+    * @return the parser of the current parse thread
+    */
+   public Parser getParser() {
+      return parsers.get();
+   }
+
+   /**
+    * @return number of pages handed to the pipeline and not done yet. A page handed from one stage to the next is counted throughout.
+    */
+   public int getPendingPages() {
+      return pending.get();
+   }
+
+   /**
+    * Finishes the pages handed to the pipeline and stops its threads.
+    */
+   public void shutDown() {
+      try {
+         // Parse tasks may still hand pages to the store stage, so it is shut down after the parse stage is done
+         parsePool.shutdown();
+         parsePool.awaitTermination(1, TimeUnit.MINUTES);
+         storePool.shutdown();
+         storePool.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (pending.get() > 0) {
+         logger.warn("{} pages were not parsed or stored before the pipeline shut down", pending.get());
+      }
+   }
+
+   private void submit(ExecutorService executor, final Semaphore slots, final Runnable task) throws InterruptedException {
+      slots.acquire();
+      pending.incrementAndGet();
+      try {
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  task.run();
+               } catch (RuntimeException e) {
+                  logger.error("Unexpected error in the crawl pipeline", e);
+               } finally {
+                  pending.decrementAndGet();
+                  slots.release();
+               }
+            }
+         });
+      } catch (RuntimeException e) {
+         pending.decrementAndGet();
+         slots.release();
+         throw e;
+      }
+   }
+}
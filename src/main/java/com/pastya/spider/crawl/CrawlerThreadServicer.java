@@ -1,6 +1,7 @@
 package com.pastya.spider.crawl;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -8,8 +9,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.dedup.ContentDigestIndex;
+import com.pastya.spider.dedup.NearDuplicateIndex;
 import com.pastya.spider.fetch.FetchItemQueue;
 import com.pastya.spider.fetch.Fetcher;
+import com.pastya.spider.fetch.FrontierLog;
+import com.pastya.spider.fetch.FrontierOverflow;
+import com.pastya.spider.fetch.ValidatorStore;
+import com.pastya.spider.metrics.CrawlMetrics;
+import com.pastya.spider.metrics.MetricsHttpServer;
+import com.pastya.spider.robots.RobotstxtServer;
+import com.pastya.spider.sitemap.SitemapReader;
+import com.pastya.spider.utils.ConcurrentLongHashSet;
+import com.pastya.spider.utils.LongBloomFilter;
+import com.pastya.spider.utils.LongSet;
+import com.pastya.spider.utils.VirtualThreads;
+import com.pastya.spider.warc.WarcWriter;
 
 public class CrawlerThreadServicer {
 
@@ -18,6 +33,15 @@ public class CrawlerThreadServicer {
    private CrawlConfig config;
    private Fetcher pageFetcher;
    private FetchItemQueue queue;
+   private ValidatorStore validatorStore;
+   private RobotstxtServer robotstxtServer;
+   private SitemapReader sitemapReader;
+   private ContentDigestIndex contentDigestIndex;
+   private WarcWriter warcWriter;
+   private NearDuplicateIndex nearDuplicateIndex;
+   private CrawlPipeline pipeline;
+   private CrawlMetrics metrics;
+   private MetricsHttpServer metricsServer;
    private boolean finished;
    private boolean shuttingDown;
 
@@ -35,7 +59,66 @@ public class CrawlerThreadServicer {
             throw new Exception("Couldn't create the storage folder: " + folder.getAbsolutePath());
          }
       }
-      queue = new FetchItemQueue(config.getRunnableInfo().getMaxThreads(), config.getCrawlerInfo().getPolitenessDelay());
+      CrawlConfig.CrawlerInfo crawlerInfo = config.getCrawlerInfo();
+      LongSet seenPages;
+      if (crawlerInfo.isApproximateSeenSet()) {
+         seenPages = new LongBloomFilter(crawlerInfo.getSeenSetExpectedPages(), crawlerInfo.getSeenSetFalsePositiveRate());
+      } else {
+         seenPages = new ConcurrentLongHashSet(crawlerInfo.getSeenSetExpectedPages());
+      }
+      int maxInMemory = crawlerInfo.getMaxInMemoryQueueSize();
+      FrontierOverflow overflow = null;
+      if (maxInMemory > 0) {
+         // A tenth of the in-memory bound is buffered before it is written out as one segment
+         overflow = new FrontierOverflow(new File(folder, "frontier"), maxInMemory / 10);
+      }
+      queue = new FetchItemQueue(config.getRunnableInfo().getMaxThreads(), crawlerInfo.getPolitenessDelay(), seenPages, overflow, maxInMemory);
+      queue.setDnsCache(fetcher.getDnsCache());
+      if (crawlerInfo.isResumable()) {
+         FrontierLog.open(new File(folder, "frontier-log"), queue, crawlerInfo.getResumableSyncDelay(), crawlerInfo.getResumableCheckpointInterval());
+      }
+      robotstxtServer = new RobotstxtServer(config, fetcher);
+      if (!crawlerInfo.getSitemapUrls().isEmpty() || crawlerInfo.isSitemapDiscovery()) {
+         sitemapReader = new SitemapReader(config, fetcher, queue);
+         if (crawlerInfo.isSitemapDiscovery()) {
+            robotstxtServer.setSitemapReader(sitemapReader);
+         }
+         for (String url : crawlerInfo.getSitemapUrls()) {
+            if (!sitemapReader.submit(url)) {
+               logger.warn("Ignoring sitemap {}, it is not a valid http URL or listed twice", url);
+            }
+         }
+      }
+      if (crawlerInfo.isIncrementalRecrawl()) {
+         validatorStore = ValidatorStore.open(new File(folder, "validators"));
+         fetcher.setValidatorStore(validatorStore);
+      }
+      if (crawlerInfo.isWarcOutput()) {
+         warcWriter = new WarcWriter(new File(folder, "warc"), config);
+      }
+      if (crawlerInfo.isDuplicateContentDetection()) {
+         contentDigestIndex = ContentDigestIndex.open(new File(folder, "digests"), crawlerInfo.getSeenSetExpectedPages());
+      }
+      if (crawlerInfo.isNearDuplicateDetection()) {
+         nearDuplicateIndex = new NearDuplicateIndex(crawlerInfo.getNearDuplicateDistance());
+      }
+      if (config.getRunnableInfo().isStagedPipeline()) {
+         pipeline = new CrawlPipeline(config);
+      }
+      metrics = new CrawlMetrics(queue, pipeline);
+      if (config.getRunnableInfo().isJmxMetrics()) {
+         metrics.register();
+      }
+      if (config.getRunnableInfo().getMetricsPort() > 0) {
+         try {
+            metricsServer = new MetricsHttpServer(metrics, config.getRunnableInfo().getMetricsPort());
+         } catch (IOException e) {
+            logger.warn("Cannot serve the crawl metrics on port " + config.getRunnableInfo().getMetricsPort(), e);
+         }
+      }
+      if (config.getRunnableInfo().isVirtualThreads() && !VirtualThreads.isSupported()) {
+         logger.warn("Virtual threads are not supported by this JVM, crawlers will run on platform threads");
+      }
       finished = false;
       shuttingDown = false;
    }
@@ -48,7 +131,7 @@ public class CrawlerThreadServicer {
 
          for (int i = 1; i <= numberOfCrawlers; i++) {
             T crawler = crawlerFactory.newInstance();
-            Thread thread = new Thread(crawler, "CrawlerThread " + i);
+            Thread thread = newCrawlerThread(crawler, "CrawlerThread " + i);
             crawler.setCrawlerThread(thread);
             crawler.init(i, this);
             thread.start();
@@ -69,13 +152,15 @@ public class CrawlerThreadServicer {
 
                      while (true) {
                         sleep(shutdownDelaySeconds);
+                        metrics.update();
+                        logger.info("Crawl metrics: {}", metrics.summary());
                         boolean aThreadIsAlive = false;
                         for (int i = 0; i < threads.size(); i++) {
                            Thread thread = threads.get(i);
                            if (!thread.isAlive()) {
                               if (!shuttingDown) {
                                  T crawler = crawlerFactory.newInstance();
-                                 thread = new Thread(crawler, "Crawler " + (i + 1));
+                                 thread = newCrawlerThread(crawler, "Crawler " + (i + 1));
                                  threads.remove(i);
                                  threads.add(i, thread);
                                  crawler.setCrawlerThread(thread);
@@ -101,18 +186,41 @@ public class CrawlerThreadServicer {
                            if (!aThreadIsAlive) {
                               if (!shuttingDown) {
                                  long queueLength = queue.getQueueSize();
-                                 if (queueLength > 0) {
+                                 if (queueLength > 0 || isSeeding() || hasPendingPages()) {
                                     continue;
                                  }
                                  sleep(shutdownDelaySeconds);
                                  queueLength = queue.getQueueSize();
-                                 if (queueLength > 0) {
+                                 if (queueLength > 0 || isSeeding() || hasPendingPages()) {
                                     continue;
                                  }
                               }
                               sleep(config.getRunnableInfo().getCleanupDelaySeconds());
 
+                              if (sitemapReader != null) {
+                                 sitemapReader.shutDown();
+                              }
+                              // Pages still in the pipeline are parsed and stored before the stores they write to are closed
+                              if (pipeline != null) {
+                                 pipeline.shutDown();
+                              }
                               pageFetcher.shutDown();
+                              queue.close();
+                              if (validatorStore != null) {
+                                 validatorStore.close();
+                              }
+                              if (contentDigestIndex != null) {
+                                 contentDigestIndex.close();
+                              }
+                              if (warcWriter != null) {
+                                 warcWriter.close();
+                              }
+                              if (metricsServer != null) {
+                                 metricsServer.stop();
+                              }
+                              if (config.getRunnableInfo().isJmxMetrics()) {
+                                 metrics.unregister();
+                              }
 
                               finished = true;
                               waitingLock.notifyAll();
@@ -156,6 +264,13 @@ public class CrawlerThreadServicer {
       }
    }
 
+   private Thread newCrawlerThread(Runnable crawler, String name) {
+      if (config.getRunnableInfo().isVirtualThreads()) {
+         return VirtualThreads.newThread(crawler, name);
+      }
+      return new Thread(crawler, name);
+   }
+
    protected static void sleep(int seconds) {
       try {
          Thread.sleep(seconds * 1000);
@@ -176,6 +291,63 @@ public class CrawlerThreadServicer {
       return queue;
    }   
 
+   /**
+    * @return the validators of fetched pages, or null if incremental recrawl is disabled
+    */
+   public ValidatorStore getValidatorStore() {
+      return validatorStore;
+   }
+
+   /**
+    * @return the writer visited pages are archived with, or null if WARC output is disabled
+    */
+   public WarcWriter getWarcWriter() {
+      return warcWriter;
+   }
+
+   /**
+    * @return the digests of the content of visited pages, or null if duplicate content detection is disabled
+    */
+   public ContentDigestIndex getContentDigestIndex() {
+      return contentDigestIndex;
+   }
+
+   /**
+    * @return the SimHash index of visited pages, or null if near-duplicate detection is disabled
+    */
+   public NearDuplicateIndex getNearDuplicateIndex() {
+      return nearDuplicateIndex;
+   }
+
+   /**
+    * @return the parse and store stages of a staged crawl, or null if crawler threads parse and store pages themselves
+    */
+   public CrawlPipeline getPipeline() {
+      return pipeline;
+   }
+
+   public CrawlMetrics getMetrics() {
+      return metrics;
+   }
+
+   public RobotstxtServer getRobotstxtServer() {
+      return robotstxtServer;
+   }
+
+   /**
+    * @return true while configured or discovered sitemaps are still being read into the queue
+    */
+   public boolean isSeeding() {
+      return sitemapReader != null && sitemapReader.isBusy();
+   }
+
+   /**
+    * @return true while fetched pages wait to be parsed or stored, parsing them may add new links to the queue
+    */
+   public boolean hasPendingPages() {
+      return pipeline != null && pipeline.getPendingPages() > 0;
+   }
+
    public boolean isFinished() {
       return finished;
    }
@@ -187,6 +359,10 @@ public class CrawlerThreadServicer {
    public void shutdown() {
       logger.info("Shutting down...");
       this.shuttingDown = true;
+      if (sitemapReader != null) {
+         sitemapReader.shutDown();
+      }
+      queue.wakeUpAll();
       pageFetcher.shutDown();
    }
 
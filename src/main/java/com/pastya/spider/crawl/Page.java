@@ -1,19 +1,32 @@
 package com.pastya.spider.crawl;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
 
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteSource;
+import com.pastya.spider.fetch.ContentDecoding;
 import com.pastya.spider.fetch.FetchItem;
+import com.pastya.spider.metrics.CrawlMetrics;
 import com.pastya.spider.parser.ParseData;
+import com.pastya.spider.utils.SlabBuffer;
 
 public class Page {
 
+   /**
+    * Hash function of {@link #getContentDigest()}.
+    */
+   public static final HashFunction CONTENT_DIGEST = Hashing.murmur3_128();
+
    /**
     * Item fetched in this page object
     */
@@ -25,10 +38,20 @@ public class Page {
    protected int statusCode;
 
    /**
-    * The content of this page in binary format.
+    * The content of this page, held in pooled slabs until {@link #release()}.
+    */
+   protected SlabBuffer content;
+
+   /**
+    * The content of this page in binary format, only created when asked for.
     */
    protected byte[] contentData;
 
+   /**
+    * Digest of the decoded content, computed while it is read. 0 until the content is read completely.
+    */
+   protected long contentDigest;
+
    /**
     * The ContentType of this page. For example: "text/html; charset=UTF-8"
     */
@@ -69,7 +92,39 @@ public class Page {
     *            when load fails
     */
    public void load(HttpEntity entity, int maxBytes) throws Exception {
+      loadContentType(entity);
+      release();
+      contentData = null;
+      contentDigest = 0;
+      content = toSlabBuffer(entity, maxBytes);
+   }
+
+   /**
+    * Opens the content of a fetched HttpEntity for reading while it downloads, instead of loading it first. Compressed content is decoded on the fly and
+    * at most maxBytes decoded bytes are returned.
+    *
+    * @param entity
+    *           HttpEntity
+    * @param maxBytes
+    *           The maximum number of bytes to read
+    * @param keepContent
+    *           if true, the bytes read are also kept and available from {@link #getContent()} once the stream is closed
+    * @return the decoded content, to be closed by the caller
+    * @throws IOException
+    *            when the content cannot be opened
+    */
+   public InputStream openContent(HttpEntity entity, int maxBytes, boolean keepContent) throws IOException {
+      loadContentType(entity);
+      release();
+      contentData = null;
+      contentDigest = 0;
+      Header encoding = entity.getContentEncoding();
+      ContentDecoding.DecodingStream is = ContentDecoding.decode(entity.getContent(), encoding == null ? null : encoding.getValue(), maxBytes);
+      content = keepContent ? new SlabBuffer() : null;
+      return new ContentStream(this, is, maxBytes, content);
+   }
 
+   private void loadContentType(HttpEntity entity) {
       contentType = null;
       Header type = entity.getContentType();
       if (type != null) {
@@ -80,54 +135,74 @@ public class Page {
       if (charset != null) {
          contentCharset = charset.displayName();
       }
-
-      contentData = toByteArray(entity, maxBytes);
    }
 
    /**
     * Read contents from an entity, with a specified maximum. This is a replacement of EntityUtils.toByteArray because that function does not impose a maximum
-    * size.
+    * size. Compressed content is decoded while it is read; maxBytes bounds both the bytes received and the decoded bytes kept.
     *
     * @param entity
     *           The entity from which to read
     * @param maxBytes
     *           The maximum number of bytes to read
-    * @return A byte array containing maxBytes or fewer bytes read from the entity
+    * @return A buffer holding maxBytes or fewer bytes read from the entity
     *
     * @throws IOException
     *            Thrown when reading fails for any reason
     */
-   protected byte[] toByteArray(HttpEntity entity, int maxBytes) throws IOException {
+   protected SlabBuffer toSlabBuffer(HttpEntity entity, int maxBytes) throws IOException {
+      SlabBuffer buffer = new SlabBuffer();
       if (entity == null) {
-         return new byte[0];
+         return buffer;
       }
 
-      InputStream is = entity.getContent();
-      int size = (int) entity.getContentLength();
-      if (size <= 0 || size > maxBytes) {
-         size = maxBytes;
+      long start = System.nanoTime();
+      Header encoding = entity.getContentEncoding();
+      ContentDecoding.DecodingStream is = ContentDecoding.decode(entity.getContent(), encoding == null ? null : encoding.getValue(), maxBytes);
+      boolean loaded = false;
+      try {
+         HashingInputStream hashing = new HashingInputStream(CONTENT_DIGEST, is);
+         buffer.readFrom(hashing, maxBytes);
+         contentDigest = buffer.size() >= maxBytes && hasMore(is) ? 0 : hashing.hash().asLong();
+         loaded = true;
+      } finally {
+         is.finish(buffer.size());
+         CrawlMetrics.loaded(is.getReceivedBytes(), System.nanoTime() - start);
+         if (!loaded) {
+            buffer.release();
+         }
+         is.close();
       }
+      return buffer;
+   }
 
-      int actualSize = 0;
-
-      byte[] buf = new byte[size];
-      while (actualSize < size) {
-         int remain = size - actualSize;
-         int readBytes = is.read(buf, actualSize, Math.min(remain, 1500));
-
-         if (readBytes <= 0) {
-            break;
-         }
-         actualSize += readBytes;
+   /**
+    * @return true if the stream has a byte left after the content read so far. A body over the download limit fails when read further, which counts as
+    *         more.
+    */
+   private static boolean hasMore(InputStream in) {
+      try {
+         return in.read() >= 0;
+      } catch (IOException e) {
+         return true;
       }
+   }
 
-      // If the actual size matches the size of the buffer, do not copy it
-      if (actualSize == buf.length) {
-         return buf;
+   /**
+    * Returns the memory of the content to the pool. The content is not available afterwards, call this once the page is parsed and visited.
+    */
+   public void release() {
+      if (content != null) {
+         content.release();
+         content = null;
       }
+   }
 
-      // Return the subset of the byte buffer that was used
-      return Arrays.copyOfRange(buf, 0, actualSize);
+   /**
+    * @return true if the content of this page is held in memory
+    */
+   public boolean hasContent() {
+      return content != null || contentData != null;
    }
 
    public FetchItem getFetchItem() {
@@ -171,14 +246,43 @@ public class Page {
    }
 
    /**
-    * @return content of this page in binary format.
+    * @return read-only view of the content of this page, valid until {@link #release()}
+    */
+   public ByteSource getContent() {
+      if (content != null) {
+         return content.asByteSource();
+      }
+      return contentData == null ? ByteSource.empty() : ByteSource.wrap(contentData);
+   }
+
+   /**
+    * @return content of this page in binary format. The first call copies the content, use {@link #getContent()} to read it without a copy.
     */
    public byte[] getContentData() {
+      if (contentData == null && content != null) {
+         try {
+            contentData = content.asByteSource().read();
+         } catch (IOException e) {
+            throw new IllegalStateException(e);
+         }
+      }
       return contentData;
    }
 
    public void setContentData(byte[] contentData) {
+      release();
       this.contentData = contentData;
+      this.contentDigest = 0;
+   }
+
+   /**
+    * Digest of the content, the same for byte-identical pages. It is computed while the content is loaded or streamed, without reading it again.
+    *
+    * @return the first 64 bits of the {@link #CONTENT_DIGEST} of the decoded content, or 0 if it was not read completely or was cut at the maximum
+    *         download size, so pages which only share their first bytes never count as duplicates
+    */
+   public long getContentDigest() {
+      return contentDigest;
    }
 
    /**
@@ -210,4 +314,100 @@ public class Page {
    public void setLanguage(String language) {
       this.language = language;
    }
+
+   /**
+    * Decoded content read while it downloads. Ends after maxBytes bytes and copies what is read into the kept buffer, if any. The content digest of the
+    * page is set once the end is reached, closing the stream reads what the parser left to complete it. Content cut at maxBytes keeps the digest 0.
+    */
+   private static class ContentStream extends FilterInputStream {
+      private final Page page;
+      private final ContentDecoding.DecodingStream decoding;
+      private final int maxBytes;
+      private final SlabBuffer kept;
+      private final Hasher hasher = CONTENT_DIGEST.newHasher();
+      private final byte[] single = new byte[1];
+      private final long start = System.nanoTime();
+      private int count;
+      private boolean digested;
+      private boolean closed;
+
+      ContentStream(Page page, ContentDecoding.DecodingStream decoding, int maxBytes, SlabBuffer kept) {
+         super(decoding);
+         this.page = page;
+         this.decoding = decoding;
+         this.maxBytes = maxBytes;
+         this.kept = kept;
+      }
+
+      @Override
+      public int read() throws IOException {
+         int n;
+         do {
+            n = read(single, 0, 1);
+         } while (n == 0);
+         return n < 0 ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (count >= maxBytes) {
+            if (!digested) {
+               digested = true;
+               page.contentDigest = hasMore(decoding) ? 0 : hasher.hash().asLong();
+            }
+            return -1;
+         }
+         int n = super.read(b, off, Math.min(len, maxBytes - count));
+         if (n > 0) {
+            count += n;
+            hasher.putBytes(b, off, n);
+            if (kept != null) {
+               kept.write(b, off, n);
+            }
+         } else if (n < 0) {
+            digest();
+         }
+         return n;
+      }
+
+      private void digest() {
+         if (!digested) {
+            digested = true;
+            page.contentDigest = hasher.hash().asLong();
+         }
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         // Skipped bytes still have to be kept, so they are read
+         byte[] skipped = new byte[(int) Math.min(n, 8192)];
+         int read = read(skipped, 0, skipped.length);
+         return Math.max(read, 0);
+      }
+
+      @Override
+      public boolean markSupported() {
+         return false;
+      }
+
+      @Override
+      public void close() throws IOException {
+         if (!closed) {
+            closed = true;
+            if (!digested) {
+               try {
+                  byte[] rest = new byte[8192];
+                  while (read(rest, 0, rest.length) >= 0) {
+                     // Only read for the digest
+                  }
+               } catch (IOException e) {
+                  // The digest stays unknown
+               }
+            }
+            decoding.finish(count);
+            CrawlMetrics.loaded(decoding.getReceivedBytes(), System.nanoTime() - start);
+            super.close();
+         }
+      }
+   }
 }
@@ -1,26 +1,41 @@
 package com.pastya.spider.crawl;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpStatus;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.dedup.ContentDigestIndex;
+import com.pastya.spider.dedup.NearDuplicateIndex;
 import com.pastya.spider.fetch.FetchException;
 import com.pastya.spider.fetch.FetchItem;
 import com.pastya.spider.fetch.FetchItemQueue;
 import com.pastya.spider.fetch.FetchResult;
 import com.pastya.spider.fetch.FetchStatus;
 import com.pastya.spider.fetch.Fetcher;
+import com.pastya.spider.fetch.ValidatorStore;
+import com.pastya.spider.parser.ParseException;
 import com.pastya.spider.parser.Parser;
+import com.pastya.spider.robots.RobotstxtServer;
+import com.pastya.spider.warc.WarcWriter;
 
 public class WebCrawler implements Runnable {
 
    protected static final Logger logger = LoggerFactory.getLogger(WebCrawler.class);
 
+   /**
+    * How long a crawler thread waits for a page to become available before checking whether the crawl is over.
+    */
+   private static final int IDLE_TIMEOUT_SECONDS = 3;
+
    /**
     * The id associated to the thread running this instance
     */
@@ -36,6 +51,10 @@ public class WebCrawler implements Runnable {
 
    private FetchItemQueue queue;
 
+   private RobotstxtServer robotstxtServer;
+
+   private CrawlPipeline pipeline;
+
    private boolean isWaiting;
 
    public void init(int crawlerThreadId, CrawlerThreadServicer servicer) throws InstantiationException, IllegalAccessException {
@@ -43,6 +62,8 @@ public class WebCrawler implements Runnable {
       this.servicer = servicer;
       this.fetcher = servicer.getPageFetcher();
       this.queue = servicer.getFetchItemQueue();
+      this.robotstxtServer = servicer.getRobotstxtServer();
+      this.pipeline = servicer.getPipeline();
       this.parser = new Parser(servicer.getConfig());
       this.isWaiting = false;
    }
@@ -58,19 +79,31 @@ public class WebCrawler implements Runnable {
    }
 
    public void run() {
+      onStart();
+      try {
+         crawl();
+      } finally {
+         onBeforeExit();
+      }
+   }
+
+   private void crawl() {
       while (true) {
          isWaiting = true;
-         FetchItem fetchItem = queue.getPageFetchItem();
+         FetchItem fetchItem;
+         try {
+            fetchItem = queue.takePageFetchItem(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            logger.info("Exiting because the crawler thread was interrupted.");
+            return;
+         }
          isWaiting = false;
          if (fetchItem == null) {
-            if (queue.getQueueSize() == 0) {
+            // Nothing became available within the timeout. Exit only once no running fetch, parse or sitemap can add new links.
+            if (servicer.isShuttingDown() || (queue.getQueueSize() == 0 && queue.getInProgressSize() == 0 && !servicer.isSeeding()
+                  && !servicer.hasPendingPages())) {
                return;
             }
-            try {
-               Thread.sleep(3000);
-            } catch (InterruptedException e) {
-               logger.error("Error occurred", e);
-            }
          } else {
             if (servicer.isShuttingDown()) {
                logger.info("Exiting because of controller shutdown.");
@@ -78,25 +111,48 @@ public class WebCrawler implements Runnable {
             }
             if (fetchItem != null) {
                fetchItem.setStatus(FetchStatus.INPROGRESS);
-               processPage(fetchItem);
-               fetchItem.setStatus(FetchStatus.FETCHED);
-               queue.finishPageFetchItem(fetchItem, true);
+               if (!processPage(fetchItem)) {
+                  fetchItem.setStatus(FetchStatus.FETCHED);
+                  queue.finishPageFetchItem(fetchItem, false);
+               }
             }
          }
       }
    }
 
-   private void processPage(FetchItem fetchItem) {
+   /**
+    * @return true if the page was handed to the parse stage, which finishes the item once its links are queued
+    */
+   private boolean processPage(FetchItem fetchItem) {
       FetchResult fetchResult = null;
+      Page page = null;
       try {
          if (fetchItem == null) {
-            return;
+            return false;
          }
 
+         // A host whose lookup failed recently fails again, skip it before fetching its robots.txt
+         if (fetchItem.getUrl() != null && fetcher.getDnsCache().isKnownUnresolvable(fetchItem.getUrl().getHost())) {
+            logger.debug("Not fetching: {} as its host could not be resolved", fetchItem.getToUrl());
+            return false;
+         }
+
+         if (!robotstxtServer.allows(fetchItem)) {
+            logger.debug("Not fetching: {} as per the server's \"robots.txt\" policy", fetchItem.getToUrl());
+            return false;
+         }
+         // A Crawl-delay of the host spaces its next fetch
+         queue.setCrawlDelay(fetchItem.getQueueKey(), robotstxtServer.getCrawlDelay(fetchItem));
+
          fetchResult = fetcher.fetchPage(fetchItem);
          int statusCode = fetchResult.getStatusCode();
 
-         Page page = new Page(fetchItem);
+         if (fetchResult.isNotModified()) {
+            onPageNotModified(fetchItem);
+            return false;
+         }
+
+         page = new Page(fetchItem);
          page.setFetchResponseHeaders(fetchResult.getResponseHeaders());
          page.setStatusCode(statusCode);
          if (statusCode < 200 || statusCode > 299) { // Not 2XX: 2XX status codes indicate success
@@ -116,53 +172,67 @@ public class WebCrawler implements Runnable {
             if (!fetchItem.getUrl().equals(fetchResult.getFetchedUrl())) {
                if (docIdServer.isSeenBefore(fetchResult.getFetchedUrl())) {
                   logger.debug("Redirect page: {} has already been seen", fetchItem.getToUrl());
-                  return;
+                  return false;
                }
                fetchItem.setToUrl(fetchResult.getFetchedUrl());
                fetchItem.setDocid(docIdServer.getNewDocID(fetchResult.getFetchedUrl()));
             }
 
-            if (!fetchResult.fetchContent(page, servicer.getConfig().getCrawlerInfo().getMaxDownloadSize())) {
-               throw new FetchException();
-            }
-            
-            parser.parse(page, fetchItem.getToUrl());
-
-            if (shouldFollowLinksIn(page.getWebURL())) {
-               ParseData parseData = page.getParseData();
-               List<WebURL> toSchedule = new ArrayList<>();
-               int maxCrawlDepth = myController.getConfig().getMaxDepthOfCrawling();
-               for (WebURL webURL : parseData.getOutgoingUrls()) {
-                  webURL.setParentDocid(curURL.getDocid());
-                  webURL.setParentUrl(curURL.getURL());
-                  int newdocid = docIdServer.getDocId(webURL.getURL());
-                  if (newdocid > 0) {
-                     // This is not the first time that this Url is visited. So, we set the
-                     // depth to a negative number.
-                     webURL.setDepth((short) -1);
-                     webURL.setDocid(newdocid);
-                  } else {
-                     webURL.setDocid(-1);
-                     webURL.setDepth((short) (curURL.getDepth() + 1));
-                     if ((maxCrawlDepth == -1) || (curURL.getDepth() < maxCrawlDepth)) {
-                        if (shouldVisit(page, webURL)) {
-                           if (robotstxtServer.allows(webURL)) {
-                              webURL.setDocid(docIdServer.getNewDocID(webURL.getURL()));
-                              toSchedule.add(webURL);
-                           } else {
-                              logger.debug("Not visiting: {} as per the server's \"robots.txt\" " + "policy", webURL.getURL());
-                           }
-                        } else {
-                           logger.debug("Not visiting: {} as per your \"shouldVisit\" policy", webURL.getURL());
-                        }
-                     }
-                  }
+            CrawlConfig.CrawlerInfo crawlerInfo = servicer.getConfig().getCrawlerInfo();
+            ValidatorStore validators = servicer.getValidatorStore();
+            NearDuplicateIndex nearDuplicates = servicer.getNearDuplicateIndex();
+            ContentDigestIndex digests = servicer.getContentDigestIndex();
+            WarcWriter warcWriter = servicer.getWarcWriter();
+            // A staged crawl loads the page before handing it to the parse stage, it cannot parse while the page downloads
+            if (crawlerInfo.isStreamingParse() && pipeline == null) {
+               // The SimHash and the WARC records need the content, even if the page does not keep it otherwise. The digest is computed while the page
+               // streams.
+               boolean keepContent = crawlerInfo.isKeepPageContent() || nearDuplicates != null || warcWriter != null;
+               try (InputStream content = page.openContent(fetchResult.getEntity(), crawlerInfo.getMaxDownloadSize(), keepContent)) {
+                  parser.parse(page, content, fetchItem.getToUrl());
+               }
+               if (validators != null && validators.isUnchanged(fetchItem.getItemId(), page.getContentDigest())) {
+                  saveValidators(fetchItem, page);
+                  onPageNotModified(fetchItem);
+                  return false;
+               }
+               // The digest is only known once the page is parsed, a duplicate is still neither followed nor visited
+               if (digests != null && page.getContentDigest() != 0 && !digests.add(page.getContentDigest(), fetchItem.getItemId())) {
+                  saveValidators(fetchItem, page);
+                  onDuplicateContent(fetchItem);
+                  return false;
                }
-               frontier.scheduleAll(toSchedule);
             } else {
-               logger.debug("Not looking for links in page {}, " + "as per your \"shouldFollowLinksInPage\" policy", page.getWebURL().getURL());
+               if (!fetchResult.fetchContent(page, crawlerInfo.getMaxDownloadSize())) {
+                  throw new FetchException();
+               }
+
+               if (validators != null && validators.isUnchanged(fetchItem.getItemId(), page.getContentDigest())) {
+                  // The server ignored the conditional request but sent the same content again
+                  saveValidators(fetchItem, page);
+                  onPageNotModified(fetchItem);
+                  return false;
+               }
+               if (digests != null && page.getContentDigest() != 0 && !digests.add(page.getContentDigest(), fetchItem.getItemId())) {
+                  saveValidators(fetchItem, page);
+                  onDuplicateContent(fetchItem);
+                  return false;
+               }
+
+               if (pipeline != null) {
+                  // The parse stage owns the page from here, this thread goes on fetching
+                  Page loaded = page;
+                  page = null;
+                  parseStaged(fetchItem, loaded);
+                  return true;
+               }
+               parser.parse(page, fetchItem.getToUrl());
             }
-            visit(page);
+
+            if (followLinks(fetchItem, page)) {
+               store(fetchItem, page);
+            }
+            saveValidators(fetchItem, page);
          }
       } catch (PageBiggerThanMaxSizeException e) {
          onPageBiggerThanMaxSize(curURL.getURL(), e.getPageSize());
@@ -178,7 +248,167 @@ public class WebCrawler implements Runnable {
          if (fetchResult != null) {
             fetchResult.discardContentIfNotConsumed();
          }
+         // The content buffer goes back to the pool for the next page of this thread
+         if (page != null) {
+            page.release();
+         }
       }
+      return false;
+   }
+
+   /**
+    * Parses the page on the parse stage of the pipeline, then follows its links there and stores it on the store stage. The item is finished once its
+    * links are queued, so a resumed crawl never sees it finished without its links. Waits while the parse stage is full.
+    */
+   private void parseStaged(final FetchItem fetchItem, final Page page) throws InterruptedException {
+      final CrawlPipeline stages = pipeline;
+      try {
+         stages.parse(new Runnable() {
+            @Override
+            public void run() {
+               boolean handedOn = false;
+               try {
+                  stages.getParser().parse(page, fetchItem.getToUrl());
+                  if (followLinks(fetchItem, page)) {
+                     stages.store(new Runnable() {
+                        @Override
+                        public void run() {
+                           try {
+                              store(fetchItem, page);
+                              saveValidators(fetchItem, page);
+                           } catch (Exception e) {
+                              logger.error("Cannot store page: " + fetchItem.getToUrl(), e);
+                           } finally {
+                              page.release();
+                           }
+                        }
+                     });
+                     handedOn = true;
+                  } else {
+                     saveValidators(fetchItem, page);
+                  }
+               } catch (ParseException e) {
+                  logger.warn("Cannot parse page: {}", fetchItem.getToUrl());
+               } catch (Exception e) {
+                  logger.error("Unexpected error while parsing page: " + fetchItem.getToUrl(), e);
+               } finally {
+                  if (!handedOn) {
+                     page.release();
+                  }
+                  fetchItem.setStatus(FetchStatus.FETCHED);
+                  queue.finishPageFetchItem(fetchItem, false);
+               }
+            }
+         });
+      } catch (InterruptedException | RuntimeException e) {
+         // Not handed to the parse stage, the caller finishes the item
+         page.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Checks the parsed page for near-duplicates and queues its links.
+    *
+    * @return false if the page is a near-duplicate, which is neither followed nor stored
+    */
+   private boolean followLinks(FetchItem fetchItem, Page page) {
+      NearDuplicateIndex nearDuplicates = servicer.getNearDuplicateIndex();
+      long simHash = page.getParseData() == null ? 0 : page.getParseData().getSimHash();
+      if (nearDuplicates != null && simHash != 0 && !nearDuplicates.add(simHash)) {
+         onNearDuplicate(fetchItem);
+         return false;
+      }
+
+      if (shouldFollowLinksIn(page.getWebURL())) {
+         ParseData parseData = page.getParseData();
+         List<WebURL> toSchedule = new ArrayList<>();
+         int maxCrawlDepth = myController.getConfig().getMaxDepthOfCrawling();
+         for (WebURL webURL : parseData.getOutgoingUrls()) {
+            webURL.setParentDocid(curURL.getDocid());
+            webURL.setParentUrl(curURL.getURL());
+            int newdocid = docIdServer.getDocId(webURL.getURL());
+            if (newdocid > 0) {
+               // This is not the first time that this Url is visited. So, we set the
+               // depth to a negative number.
+               webURL.setDepth((short) -1);
+               webURL.setDocid(newdocid);
+            } else {
+               webURL.setDocid(-1);
+               webURL.setDepth((short) (curURL.getDepth() + 1));
+               if ((maxCrawlDepth == -1) || (curURL.getDepth() < maxCrawlDepth)) {
+                  if (shouldVisit(page, webURL)) {
+                     // Hosts whose robots.txt is not cached yet are checked when their pages are fetched
+                     if (!robotstxtServer.isKnownDisallowed(webURL)) {
+                        webURL.setDocid(docIdServer.getNewDocID(webURL.getURL()));
+                        toSchedule.add(webURL);
+                     } else {
+                        logger.debug("Not visiting: {} as per the server's \"robots.txt\" " + "policy", webURL.getURL());
+                     }
+                  } else {
+                     logger.debug("Not visiting: {} as per your \"shouldVisit\" policy", webURL.getURL());
+                  }
+               }
+            }
+         }
+         frontier.scheduleAll(toSchedule);
+      } else {
+         logger.debug("Not looking for links in page {}, " + "as per your \"shouldFollowLinksInPage\" policy", page.getWebURL().getURL());
+      }
+      return true;
+   }
+
+   /**
+    * Archives and visits the parsed page.
+    */
+   private void store(FetchItem fetchItem, Page page) throws IOException {
+      WarcWriter warcWriter = servicer.getWarcWriter();
+      if (warcWriter != null) {
+         warcWriter.write(fetchItem.getToUrl(), page.getStatusCode(), page.getFetchResponseHeaders(), page.getContent());
+      }
+      visit(page);
+   }
+
+   /**
+    * Stores the validators of a page once it is processed. A page whose parsing, storing or visit failed keeps the validators of its last success, so the
+    * next crawl processes it again.
+    */
+   private void saveValidators(FetchItem fetchItem, Page page) {
+      ValidatorStore validators = servicer.getValidatorStore();
+      if (validators != null) {
+         validators.update(fetchItem.getItemId(), page.getFetchResponseHeaders(), page.getContentDigest());
+      }
+   }
+
+   /**
+    * Called for a page which did not change since an earlier crawl, instead of parsing and visiting it again.
+    *
+    * @param fetchItem
+    *           the unchanged item
+    */
+   protected void onPageNotModified(FetchItem fetchItem) {
+      logger.debug("Not modified since the last crawl: {}", fetchItem.getToUrl());
+   }
+
+   /**
+    * Called for a page whose content is byte for byte the same as another page visited before, by this crawl or an earlier one, instead of parsing and
+    * visiting it.
+    *
+    * @param fetchItem
+    *           the duplicate item
+    */
+   protected void onDuplicateContent(FetchItem fetchItem) {
+      logger.debug("Same content as an earlier page: {}", fetchItem.getToUrl());
+   }
+
+   /**
+    * Called for a page whose text is nearly the same as a page visited before, instead of following its links and visiting it.
+    *
+    * @param fetchItem
+    *           the near-duplicate item
+    */
+   protected void onNearDuplicate(FetchItem fetchItem) {
+      logger.debug("Near-duplicate of an earlier page: {}", fetchItem.getToUrl());
    }
 
    public int getCrawlerThreadId() {
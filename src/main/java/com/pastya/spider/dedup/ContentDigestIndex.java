@@ -0,0 +1,137 @@
+package com.pastya.spider.dedup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pastya.spider.utils.ConcurrentLongLongHashMap;
+
+/**
+ * Persistent set of the content digests of visited pages, to recognize byte-identical pages served under other URLs.
+ *
+ * <p>
+ * Each digest maps to the item id of the first page it was seen on, in a {@link ConcurrentLongLongHashMap} of 16 bytes per page, so a page fetched again
+ * under its own URL is never its own duplicate. Digest and item id are appended to a file which is read back when the index is opened, so pages seen by
+ * an earlier crawl of the same storage folder count as duplicates too. The file is not fsynced, a crash only loses digests, which costs a parse of those
+ * pages on the next crawl.
+ * </p>
+ */
+public class ContentDigestIndex implements Closeable {
+
+   protected static final Logger logger = LoggerFactory.getLogger(ContentDigestIndex.class);
+
+   private static final String DIGEST_FILE = "digests.dat";
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+   private static final int RECORD_SIZE = 16;
+
+   private final ConcurrentLongLongHashMap digests;
+   private final ReentrantLock writeLock = new ReentrantLock();
+   private DataOutputStream out;
+
+   private ContentDigestIndex(long expectedSize) {
+      digests = new ConcurrentLongLongHashMap(expectedSize);
+   }
+
+   /**
+    * Loads the digests stored in the folder.
+    *
+    * @param folder
+    *           the folder of the index, created if missing
+    * @param expectedSize
+    *           number of digests the index is sized for up front
+    * @return the index, ready for additions
+    * @throws IOException
+    *            if the folder cannot be created or written
+    */
+   public static ContentDigestIndex open(File folder, long expectedSize) throws IOException {
+      if (!folder.exists() && !folder.mkdirs()) {
+         throw new IOException("Couldn't create the digest folder: " + folder.getAbsolutePath());
+      }
+      ContentDigestIndex index = new ContentDigestIndex(expectedSize);
+      File file = new File(folder, DIGEST_FILE);
+      index.load(file);
+      index.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), IO_BUFFER_SIZE));
+      logger.info("Loaded content digests of {} pages from {}", index.digests.size(), folder.getAbsolutePath());
+      return index;
+   }
+
+   /**
+    * Adds the digest of a page unless another page with the same content was added before.
+    *
+    * @param itemId
+    *           id of the page's item, which owns the digest if it is new
+    * @return true if the digest was added or belongs to the same item already, false if the page is a duplicate of another item
+    */
+   public boolean add(long digest, long itemId) {
+      if (!digests.putIfAbsent(digest, itemId)) {
+         // Digests are never removed, so the owner is there
+         return digests.get(digest, itemId) == itemId;
+      }
+      writeLock.lock();
+      try {
+         out.writeLong(digest);
+         out.writeLong(itemId);
+      } catch (IOException e) {
+         logger.error("Cannot write to the digest file", e);
+      } finally {
+         writeLock.unlock();
+      }
+      return true;
+   }
+
+   public boolean contains(long digest) {
+      return digests.containsKey(digest);
+   }
+
+   public long size() {
+      return digests.size();
+   }
+
+   public void close() throws IOException {
+      writeLock.lock();
+      try {
+         out.close();
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   /**
+    * Reads the digests of the file. A record cut short by a crash is truncated away, so the records appended after it stay aligned.
+    */
+   private void load(File file) throws IOException {
+      if (!file.exists()) {
+         return;
+      }
+      long length = file.length();
+      if (length % RECORD_SIZE != 0) {
+         logger.warn("Digest file {} ends with an incomplete record, truncating it", file.getAbsolutePath());
+         try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - length % RECORD_SIZE);
+         }
+      }
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+      try {
+         while (true) {
+            long digest = in.readLong();
+            digests.putIfAbsent(digest, in.readLong());
+         }
+      } catch (EOFException e) {
+         // End of file
+      } finally {
+         in.close();
+      }
+   }
+}
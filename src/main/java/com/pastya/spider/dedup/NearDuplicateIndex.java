@@ -0,0 +1,140 @@
+package com.pastya.spider.dedup;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of {@link SimHash} fingerprints answering whether a fingerprint within a given Hamming distance was added before.
+ *
+ * <p>
+ * Fingerprints are split into maxDistance + 1 bands of consecutive bits. Two fingerprints differing in at most maxDistance bits have at least one band in
+ * common, so each band has its own table of fingerprints keyed by the bits of that band, and a lookup only compares the fingerprints of one bucket per
+ * band. With the default distance of 3 the bands are 16 bits wide: at ten million fingerprints a lookup compares about 600 of them, a few microseconds.
+ * </p>
+ *
+ * <p>
+ * A fingerprint costs 8 bytes per band. Lookups share a read lock, additions take the write lock.
+ * </p>
+ */
+public class NearDuplicateIndex {
+
+   /**
+    * Largest supported distance, the bands of bigger distances are too narrow to keep buckets small.
+    */
+   public static final int MAX_DISTANCE = 7;
+
+   private static final int MAX_BUCKET_BITS = 16;
+   private static final int INITIAL_BUCKET_SIZE = 4;
+
+   private final int maxDistance;
+   private final int[] bandShifts;
+   private final long[] bandMasks;
+   private final int bucketMask;
+   private final long[][][] buckets;
+   private final int[][] bucketSizes;
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private long size;
+
+   /**
+    * @param maxDistance
+    *           fingerprints differing in at most this many bits are near-duplicates, between 0 and {@link #MAX_DISTANCE}
+    */
+   public NearDuplicateIndex(int maxDistance) {
+      if (maxDistance < 0 || maxDistance > MAX_DISTANCE) {
+         throw new IllegalArgumentException("Distance should be between 0 and " + MAX_DISTANCE + ": " + maxDistance);
+      }
+      this.maxDistance = maxDistance;
+      int bands = maxDistance + 1;
+      bandShifts = new int[bands];
+      bandMasks = new long[bands];
+      int widest = 0;
+      for (int band = 0; band < bands; band++) {
+         int start = band * 64 / bands;
+         int width = (band + 1) * 64 / bands - start;
+         bandShifts[band] = start;
+         bandMasks[band] = width == 64 ? -1L : (1L << width) - 1;
+         widest = Math.max(widest, width);
+      }
+      int bucketBits = Math.min(widest, MAX_BUCKET_BITS);
+      bucketMask = (1 << bucketBits) - 1;
+      buckets = new long[bands][1 << bucketBits][];
+      bucketSizes = new int[bands][1 << bucketBits];
+   }
+
+   /**
+    * @return true if a fingerprint within maxDistance bits of the given one was added
+    */
+   public boolean containsNear(long simHash) {
+      lock.readLock().lock();
+      try {
+         return findNear(simHash);
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Adds the fingerprint unless a near-duplicate of it was added before. Checking and adding is atomic, so of two near-duplicate pages parsed at the same
+    * time only one is added.
+    *
+    * @return true if the fingerprint was added, false if it is a near-duplicate
+    */
+   public boolean add(long simHash) {
+      lock.writeLock().lock();
+      try {
+         if (findNear(simHash)) {
+            return false;
+         }
+         for (int band = 0; band < bandShifts.length; band++) {
+            int bucket = bucketOf(simHash, band);
+            long[] values = buckets[band][bucket];
+            int count = bucketSizes[band][bucket];
+            if (values == null) {
+               values = new long[INITIAL_BUCKET_SIZE];
+               buckets[band][bucket] = values;
+            } else if (count == values.length) {
+               values = Arrays.copyOf(values, count * 2);
+               buckets[band][bucket] = values;
+            }
+            values[count] = simHash;
+            bucketSizes[band][bucket] = count + 1;
+         }
+         size++;
+         return true;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * @return number of fingerprints added
+    */
+   public long size() {
+      lock.readLock().lock();
+      try {
+         return size;
+      } finally {
+         lock.readLock().unlock();
+      }
+   }
+
+   private boolean findNear(long simHash) {
+      for (int band = 0; band < bandShifts.length; band++) {
+         int bucket = bucketOf(simHash, band);
+         long[] values = buckets[band][bucket];
+         int count = bucketSizes[band][bucket];
+         for (int i = 0; i < count; i++) {
+            if (Long.bitCount(values[i] ^ simHash) <= maxDistance) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   private int bucketOf(long simHash, int band) {
+      long key = (simHash >>> bandShifts[band]) & bandMasks[band];
+      // Bands wider than the table are folded, the bits compared afterwards sort out the collisions
+      return (int) (key ^ (key >>> 16) ^ (key >>> 32) ^ (key >>> 48)) & bucketMask;
+   }
+}
@@ -0,0 +1,206 @@
+package com.pastya.spider.dedup;
+
+/**
+ * 64 bit SimHash fingerprints of page text, as described by Charikar and used for near-duplicate detection by Manku, Jain and Das Sarma.
+ *
+ * <p>
+ * The features of a text are its pairs of consecutive words, lowercased. Each feature is hashed to 64 bits and every bit of the fingerprint is set if
+ * more features have it set than not. Texts sharing most of their features get fingerprints which differ in a few bits only, see
+ * {@link #distance(long, long)}.
+ * </p>
+ *
+ * <p>
+ * Words are hashed as they are read, nothing is allocated but the bit counters. The bits of a feature are counted eight at a time, in the byte lanes of
+ * eight longs which are added up every {@link #LANE_CAPACITY} features.
+ * </p>
+ */
+public final class SimHash {
+
+   private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+   private static final int MAX_ENTITY_LENGTH = 10;
+   private static final long LOW_BIT_OF_BYTES = 0x0101010101010101L;
+   private static final int LANE_CAPACITY = 255;
+
+   private SimHash() {
+   }
+
+   /**
+    * @return the fingerprint of the text, 0 if it has no words
+    */
+   public static long ofText(CharSequence text) {
+      return compute(text, false);
+   }
+
+   /**
+    * Fingerprint of the text of an HTML document. Tags, comments, entities and the content of script and style elements are skipped, so pages sharing a
+    * template but not their text are told apart.
+    *
+    * @return the fingerprint of the text, 0 if it has no words
+    */
+   public static long ofHtml(CharSequence html) {
+      return compute(html, true);
+   }
+
+   /**
+    * @return number of bits in which the fingerprints differ
+    */
+   public static int distance(long a, long b) {
+      return Long.bitCount(a ^ b);
+   }
+
+   private static long compute(CharSequence text, boolean markup) {
+      int[] counts = new int[64];
+      long[] lanes = new long[8];
+      int inLanes = 0;
+      int length = text.length();
+      long word = FNV_OFFSET_BASIS;
+      int wordLength = 0;
+      long previous = 0;
+      boolean hasPrevious = false;
+      int features = 0;
+      for (int i = 0; i <= length; i++) {
+         char c = i < length ? text.charAt(i) : ' ';
+         if (Character.isLetterOrDigit(c)) {
+            word = (word ^ Character.toLowerCase(c)) * FNV_PRIME;
+            wordLength++;
+            continue;
+         }
+         if (wordLength > 0) {
+            long hash = mix(word);
+            if (hasPrevious) {
+               addFeature(lanes, mix(previous * 31 + hash));
+               features++;
+               if (++inLanes == LANE_CAPACITY) {
+                  flush(lanes, counts);
+                  inLanes = 0;
+               }
+            }
+            previous = hash;
+            hasPrevious = true;
+            word = FNV_OFFSET_BASIS;
+            wordLength = 0;
+         }
+         if (markup && c == '<') {
+            i = skipTag(text, i);
+         } else if (markup && c == '&') {
+            i = skipEntity(text, i);
+         }
+      }
+      if (features == 0) {
+         if (!hasPrevious) {
+            return 0;
+         }
+         // A single word is its own feature
+         addFeature(lanes, previous);
+         features = 1;
+      }
+      flush(lanes, counts);
+      long simHash = 0;
+      for (int bit = 0; bit < 64; bit++) {
+         if (2 * counts[bit] > features) {
+            simHash |= 1L << bit;
+         }
+      }
+      return simHash;
+   }
+
+   /**
+    * Counts the set bits of the feature, a bit of the fingerprint is set if more than half of the features have it. Lane k of the byte j counts the bit
+    * 8 * j + k.
+    */
+   private static void addFeature(long[] lanes, long hash) {
+      for (int k = 0; k < 8; k++) {
+         lanes[k] += (hash >>> k) & LOW_BIT_OF_BYTES;
+      }
+   }
+
+   private static void flush(long[] lanes, int[] counts) {
+      for (int k = 0; k < 8; k++) {
+         for (int j = 0; j < 8; j++) {
+            counts[8 * j + k] += (int) (lanes[k] >>> (8 * j)) & 0xFF;
+         }
+         lanes[k] = 0;
+      }
+   }
+
+   /**
+    * @return the position of the end of the tag, comment, script or style element starting at the given "<"
+    */
+   private static int skipTag(CharSequence text, int start) {
+      if (regionMatches(text, start + 1, "!--")) {
+         int end = indexOf(text, "-->", start + 4);
+         return end < 0 ? text.length() : end + 2;
+      }
+      String element = null;
+      if (isElement(text, start + 1, "script")) {
+         element = "</script";
+      } else if (isElement(text, start + 1, "style")) {
+         element = "</style";
+      }
+      int from = start + 1;
+      if (element != null) {
+         from = indexOf(text, element, from);
+         if (from < 0) {
+            return text.length();
+         }
+      }
+      int end = indexOf(text, ">", from);
+      return end < 0 ? text.length() : end;
+   }
+
+   /**
+    * @return the position of the ";" ending the entity starting at the given "&", or start if it is not an entity
+    */
+   private static int skipEntity(CharSequence text, int start) {
+      int end = Math.min(text.length(), start + MAX_ENTITY_LENGTH);
+      for (int i = start + 1; i < end; i++) {
+         char c = text.charAt(i);
+         if (c == ';') {
+            return i > start + 1 ? i : start;
+         }
+         if (!Character.isLetterOrDigit(c) && c != '#') {
+            return start;
+         }
+      }
+      return start;
+   }
+
+   private static boolean isElement(CharSequence text, int start, String name) {
+      int end = start + name.length();
+      return regionMatches(text, start, name) && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+   }
+
+   private static boolean regionMatches(CharSequence text, int start, String lowerCase) {
+      if (start + lowerCase.length() > text.length()) {
+         return false;
+      }
+      for (int i = 0; i < lowerCase.length(); i++) {
+         if (Character.toLowerCase(text.charAt(start + i)) != lowerCase.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static int indexOf(CharSequence text, String lowerCase, int from) {
+      for (int i = from; i + lowerCase.length() <= text.length(); i++) {
+         if (regionMatches(text, i, lowerCase)) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Finalizer of MurmurHash3, spreads the bits of the word hashes.
+    */
+   private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+}
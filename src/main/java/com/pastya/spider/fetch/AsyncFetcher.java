@@ -0,0 +1,324 @@
+package com.pastya.spider.fetch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.metadata.HttpHeaders;
+import com.pastya.spider.metrics.CrawlMetrics;
+import com.pastya.spider.utils.UrlHelper;
+
+/**
+ * Non-blocking alternative to {@link Fetcher}.
+ *
+ * <p>
+ * Requests are driven by an NIO reactor with a few I/O threads, so thousands of connections can be open at once without a thread each. At most
+ * maxAsyncFetches fetches are in flight: {@link #fetchPage(FetchItem)} blocks its caller while that many are running, which pushes back on whatever pulls
+ * items from the {@link FetchItemQueue}.
+ * </p>
+ *
+ * <p>
+ * Like the Fetcher it sends conditional requests for pages with stored validators, limits the connections per host to maxConnectionsPerHost, only
+ * fetches https pages unless skipHttpsPages is set and reports to the {@link CrawlMetrics}. It also spaces the requests to a host by the politeness delay
+ * with its own {@link HostPoliteness}: a request whose slot is later is dispatched by a timer thread, so neither the caller nor the reactor waits for it.
+ * </p>
+ *
+ * <p>
+ * The body is read into memory while it arrives, up to maxDownloadSize bytes, so the returned FetchResult can be loaded into a Page without blocking.
+ * </p>
+ */
+public class AsyncFetcher {
+
+   protected static final Logger logger = LoggerFactory.getLogger(AsyncFetcher.class);
+
+   protected final CrawlConfig config;
+   protected final PoolingNHttpClientConnectionManager connectionManager;
+   protected final CloseableHttpAsyncClient httpClient;
+   protected final DnsCache dnsCache;
+   protected final HostPoliteness politeness = new HostPoliteness();
+   protected volatile ValidatorStore validatorStore;
+   private final Semaphore inFlight;
+   private final ScheduledExecutorService delayedDispatches = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+         .setNameFormat("Pastya-Bot-Async-Politeness-%d").build());
+
+   /**
+    * @param dnsCache
+    *           the cache of the {@link Fetcher}, shared so both resolve each host once. It is left running by {@link #shutDown()}.
+    */
+   public AsyncFetcher(CrawlConfig config, DnsCache dnsCache) throws IOReactorException {
+      this.config = config;
+      this.dnsCache = dnsCache;
+      CrawlConfig.RunnableInfo runnableInfo = config.getRunnableInfo();
+
+      RequestConfig requestConfig = RequestConfig.custom().setExpectContinueEnabled(false).setCookieSpec(CookieSpecs.STANDARD).setRedirectsEnabled(false)
+            .setSocketTimeout(runnableInfo.getSocketTimeout()).setConnectTimeout(runnableInfo.getConnectionTimeout()).build();
+
+      int ioThreads = runnableInfo.getAsyncIoThreads() > 0 ? runnableInfo.getAsyncIoThreads() : Runtime.getRuntime().availableProcessors();
+      IOReactorConfig reactorConfig = IOReactorConfig.custom().setIoThreadCount(ioThreads).setSoTimeout(runnableInfo.getSocketTimeout())
+            .setConnectTimeout(runnableInfo.getConnectionTimeout()).build();
+
+      // A lookup blocks the thread requesting the connection, the caller or an I/O thread serving a queued request, until the cache answers. Hosts are
+      // prefetched when their urls are queued, so that is mostly a cache hit.
+      RegistryBuilder<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.create();
+      sessionStrategies.register("http", NoopIOSessionStrategy.INSTANCE);
+      if (!config.getUrlFilters().isSkipHttpsPages()) {
+         SSLContext sslContext = SSLContexts.createDefault();
+         SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+         sessionContext.setSessionCacheSize(runnableInfo.getTlsSessionCacheSize());
+         sessionContext.setSessionTimeout(runnableInfo.getTlsSessionTimeout());
+         sessionStrategies.register("https", new SSLIOSessionStrategy(sslContext, SSLIOSessionStrategy.getDefaultHostnameVerifier()));
+      }
+      connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig), ManagedNHttpClientConnectionFactory.INSTANCE,
+            sessionStrategies.build(), dnsCache);
+      connectionManager.setMaxTotal(runnableInfo.getMaxAsyncFetches());
+      connectionManager.setDefaultMaxPerRoute(runnableInfo.getMaxConnectionsPerHost());
+
+      HttpAsyncClientBuilder clientBuilder = HttpAsyncClientBuilder.create();
+      clientBuilder.setDefaultRequestConfig(requestConfig);
+      clientBuilder.setConnectionManager(connectionManager);
+      clientBuilder.setUserAgent(config.getAgentInfo().getUserAgent());
+      clientBuilder.setDefaultHeaders(Collections.singletonList(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, ContentDecoding.ACCEPT_ENCODING)));
+
+      httpClient = clientBuilder.build();
+      httpClient.start();
+      inFlight = new Semaphore(runnableInfo.getMaxAsyncFetches());
+   }
+
+   /**
+    * Starts fetching the page of the given item, once the politeness delay of its host allows.
+    *
+    * @return a future completed with the FetchResult, or completed exceptionally if the request fails or the page is bigger than maxDownloadSize
+    * @throws InterruptedException
+    *            if interrupted while waiting for a free fetch slot
+    */
+   public CompletableFuture<FetchResult> fetchPage(final FetchItem item) throws InterruptedException {
+      final CompletableFuture<FetchResult> future = new CompletableFuture<FetchResult>();
+      final String toFetchURL = item.toUrl;
+      final HttpUriRequest request = newHttpUriRequest(item);
+      final int maxBytes = config.getCrawlerInfo().getMaxDownloadSize();
+
+      inFlight.acquire();
+      Runnable dispatch = new Runnable() {
+         @Override
+         public void run() {
+            try {
+               final LimitedResponseConsumer consumer = new LimitedResponseConsumer(maxBytes, System.nanoTime());
+               httpClient.execute(HttpAsyncMethods.create(request), consumer, new FutureCallback<HttpResponse>() {
+                  public void completed(HttpResponse response) {
+                     inFlight.release();
+                     future.complete(toFetchResult(toFetchURL, response));
+                  }
+
+                  public void failed(Exception e) {
+                     inFlight.release();
+                     if (consumer.response == null) {
+                        // No response at all, a body over the size limit was counted as fetched
+                        CrawlMetrics.fetchFailed();
+                     }
+                     future.completeExceptionally(e);
+                  }
+
+                  public void cancelled() {
+                     inFlight.release();
+                     future.cancel(false);
+                  }
+               });
+            } catch (RuntimeException e) {
+               // The client refused the request, for example because it was shut down
+               inFlight.release();
+               future.completeExceptionally(e);
+            }
+         }
+      };
+
+      // The slot of the host is reserved now, a fetch due later keeps its in-flight permit while the timer holds it
+      long delay = politeness.reserve(item.getQueueKey(), config.getCrawlerInfo().getPolitenessDelay());
+      if (delay == 0) {
+         dispatch.run();
+      } else {
+         try {
+            delayedDispatches.schedule(dispatch, delay, TimeUnit.MILLISECONDS);
+         } catch (RejectedExecutionException e) {
+            inFlight.release();
+            future.completeExceptionally(e);
+         }
+      }
+      return future;
+   }
+
+   /**
+    * @return number of fetches currently in flight
+    */
+   public int getInFlightCount() {
+      return config.getRunnableInfo().getMaxAsyncFetches() - inFlight.availablePermits();
+   }
+
+   public void shutDown() {
+      // Fetches still waiting for their slot are dispatched to the closed client, which fails them
+      delayedDispatches.shutdown();
+      try {
+         httpClient.close();
+      } catch (IOException e) {
+         logger.warn("Error while closing the async http client", e);
+      }
+   }
+
+   /**
+    * @return the DNS cache used by the connections of this fetcher, shared with the Fetcher
+    */
+   public DnsCache getDnsCache() {
+      return dnsCache;
+   }
+
+   /**
+    * Sets the validators to send with requests for pages fetched before, null to always send unconditional requests.
+    */
+   public void setValidatorStore(ValidatorStore validatorStore) {
+      this.validatorStore = validatorStore;
+   }
+
+   /**
+    * Creates the request for the given item. If the page was fetched before, it is made conditional on its stored ETag and Last-Modified.
+    *
+    * @param item
+    *           the item to be fetched
+    * @return the HttpUriRequest for the given item
+    */
+   protected HttpUriRequest newHttpUriRequest(FetchItem item) {
+      HttpUriRequest request = newHttpUriRequest(item.toUrl);
+      ValidatorStore store = validatorStore;
+      ValidatorStore.Validators validators = store == null ? null : store.get(item.getItemId());
+      if (validators != null) {
+         if (!validators.getEtag().isEmpty()) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, validators.getEtag());
+         }
+         if (!validators.getLastModified().isEmpty()) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified());
+         }
+      }
+      return request;
+   }
+
+   /**
+    * Creates a new HttpUriRequest for the given url.
+    *
+    * @param url
+    *           the url to be fetched
+    * @return the HttpUriRequest for the given url
+    */
+   protected HttpUriRequest newHttpUriRequest(String url) {
+      return new HttpGet(url);
+   }
+
+   private FetchResult toFetchResult(String toFetchURL, HttpResponse response) {
+      FetchResult fetchResult = new FetchResult();
+      int statusCode = response.getStatusLine().getStatusCode();
+      fetchResult.setStatusCode(statusCode);
+      fetchResult.setEntity(response.getEntity());
+      fetchResult.setResponseHeaders(response.getAllHeaders());
+      if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY || statusCode == HttpStatus.SC_MULTIPLE_CHOICES
+            || statusCode == HttpStatus.SC_SEE_OTHER || statusCode == HttpStatus.SC_TEMPORARY_REDIRECT || statusCode == 308) {
+         Header header = response.getFirstHeader("Location");
+         if (header != null) {
+            fetchResult.setMovedToUrl(UrlHelper.getPath(UrlHelper.getDomain(toFetchURL) + header.getValue()));
+         }
+      } else if (statusCode >= 200 && statusCode <= 299) {
+         fetchResult.setFetchedUrl(toFetchURL);
+      }
+      return fetchResult;
+   }
+
+   /**
+    * Collects the body as it arrives and fails the exchange as soon as it grows beyond maxBytes. The fetch latency is recorded when the response head
+    * arrives, as the Fetcher does.
+    */
+   private static class LimitedResponseConsumer extends AsyncByteConsumer<HttpResponse> {
+      private final int maxBytes;
+      private final long start;
+      private HttpResponse response;
+      private ByteArrayOutputStream body;
+
+      LimitedResponseConsumer(int maxBytes, long start) {
+         this.maxBytes = maxBytes;
+         this.start = start;
+      }
+
+      @Override
+      protected void onResponseReceived(HttpResponse response) throws IOException {
+         this.response = response;
+         CrawlMetrics.fetched(response.getStatusLine().getStatusCode(), System.nanoTime() - start);
+         long length = response.getEntity() == null ? -1 : response.getEntity().getContentLength();
+         if (length > maxBytes) {
+            throw new IOException(String.format("Page bigger than the configured maximum download size %d", maxBytes));
+         }
+         body = new ByteArrayOutputStream(length > 0 ? (int) length : 8192);
+      }
+
+      @Override
+      protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
+         if (body.size() + buf.remaining() > maxBytes) {
+            throw new IOException(String.format("Page bigger than the configured maximum download size %d", maxBytes));
+         }
+         if (buf.hasArray()) {
+            body.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+         } else {
+            while (buf.hasRemaining()) {
+               body.write(buf.get());
+            }
+         }
+      }
+
+      @Override
+      protected HttpResponse buildResult(HttpContext context) {
+         if (response.getEntity() != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(body.toByteArray());
+            entity.setContentType(response.getEntity().getContentType());
+            entity.setContentEncoding(response.getEntity().getContentEncoding());
+            response.setEntity(entity);
+         }
+         return response;
+      }
+   }
+}
@@ -4,15 +4,44 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
+/**
+ * Closes expired and idle pooled connections and resizes the pool to the number of hosts being crawled, so every active host can keep a connection alive
+ * instead of evicting the connections of other hosts.
+ */
 public class ConnectionMonitorThread extends Thread {
 
    private final PoolingHttpClientConnectionManager connMgr;
+   private final long idleTimeoutMillis;
+   private final HostPoliteness activeHosts;
+   private final int minTotal;
+   private final int maxTotal;
    private volatile boolean shutdown;
 
    public ConnectionMonitorThread(PoolingHttpClientConnectionManager connMgr) {
+      this(connMgr, 30000, null, 0, 0);
+   }
+
+   /**
+    * @param connMgr
+    *           the pool to watch
+    * @param idleTimeoutMillis
+    *           connections idle for longer are closed
+    * @param activeHosts
+    *           tracks the hosts fetched recently, null to keep the pool size
+    * @param minTotal
+    *           lower bound of the pool size
+    * @param maxTotal
+    *           upper bound of the pool size
+    */
+   public ConnectionMonitorThread(PoolingHttpClientConnectionManager connMgr, long idleTimeoutMillis, HostPoliteness activeHosts, int minTotal,
+         int maxTotal) {
        setDaemon(true);
        setName("Pastya-Bot-Connection-Mgr-Thread");
        this.connMgr = connMgr;
+       this.idleTimeoutMillis = idleTimeoutMillis;
+       this.activeHosts = activeHosts;
+       this.minTotal = minTotal;
+       this.maxTotal = maxTotal;
    }
 
    @Override
@@ -23,8 +52,14 @@ public class ConnectionMonitorThread extends Thread {
                wait(5000);
                // Close expired connections
                connMgr.closeExpiredConnections();
-               // Optionally, close connections that have been idle longer than 30 sec
-               connMgr.closeIdleConnections(30, TimeUnit.SECONDS);
+               // Close connections idle for longer than the keep alive timeout
+               connMgr.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+               if (activeHosts != null) {
+                  int total = Math.min(maxTotal, Math.max(minTotal, activeHosts.getHostCount()));
+                  if (total != connMgr.getMaxTotal()) {
+                     connMgr.setMaxTotal(total);
+                  }
+               }
             }
          }
       } catch (InterruptedException ignored) {
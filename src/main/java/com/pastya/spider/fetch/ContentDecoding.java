@@ -0,0 +1,225 @@
+package com.pastya.spider.fetch;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.brotli.dec.BrotliInputStream;
+
+/**
+ * Content-Encoding negotiation and streaming decoding of fetched bodies.
+ *
+ * <p>
+ * The fetchers advertise {@link #ACCEPT_ENCODING} and leave the body compressed; {@link com.pastya.spider.crawl.Page} decodes it while reading, so the
+ * compressed bytes are never buffered as a whole. {@link #decode(InputStream, String, int)} fails once more than maxBytes compressed bytes are read, the
+ * caller bounds the decoded bytes, so a small response cannot expand into an unbounded page.
+ * </p>
+ */
+public final class ContentDecoding {
+
+   /**
+    * Value of the Accept-Encoding header sent with every request.
+    */
+   public static final String ACCEPT_ENCODING = "gzip, deflate, br";
+
+   private static final int BUFFER_SIZE = 8192;
+
+   /**
+    * The supported encodings, each with the number of bytes received and decoded with it.
+    */
+   public enum Encoding {
+      IDENTITY, GZIP, DEFLATE, BROTLI;
+
+      private final LongAdder receivedBytes = new LongAdder();
+      private final LongAdder decodedBytes = new LongAdder();
+
+      /**
+       * @return the encoding named by a Content-Encoding header value, or null if it is not supported
+       */
+      public static Encoding of(String contentEncoding) {
+         if (contentEncoding == null) {
+            return IDENTITY;
+         }
+         String name = contentEncoding.trim().toLowerCase();
+         if (name.isEmpty() || name.equals("identity")) {
+            return IDENTITY;
+         } else if (name.equals("gzip") || name.equals("x-gzip")) {
+            return GZIP;
+         } else if (name.equals("deflate")) {
+            return DEFLATE;
+         } else if (name.equals("br")) {
+            return BROTLI;
+         }
+         return null;
+      }
+
+      public long getReceivedBytes() {
+         return receivedBytes.sum();
+      }
+
+      public long getDecodedBytes() {
+         return decodedBytes.sum();
+      }
+   }
+
+   private ContentDecoding() {
+   }
+
+   /**
+    * Wraps the raw body in a decoder for its Content-Encoding.
+    *
+    * @param raw
+    *           the body as received
+    * @param contentEncoding
+    *           the Content-Encoding header value, may be null
+    * @param maxBytes
+    *           the maximum number of bytes to read from the raw body
+    * @return the decoding stream. Call {@link DecodingStream#finish(long)} with the number of decoded bytes once the body is read.
+    * @throws IOException
+    *            if the encoding is not supported or the body does not start like one of its kind
+    */
+   public static DecodingStream decode(InputStream raw, String contentEncoding, int maxBytes) throws IOException {
+      Encoding encoding = Encoding.of(contentEncoding);
+      if (encoding == null) {
+         throw new IOException("Unsupported content encoding: " + contentEncoding);
+      }
+      LimitedInputStream received = new LimitedInputStream(raw, maxBytes);
+      InputStream decoded;
+      switch (encoding) {
+      case GZIP:
+         decoded = new GZIPInputStream(received, BUFFER_SIZE);
+         break;
+      case DEFLATE:
+         decoded = inflate(received);
+         break;
+      case BROTLI:
+         decoded = new BrotliInputStream(received);
+         break;
+      default:
+         decoded = received;
+      }
+      return new DecodingStream(decoded, received, encoding);
+   }
+
+   /**
+    * @return a one line summary of the bytes received and decoded per encoding, for example "gzip: 1048576 -> 6291456 bytes (6.0x)"
+    */
+   public static String summary() {
+      StringBuilder builder = new StringBuilder();
+      for (Encoding encoding : Encoding.values()) {
+         long received = encoding.getReceivedBytes();
+         if (received == 0) {
+            continue;
+         }
+         if (builder.length() > 0) {
+            builder.append(", ");
+         }
+         builder.append(encoding.name().toLowerCase()).append(": ").append(received).append(" -> ").append(encoding.getDecodedBytes())
+               .append(String.format(" bytes (%.1fx)", (double) encoding.getDecodedBytes() / received));
+      }
+      return builder.length() == 0 ? "nothing received" : builder.toString();
+   }
+
+   /**
+    * "deflate" is meant to be zlib wrapped, but some servers send raw deflate data. The zlib header is recognized by its checksum.
+    */
+   private static InputStream inflate(InputStream in) throws IOException {
+      PushbackInputStream pushback = new PushbackInputStream(in, 2);
+      int first = pushback.read();
+      int second = pushback.read();
+      if (second >= 0) {
+         pushback.unread(second);
+      }
+      if (first >= 0) {
+         pushback.unread(first);
+      }
+      boolean zlib = first >= 0 && second >= 0 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+      return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE);
+   }
+
+   /**
+    * The decoded body. Records the received and decoded byte counts of its encoding when finished.
+    */
+   public static class DecodingStream extends FilterInputStream {
+      private final LimitedInputStream received;
+      private final Encoding encoding;
+
+      DecodingStream(InputStream decoded, LimitedInputStream received, Encoding encoding) {
+         super(decoded);
+         this.received = received;
+         this.encoding = encoding;
+      }
+
+      public Encoding getEncoding() {
+         return encoding;
+      }
+
+      /**
+       * @return number of bytes read from the raw body so far
+       */
+      public long getReceivedBytes() {
+         return received.count;
+      }
+
+      /**
+       * Adds the bytes of this body to the counters of its encoding.
+       *
+       * @param decodedBytes
+       *           number of decoded bytes the caller read
+       */
+      public void finish(long decodedBytes) {
+         encoding.receivedBytes.add(received.count);
+         encoding.decodedBytes.add(decodedBytes);
+      }
+   }
+
+   /**
+    * Counts the bytes read and fails once more than the limit is read.
+    */
+   private static class LimitedInputStream extends FilterInputStream {
+      private final long limit;
+      long count;
+
+      LimitedInputStream(InputStream in, long limit) {
+         super(in);
+         this.limit = limit;
+      }
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            counted(1);
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         if (n > 0) {
+            counted(n);
+         }
+         return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         long skipped = super.skip(n);
+         counted(skipped);
+         return skipped;
+      }
+
+      private void counted(long n) throws IOException {
+         count += n;
+         if (count > limit) {
+            throw new IOException(String.format("Page bigger than the configured maximum download size %d", limit));
+         }
+      }
+   }
+}
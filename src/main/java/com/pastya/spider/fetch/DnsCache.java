@@ -0,0 +1,167 @@
+package com.pastya.spider.fetch;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.conn.DnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Shared, asynchronous DNS cache.
+ *
+ * <p>
+ * Lookups run on a small pool of resolver threads. Concurrent requests for the same host share one lookup. Resolved addresses are kept for the positive TTL,
+ * failures for the negative TTL, so an unknown host is not looked up again for every link pointing to it.
+ * </p>
+ *
+ * <p>
+ * {@link #prefetch(String)} starts a lookup without waiting and is called when a url is queued, so the address is usually known by the time the url is
+ * fetched. The {@link Fetcher} uses this cache as the {@link DnsResolver} of its connection manager, and shares it with the {@link AsyncFetcher}.
+ * </p>
+ */
+public class DnsCache implements DnsResolver {
+
+   protected static final Logger logger = LoggerFactory.getLogger(DnsCache.class);
+
+   /**
+    * Expired entries are purged every this many lookups.
+    */
+   private static final int PURGE_INTERVAL = 10000;
+
+   private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+   private final AtomicInteger lookups = new AtomicInteger();
+   private final ExecutorService resolvers;
+   private final long ttlMillis;
+   private final long negativeTtlMillis;
+
+   /**
+    * @param ttlSeconds
+    *           how long resolved addresses are cached
+    * @param negativeTtlSeconds
+    *           how long failed lookups are cached
+    * @param resolverThreads
+    *           number of threads running lookups
+    */
+   public DnsCache(int ttlSeconds, int negativeTtlSeconds, int resolverThreads) {
+      this.ttlMillis = ttlSeconds * 1000L;
+      this.negativeTtlMillis = negativeTtlSeconds * 1000L;
+      this.resolvers = Executors.newFixedThreadPool(resolverThreads,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Pastya-Bot-Dns-Resolver-%d").build());
+   }
+
+   /**
+    * Starts resolving the host unless it is cached or already being resolved.
+    *
+    * @return the pending or completed addresses of the host
+    */
+   public CompletableFuture<InetAddress[]> prefetch(String host) {
+      if (lookups.incrementAndGet() % PURGE_INTERVAL == 0) {
+         purgeExpired();
+      }
+      String key = host.toLowerCase();
+      long now = System.currentTimeMillis();
+      Entry entry = entries.get(key);
+      while (entry == null || entry.isExpired(now)) {
+         Entry created = new Entry();
+         Entry previous = entry == null ? entries.putIfAbsent(key, created) : (entries.replace(key, entry, created) ? null : entries.get(key));
+         if (previous == null) {
+            startLookup(key, created);
+            return created.addresses;
+         }
+         entry = previous;
+      }
+      return entry.addresses;
+   }
+
+   /**
+    * Resolves the host, waiting for the lookup if it is not cached yet.
+    */
+   public InetAddress[] resolve(String host) throws UnknownHostException {
+      try {
+         return prefetch(host).get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new UnknownHostException("Interrupted while resolving " + host);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof UnknownHostException) {
+            throw (UnknownHostException) e.getCause();
+         }
+         throw new UnknownHostException(host + ": " + e.getCause());
+      }
+   }
+
+   /**
+    * @return true if the last lookup of the host failed and is still cached
+    */
+   public boolean isKnownUnresolvable(String host) {
+      Entry entry = entries.get(host.toLowerCase());
+      return entry != null && entry.addresses.isCompletedExceptionally() && !entry.isExpired(System.currentTimeMillis());
+   }
+
+   public int size() {
+      return entries.size();
+   }
+
+   public void shutDown() {
+      resolvers.shutdownNow();
+   }
+
+   private void startLookup(final String host, final Entry entry) {
+      try {
+         resolvers.execute(new Runnable() {
+            public void run() {
+               try {
+                  InetAddress[] addresses = InetAddress.getAllByName(host);
+                  entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+                  entry.addresses.complete(addresses);
+               } catch (UnknownHostException e) {
+                  logger.debug("Unable to resolve: {}", host);
+                  entry.expiresAt = System.currentTimeMillis() + negativeTtlMillis;
+                  entry.addresses.completeExceptionally(e);
+               } catch (RuntimeException e) {
+                  entry.expiresAt = System.currentTimeMillis() + negativeTtlMillis;
+                  entry.addresses.completeExceptionally(e);
+               }
+            }
+         });
+      } catch (RuntimeException e) {
+         // Rejected after shut down
+         entries.remove(host, entry);
+         entry.addresses.completeExceptionally(e);
+      }
+   }
+
+   private void purgeExpired() {
+      long now = System.currentTimeMillis();
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+         if (it.next().isExpired(now)) {
+            it.remove();
+         }
+      }
+   }
+
+   private static class Entry {
+      final CompletableFuture<InetAddress[]> addresses = new CompletableFuture<InetAddress[]>();
+
+      /**
+       * Set when the lookup completes, an entry in flight never expires.
+       */
+      volatile long expiresAt = Long.MAX_VALUE;
+
+      boolean isExpired(long now) {
+         return now >= expiresAt;
+      }
+   }
+}
@@ -1,18 +1,22 @@
 package com.pastya.spider.fetch;
 
 import java.lang.invoke.MethodHandles;
-import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.UnknownHostException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.pastya.spider.utils.UrlHelper;
+
 public class FetchItem {
 
    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
    
+   private static final int MAX_UTF_LENGTH = 65535;
+
    protected long itemId;
+   protected String queueKey = null;
    protected String toUrl = null;
    protected URL url = null;
    protected String anchor = null;
@@ -33,7 +37,6 @@ public class FetchItem {
    }
 
    public static FetchItem create(String toUrl, int linkDepth) {
-      long itemId;
       URL u = null;
       try {
          u = new URL(toUrl.toString());
@@ -42,24 +45,62 @@ public class FetchItem {
          return null;
       }
       final String protocol = u.getProtocol().toLowerCase();
-      String key;
-      try {
-         final InetAddress addr = InetAddress.getByName(u.getHost());
-         key = addr.getHostAddress();
-      } catch (final UnknownHostException e) {
-         LOG.warn("Unable to resolve: " + u.getHost() + ", skipping.");
-         return null;
-      }
-      long = protocol + "://" + key.toLowerCase();
+      // The host is resolved later by the DnsCache, off the parse path
+      final String key = u.getHost();
+      long itemId = UrlHelper.fingerprint(toUrl);
       FetchItem item = new FetchItem(itemId, toUrl, linkDepth);
+      item.queueKey = protocol + "://" + key.toLowerCase();
       item.setUrl(u);
       return item;
    }
    
+   /**
+    * Recreates an item which was queued before, without resolving its host again.
+    *
+    * @return the FetchItem or null if the url cannot be parsed
+    */
+   static FetchItem restore(long itemId, String toUrl, String queueKey, int linkDepth) {
+      FetchItem item = new FetchItem(itemId, toUrl, linkDepth);
+      try {
+         item.setUrl(new URL(toUrl));
+      } catch (MalformedURLException e) {
+         return null;
+      }
+      item.queueKey = queueKey;
+      return item;
+   }
+
+   /**
+    * @return false if the queue key or the url is too long for the records of the frontier files, which hold strings of at most 65535 bytes of
+    *         modified UTF-8
+    */
+   boolean isWritable() {
+      return isWritable(queueKey) && isWritable(toUrl);
+   }
+
+   private static boolean isWritable(String s) {
+      if (s.length() > MAX_UTF_LENGTH) {
+         return false;
+      }
+      int bytes = 0;
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+      }
+      return bytes <= MAX_UTF_LENGTH;
+   }
+
    public long getItemId() {
       return itemId;
    }
    
+   /**
+    * @return the key of the host queue this item belongs to, protocol and host name. For example: "http://www.example.com"
+    */
+   public String getQueueKey() {
+      return queueKey;
+   }
+
    public URL getUrl() {
       return url;
    }
@@ -1,66 +1,371 @@
 package com.pastya.spider.fetch;
 
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.pastya.spider.utils.ConcurrentLongHashSet;
+import com.pastya.spider.utils.LongSet;
+
+/**
+ * The crawl frontier.
+ *
+ * <p>
+ * Items are kept in one {@link HostQueue} per host. Hosts are spread over a fixed number of shards, each with its own lock and a heap of hosts ordered by the
+ * time their politeness delay ends. A worker only ever receives an item of a host which is allowed to be fetched right now, so a slow host never holds up the
+ * others.
+ * </p>
+ *
+ * <p>
+ * When a {@link FrontierOverflow} is given, at most maxInMemory items are kept in the host queues. Further items are spilled to the overflow and read back
+ * as the host queues drain below half of that bound.
+ * </p>
+ */
 public class FetchItemQueue {
    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-   List<FetchItem> queue = Collections.synchronizedList(new LinkedList<FetchItem>());
-   List<Long> seenPages = Collections.synchronizedList(new LinkedList<Long>());
-   List<Long> pagesInProgess = Collections.synchronizedList(new LinkedList<Long>());
+   /**
+    * Number of independently locked shards the hosts are spread over.
+    */
+   private static final int SHARD_COUNT = 16;
+
+   final Shard[] shards;
+   final FrontierOverflow overflow;
+   final int maxInMemory;
+   private final AtomicBoolean refilling = new AtomicBoolean();
+   private volatile FrontierLog frontierLog;
+   private volatile DnsCache dnsCache;
+
+   /**
+    * Wakes workers blocked in {@link #takePageFetchItem(long, TimeUnit)}. The signal count lets a worker see a signal sent between its last attempt and
+    * the start of its wait, so no wake up is lost.
+    */
+   private final ReentrantLock availableLock = new ReentrantLock();
+   private final Condition available = availableLock.newCondition();
+   private final AtomicLong signalCount = new AtomicLong();
+   private final AtomicInteger waiting = new AtomicInteger();
+   final LongSet seenPages;
+   final ConcurrentLongHashSet pagesInProgess = new ConcurrentLongHashSet();
+   AtomicInteger queueSize = new AtomicInteger();
+   AtomicInteger inMemorySize = new AtomicInteger();
    AtomicInteger inProgress = new AtomicInteger();
-   AtomicLong nextFetchTime = new AtomicLong();
    AtomicInteger exceptionCounter = new AtomicInteger();
    long crawlDelay;
    int maxThreads;
-   private final Object mutex = new Object();
-   private int lastItemId;
-   
+
    public FetchItemQueue(int maxThreads, long crawlDelay) {
+      this(maxThreads, crawlDelay, new ConcurrentLongHashSet(), null, -1);
+   }
+
+   /**
+    * @param seenPages
+    *           the set remembering the ids of all pages ever queued
+    * @param overflow
+    *           the disk overflow for items beyond maxInMemory, or null to keep the whole frontier in memory
+    * @param maxInMemory
+    *           maximum number of items kept in the host queues when an overflow is given
+    */
+   public FetchItemQueue(int maxThreads, long crawlDelay, LongSet seenPages, FrontierOverflow overflow, int maxInMemory) {
       this.maxThreads = maxThreads;
+      this.seenPages = seenPages;
       this.crawlDelay = crawlDelay;
-      setEndTime(System.currentTimeMillis() - crawlDelay);
+      this.overflow = overflow;
+      this.maxInMemory = maxInMemory;
+      this.shards = new Shard[SHARD_COUNT];
+      for (int i = 0; i < SHARD_COUNT; i++) {
+         shards[i] = new Shard();
+      }
    }
 
-   public synchronized int emptyQueue() {
-      int presize = queue.size();
-      queue.clear();
+   public int emptyQueue() {
+      int presize = 0;
+      for (Shard shard : shards) {
+         shard.lock();
+         try {
+            for (HostQueue host : shard.hosts.values()) {
+               presize += host.size();
+               host.items.clear();
+            }
+         } finally {
+            shard.unlock();
+         }
+      }
+      inMemorySize.addAndGet(-presize);
+      if (overflow != null) {
+         try {
+            presize += overflow.size();
+            overflow.clear();
+         } catch (IOException e) {
+            LOG.error("Cannot clear the frontier overflow", e);
+         }
+      }
+      queueSize.set(0);
       seenPages.clear();
       return presize;
    }
 
    public int getQueueSize() {
-      return queue.size();
+      return queueSize.get();
    }
 
    public int getInProgressSize() {
       return inProgress.get();
    }
 
+   public int getHostCount() {
+      int count = 0;
+      for (Shard shard : shards) {
+         shard.lock();
+         try {
+            count += shard.hosts.size();
+         } finally {
+            shard.unlock();
+         }
+      }
+      return count;
+   }
+
    public int incrementExceptionCounter() {
       return exceptionCounter.incrementAndGet();
    }
 
+   /**
+    * Releases the host of the given item and schedules it again once its politeness delay has passed.
+    *
+    * @param item
+    *           the item returned earlier by {@link #getPageFetchItem()}
+    * @param asap
+    *           if true the host is available again immediately, without waiting for the politeness delay
+    */
    public void finishPageFetchItem(FetchItem item, boolean asap) {
       if (item != null) {
          inProgress.decrementAndGet();
          pagesInProgess.remove(item.getItemId());
-         setEndTime(System.currentTimeMillis(), asap);
+         FrontierLog log = frontierLog;
+         if (log != null) {
+            log.finished(item.getItemId());
+         }
+         long now = System.currentTimeMillis();
+         Shard shard = shardFor(item.getQueueKey());
+         shard.lock();
+         try {
+            HostQueue host = shard.hosts.get(item.getQueueKey());
+            if (host != null) {
+               host.inProgress = false;
+               host.nextFetchTime = asap ? now : now + host.crawlDelay;
+               // Empty hosts stay scheduled until their delay ends so the politeness delay is still honoured for newly discovered links
+               shard.schedule(host);
+            }
+         } finally {
+            shard.unlock();
+         }
+         signalAvailable();
       }
    }
 
-   public void addPageFetchItem(FetchItem item) {
-      if (item == null)
-         return;
-      queue.add(item);
+   /**
+    * Sets the politeness delay of a host, for example from the Crawl-delay of its robots.txt. The delay never drops below the default of the queue. It is
+    * remembered after the host queue drains, so it also applies when new links of the host are queued later.
+    *
+    * @param queueKey
+    *           the key of the host, see {@link FetchItem#getQueueKey()}
+    * @param delayMillis
+    *           the delay, or -1 for the default
+    */
+   public void setCrawlDelay(String queueKey, long delayMillis) {
+      long delay = Math.max(crawlDelay, delayMillis);
+      Shard shard = shardFor(queueKey);
+      shard.lock();
+      try {
+         if (delay > crawlDelay) {
+            shard.crawlDelays.put(queueKey, delay);
+         } else {
+            shard.crawlDelays.remove(queueKey);
+         }
+         HostQueue host = shard.hosts.get(queueKey);
+         if (host != null) {
+            host.crawlDelay = delay;
+         }
+      } finally {
+         shard.unlock();
+      }
+   }
+
+   /**
+    * Attaches the write-ahead log which records every following mutation of this queue.
+    */
+   public void setFrontierLog(FrontierLog frontierLog) {
+      this.frontierLog = frontierLog;
+   }
+
+   /**
+    * Sets the cache used to resolve hosts while their items wait in the queue.
+    */
+   public void setDnsCache(DnsCache dnsCache) {
+      this.dnsCache = dnsCache;
+   }
+
+   /**
+    * Remembers the id as seen without queuing it, for example for the target of a redirect.
+    *
+    * @return true if the id was not seen before
+    */
+   public boolean markSeen(long itemId) {
+      boolean added = seenPages.add(itemId);
+      FrontierLog log = frontierLog;
+      if (added && log != null) {
+         log.seen(itemId);
+      }
+      return added;
+   }
+
+   /**
+    * @return true if a page with the given id was queued before
+    */
+   public boolean isSeenBefore(long itemId) {
+      return seenPages.contains(itemId);
+   }
+
+   /**
+    * Queues the item unless a page with the same id was queued before.
+    *
+    * @return true if the item was queued
+    */
+   public boolean addPageFetchItem(FetchItem item) {
+      if (item == null || !seenPages.add(item.getItemId()))
+         return false;
+      FrontierLog log = frontierLog;
+      if (log != null) {
+         log.enqueued(item);
+      }
+      queueSize.incrementAndGet();
+      // Once spilling started everything goes to the overflow until it is drained, so the crawl order is kept
+      if (overflow != null && (inMemorySize.get() >= maxInMemory || !overflow.isEmpty())) {
+         try {
+            overflow.append(item);
+            return true;
+         } catch (IOException e) {
+            LOG.error("Cannot spill FetchItem to the frontier overflow, keeping it in memory: " + item.getToUrl(), e);
+         }
+      }
+      addToMemory(item);
+      return true;
+   }
+
+   /**
+    * Queues the items whose pages were not queued before, taking the lock of each shard once for the whole batch instead of once per item. Meant for
+    * seeding, for example from sitemaps. The items of a host are queued in the order of the list.
+    *
+    * @return number of items queued
+    */
+   public int addPageFetchItems(List<FetchItem> items) {
+      List<FetchItem> added = new ArrayList<FetchItem>(items.size());
+      for (FetchItem item : items) {
+         if (item != null && seenPages.add(item.getItemId())) {
+            added.add(item);
+         }
+      }
+      if (added.isEmpty()) {
+         return 0;
+      }
+      FrontierLog log = frontierLog;
+      if (log != null) {
+         log.enqueued(added);
+      }
+      queueSize.addAndGet(added.size());
+
+      @SuppressWarnings("unchecked")
+      List<FetchItem>[] byShard = new List[SHARD_COUNT];
+      for (FetchItem item : added) {
+         if (overflow != null && (inMemorySize.get() >= maxInMemory || !overflow.isEmpty())) {
+            try {
+               overflow.append(item);
+               continue;
+            } catch (IOException e) {
+               LOG.error("Cannot spill FetchItem to the frontier overflow, keeping it in memory: " + item.getToUrl(), e);
+            }
+         }
+         int index = shardIndex(item.getQueueKey());
+         if (byShard[index] == null) {
+            byShard[index] = new ArrayList<FetchItem>();
+         }
+         byShard[index].add(item);
+         inMemorySize.incrementAndGet();
+      }
+
+      int readyHosts = 0;
+      List<String> newHosts = new ArrayList<String>();
+      for (int i = 0; i < SHARD_COUNT; i++) {
+         if (byShard[i] == null) {
+            continue;
+         }
+         Shard shard = shards[i];
+         shard.lock();
+         try {
+            for (FetchItem item : byShard[i]) {
+               HostQueue host = shard.hostQueue(item.getQueueKey(), crawlDelay);
+               host.add(item);
+               if (host.items.size() == 1 && item.getUrl() != null) {
+                  newHosts.add(item.getUrl().getHost());
+               }
+               if (!host.inProgress && !host.scheduled) {
+                  shard.schedule(host);
+                  readyHosts++;
+               }
+            }
+         } finally {
+            shard.unlock();
+         }
+      }
+      DnsCache cache = dnsCache;
+      if (cache != null) {
+         for (String host : newHosts) {
+            cache.prefetch(host);
+         }
+      }
+      if (readyHosts == 1) {
+         signalAvailable();
+      } else if (readyHosts > 1) {
+         wakeUpAll();
+      }
+      return added.size();
+   }
+
+   private void addToMemory(FetchItem item) {
+      Shard shard = shardFor(item.getQueueKey());
+      boolean firstOfHost;
+      shard.lock();
+      try {
+         HostQueue host = shard.hostQueue(item.getQueueKey(), crawlDelay);
+         host.add(item);
+         firstOfHost = host.items.size() == 1;
+         if (!host.inProgress) {
+            shard.schedule(host);
+         }
+      } finally {
+         shard.unlock();
+      }
+      // Start resolving the host while the item waits, lookups are cached and shared so once per idle host is enough
+      DnsCache cache = dnsCache;
+      if (firstOfHost && cache != null && item.getUrl() != null) {
+         cache.prefetch(item.getUrl().getHost());
+      }
+      inMemorySize.incrementAndGet();
+      signalAvailable();
    }
 
    public void addInProgressPageFetchItem(FetchItem item) {
@@ -69,44 +374,237 @@ public class FetchItemQueue {
       inProgress.incrementAndGet();
    }
 
+   /**
+    * Returns an item of a host whose politeness delay has ended, or null if no such host exists or all workers are busy.
+    *
+    * @return the FetchItem to be fetched or null
+    */
    public FetchItem getPageFetchItem() {
-      if (inProgress.get() >= maxThreads)
+      if (inProgress.incrementAndGet() > maxThreads) {
+         inProgress.decrementAndGet();
          return null;
+      }
+      if (overflow != null && inMemorySize.get() < maxInMemory / 2) {
+         refill();
+      }
       long now = System.currentTimeMillis();
-      if (nextFetchTime.get() > now)
-         return null;
-      FetchItem item = null;
-      if (queue.size() == 0)
-         return null;
+      // Starting at a random shard spreads the workers over the shard locks
+      int start = ThreadLocalRandom.current().nextInt(SHARD_COUNT);
+      for (int i = 0; i < SHARD_COUNT; i++) {
+         Shard shard = shards[(start + i) % SHARD_COUNT];
+         FetchItem item;
+         shard.lock();
+         try {
+            item = shard.poll(now);
+         } finally {
+            shard.unlock();
+         }
+         if (item != null) {
+            queueSize.decrementAndGet();
+            inMemorySize.decrementAndGet();
+            pagesInProgess.add(item.getItemId());
+            FrontierLog log = frontierLog;
+            if (log != null) {
+               log.dequeued(item.getItemId());
+            }
+            return item;
+         }
+      }
+      inProgress.decrementAndGet();
+      return null;
+   }
+
+   /**
+    * Waits until an item of a host whose politeness delay has ended is available. The wait ends as soon as an item is queued, a fetch finishes or the
+    * earliest politeness delay ends, whichever comes first.
+    *
+    * @param timeout
+    *           maximum time to wait
+    * @return the FetchItem to be fetched or null if none became available before the timeout
+    * @throws InterruptedException
+    *            if the calling thread is interrupted while waiting
+    */
+   public FetchItem takePageFetchItem(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+      while (true) {
+         long signals = signalCount.get();
+         FetchItem item = getPageFetchItem();
+         if (item != null) {
+            return item;
+         }
+         long now = System.currentTimeMillis();
+         if (now >= deadline) {
+            return null;
+         }
+         long wakeUp = nextReadyTime();
+         if (wakeUp <= now) {
+            if (inProgress.get() < maxThreads) {
+               // A host became ready since the last attempt
+               continue;
+            }
+            // All workers are busy, only a finishing fetch can help
+            wakeUp = deadline;
+         }
+         wakeUp = Math.min(deadline, wakeUp);
+         availableLock.lockInterruptibly();
+         try {
+            waiting.incrementAndGet();
+            if (signalCount.get() == signals) {
+               available.await(wakeUp - now, TimeUnit.MILLISECONDS);
+            }
+         } finally {
+            waiting.decrementAndGet();
+            availableLock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Wakes all workers waiting for an item, for example on shutdown.
+    */
+   public void wakeUpAll() {
+      signalCount.incrementAndGet();
+      availableLock.lock();
       try {
-         item = queue.remove(0);
-         inProgress.incrementAndGet();
-      } catch (Exception e) {
-         LOG.error("Cannot remove FetchItem from queue or cannot add it to inProgress queue", e);
+         available.signalAll();
+      } finally {
+         availableLock.unlock();
       }
-      return item;
    }
 
-   public synchronized void dump() {
-      LOG.info("  maxThreads    = " + maxThreads);
-      LOG.info("  inProgress    = " + inProgress.get());
-      LOG.info("  crawlDelay    = " + crawlDelay);
-      LOG.info("  nextFetchTime = " + nextFetchTime.get());
-      LOG.info("  now           = " + System.currentTimeMillis());
-      for (int i = 0; i < queue.size(); i++) {
-         FetchItem item = queue.get(i);
-         LOG.info("  " + i + ". " + item.toUrl);
+   /**
+    * Syncs the frontier log and releases the files held by the log and the overflow.
+    */
+   public void close() {
+      if (frontierLog != null) {
+         try {
+            frontierLog.close();
+         } catch (IOException e) {
+            LOG.error("Cannot close the frontier log", e);
+         }
+      }
+      if (overflow != null) {
+         try {
+            overflow.close();
+         } catch (IOException e) {
+            LOG.error("Cannot close the frontier overflow", e);
+         }
       }
    }
 
-   private void setEndTime(long endTime) {
-      setEndTime(endTime, false);
+   /**
+    * Moves the oldest spilled items back into the host queues. Only one thread refills at a time, the others carry on with what is in memory.
+    */
+   private void refill() {
+      if (!refilling.compareAndSet(false, true)) {
+         return;
+      }
+      try {
+         List<FetchItem> batch = new ArrayList<FetchItem>();
+         int consumed = overflow.drainTo(batch, maxInMemory - inMemorySize.get());
+         // Records whose url cannot be parsed any more are dropped by the overflow
+         queueSize.addAndGet(batch.size() - consumed);
+         for (FetchItem item : batch) {
+            addToMemory(item);
+         }
+      } catch (IOException e) {
+         LOG.error("Cannot read FetchItems back from the frontier overflow", e);
+      } finally {
+         refilling.set(false);
+      }
    }
 
-   private void setEndTime(long endTime, boolean asap) {
-      if (!asap)
-         nextFetchTime.set(endTime + crawlDelay);
-      else
-         nextFetchTime.set(endTime);
+   private void signalAvailable() {
+      signalCount.incrementAndGet();
+      if (waiting.get() > 0) {
+         availableLock.lock();
+         try {
+            available.signal();
+         } finally {
+            availableLock.unlock();
+         }
+      }
+   }
+
+   /**
+    * @return the earliest time at which a host of any shard becomes ready
+    */
+   private long nextReadyTime() {
+      long next = Long.MAX_VALUE;
+      for (Shard shard : shards) {
+         shard.lock();
+         try {
+            next = Math.min(next, shard.nextReadyTime());
+         } finally {
+            shard.unlock();
+         }
+      }
+      return next;
+   }
+
+   private Shard shardFor(String queueKey) {
+      return shards[shardIndex(queueKey)];
+   }
+
+   private static int shardIndex(String queueKey) {
+      int h = queueKey.hashCode();
+      h ^= (h >>> 16);
+      return (h & 0x7fffffff) % SHARD_COUNT;
+   }
+
+   /**
+    * The hosts of one shard and the heap of hosts waiting for their politeness delay to end. Guarded by its own lock, which unlike a monitor does not pin
+    * the carrier of a virtual thread.
+    */
+   static class Shard extends ReentrantLock {
+      private static final long serialVersionUID = 1L;
+
+      final Map<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+      final PriorityQueue<HostQueue> readyHosts = new PriorityQueue<HostQueue>(64, HostQueue.BY_NEXT_FETCH_TIME);
+
+      /**
+       * Delays of hosts above the default of the queue. Kept when a drained host queue is dropped.
+       */
+      final Map<String, Long> crawlDelays = new HashMap<String, Long>();
+
+      /**
+       * @return the queue of the host, created with its remembered delay or the given default if missing
+       */
+      HostQueue hostQueue(String key, long defaultDelay) {
+         HostQueue host = hosts.get(key);
+         if (host == null) {
+            Long delay = crawlDelays.get(key);
+            host = new HostQueue(key, delay == null ? defaultDelay : delay);
+            hosts.put(key, host);
+         }
+         return host;
+      }
+
+      void schedule(HostQueue host) {
+         if (!host.scheduled) {
+            host.scheduled = true;
+            readyHosts.add(host);
+         }
+      }
+
+      FetchItem poll(long now) {
+         HostQueue host;
+         while ((host = readyHosts.peek()) != null && host.nextFetchTime <= now) {
+            readyHosts.poll();
+            host.scheduled = false;
+            if (host.isEmpty()) {
+               hosts.remove(host.key);
+               continue;
+            }
+            host.inProgress = true;
+            return host.poll();
+         }
+         return null;
+      }
+
+      long nextReadyTime() {
+         HostQueue host = readyHosts.peek();
+         return host == null ? Long.MAX_VALUE : host.nextFetchTime;
+      }
    }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +29,13 @@ public class FetchResult {
       this.statusCode = statusCode;
   }
 
+  /**
+   * @return true if the server answered a conditional request with 304, the page did not change since it was fetched before
+   */
+  public boolean isNotModified() {
+      return statusCode == HttpStatus.SC_NOT_MODIFIED;
+  }
+
   public HttpEntity getEntity() {
       return entity;
   }
@@ -1,9 +1,13 @@
 package com.pastya.spider.fetch;
 
 import java.io.IOException;
-import java.util.Date;
+import java.util.Collections;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
@@ -12,74 +16,118 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.metadata.HttpHeaders;
+import com.pastya.spider.metrics.CrawlMetrics;
 import com.pastya.spider.utils.UrlHelper;
 
 public class Fetcher {
 
    protected static final Logger logger = LoggerFactory.getLogger(Fetcher.class);
-   protected final Object mutex = new Object();
+   protected final HostPoliteness politeness = new HostPoliteness();
+   protected final DnsCache dnsCache;
+   protected volatile ValidatorStore validatorStore;
    protected PoolingHttpClientConnectionManager connectionManager;
    protected CloseableHttpClient httpClient;
-   protected long lastFetchTime = 0;
    protected ConnectionMonitorThread connectionMonitorThread = null;
    protected CrawlConfig config;
 
    public Fetcher(CrawlConfig config) {
 
       this.config = config;
+      final CrawlConfig.RunnableInfo runnableInfo = config.getRunnableInfo();
+      this.dnsCache = new DnsCache(runnableInfo.getDnsCacheTtl(), runnableInfo.getDnsNegativeCacheTtl(), runnableInfo.getDnsResolverThreads());
       RequestConfig requestConfig = RequestConfig.custom().setExpectContinueEnabled(false).setCookieSpec(CookieSpecs.STANDARD).setRedirectsEnabled(false)
             .setSocketTimeout(config.getRunnableInfo().getSocketTimeout()).setConnectTimeout(config.getRunnableInfo().getConnectionTimeout()).build();
 
       RegistryBuilder<ConnectionSocketFactory> connRegistryBuilder = RegistryBuilder.create();
       connRegistryBuilder.register("http", PlainConnectionSocketFactory.INSTANCE);
+      if (!config.getUrlFilters().isSkipHttpsPages()) {
+         SSLContext sslContext = SSLContexts.createDefault();
+         // Sessions are cached per host and port, so later connections to a host resume the session instead of a full handshake
+         SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+         sessionContext.setSessionCacheSize(runnableInfo.getTlsSessionCacheSize());
+         sessionContext.setSessionTimeout(runnableInfo.getTlsSessionTimeout());
+         connRegistryBuilder.register("https", new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.getDefaultHostnameVerifier()));
+      }
 
       Registry<ConnectionSocketFactory> connRegistry = connRegistryBuilder.build();
-      connectionManager = new PoolingHttpClientConnectionManager(connRegistry);
+      connectionManager = new PoolingHttpClientConnectionManager(connRegistry, dnsCache);
+      // Every crawler may hold a connection, which matters once maxThreads is raised for virtual threads. The monitor grows the pool from this size
+      // with the number of active hosts, up to maxConnections, and never shrinks it below.
+      final int maxTotal = Math.min(runnableInfo.getMaxConnections(), Math.max(connectionManager.getMaxTotal(), runnableInfo.getMaxThreads()));
+      connectionManager.setMaxTotal(maxTotal);
+      connectionManager.setDefaultMaxPerRoute(runnableInfo.getMaxConnectionsPerHost());
 
       HttpClientBuilder clientBuilder = HttpClientBuilder.create();
       clientBuilder.setDefaultRequestConfig(requestConfig);
       clientBuilder.setConnectionManager(connectionManager);
+      clientBuilder.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+         public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            // Honor a shorter Keep-Alive timeout sent by the server, otherwise keep the connection for the configured time
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, runnableInfo.getKeepAliveTimeout()) : runnableInfo.getKeepAliveTimeout();
+         }
+      });
       clientBuilder.setUserAgent(config.getAgentInfo().getUserAgent());
+      // Bodies stay compressed until Page decodes them, so the download size limit applies to the bytes on the wire
+      clientBuilder.disableContentCompression();
+      clientBuilder.setDefaultHeaders(Collections.singletonList(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, ContentDecoding.ACCEPT_ENCODING)));
 
       httpClient = clientBuilder.build();
 
       if (connectionMonitorThread == null) {
-         connectionMonitorThread = new ConnectionMonitorThread(connectionManager);
+         connectionMonitorThread = new ConnectionMonitorThread(connectionManager, runnableInfo.getKeepAliveTimeout(), politeness, maxTotal,
+               runnableInfo.getMaxConnections());
       }
       connectionMonitorThread.start();
    }
 
    public FetchResult fetchPage(FetchItem item) throws InterruptedException, IOException {
+      return fetchPage(item, config.getCrawlerInfo().getMaxDownloadSize());
+   }
+
+   /**
+    * Fetches the item, refusing responses announced bigger than the given size instead of the configured maximum download size.
+    */
+   public FetchResult fetchPage(FetchItem item, long maxDownloadSize) throws InterruptedException, IOException {
       // Getting URL, setting headers & content
       FetchResult fetchResult = new FetchResult();
       String toFetchURL = item.toUrl;
       HttpUriRequest request = null;
       try {
-         request = newHttpUriRequest(toFetchURL);
-         // Applying Politeness delay
-         synchronized (mutex) {
-            long now = (new Date()).getTime();
-            if ((now - lastFetchTime) < config.getCrawlerInfo().getPolitenessDelay()) {
-               Thread.sleep(config.getCrawlerInfo().getPolitenessDelay() - (now - lastFetchTime));
-            }
-            lastFetchTime = (new Date()).getTime();
+         request = newHttpUriRequest(item);
+         // Applying Politeness delay of the host, without blocking fetches of other hosts
+         politeness.acquire(item.getQueueKey(), config.getCrawlerInfo().getPolitenessDelay());
+
+         long start = System.nanoTime();
+         CloseableHttpResponse response;
+         try {
+            response = httpClient.execute(request);
+         } catch (IOException e) {
+            CrawlMetrics.fetchFailed();
+            throw e;
          }
-
-         CloseableHttpResponse response = httpClient.execute(request);
          fetchResult.setEntity(response.getEntity());
          fetchResult.setResponseHeaders(response.getAllHeaders());
 
          // Setting HttpStatus
          int statusCode = response.getStatusLine().getStatusCode();
+         CrawlMetrics.fetched(statusCode, System.nanoTime() - start);
 
          // If Redirect ( 3xx )
          if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY || statusCode == HttpStatus.SC_MULTIPLE_CHOICES
@@ -111,10 +159,10 @@ public class Fetcher {
                      size = Integer.parseInt(length.getValue());
                   }
                }
-               if (size > config.getCrawlerInfo().getMaxDownloadSize()) {
+               if (size > maxDownloadSize) {
                   response.close();
                   throw new RuntimeException(
-                        String.format("Page bigger than the configured maximum download size {}", config.getCrawlerInfo().getMaxDownloadSize()));
+                        String.format("Page bigger than the configured maximum download size {}", maxDownloadSize));
                }
             }
          }
@@ -134,6 +182,44 @@ public class Fetcher {
          connectionManager.shutdown();
          connectionMonitorThread.shutdown();
       }
+      dnsCache.shutDown();
+      logger.info("Content received per encoding: {}", ContentDecoding.summary());
+   }
+
+   /**
+    * @return the DNS cache used by the connections of this fetcher
+    */
+   public DnsCache getDnsCache() {
+      return dnsCache;
+   }
+
+   /**
+    * Sets the validators to send with requests for pages fetched before, null to always send unconditional requests.
+    */
+   public void setValidatorStore(ValidatorStore validatorStore) {
+      this.validatorStore = validatorStore;
+   }
+
+   /**
+    * Creates the request for the given item. If the page was fetched before, it is made conditional on its stored ETag and Last-Modified.
+    *
+    * @param item
+    *           the item to be fetched
+    * @return the HttpUriRequest for the given item
+    */
+   protected HttpUriRequest newHttpUriRequest(FetchItem item) {
+      HttpUriRequest request = newHttpUriRequest(item.toUrl);
+      ValidatorStore store = validatorStore;
+      ValidatorStore.Validators validators = store == null ? null : store.get(item.getItemId());
+      if (validators != null) {
+         if (!validators.getEtag().isEmpty()) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, validators.getEtag());
+         }
+         if (!validators.getLastModified().isEmpty()) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified());
+         }
+      }
+      return request;
    }
 
    /**
@@ -0,0 +1,498 @@
+package com.pastya.spider.fetch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pastya.spider.utils.ConcurrentLongHashSet;
+
+/**
+ * Write-ahead log of the mutations of a {@link FetchItemQueue}, used to resume a stopped or crashed crawl.
+ *
+ * <p>
+ * Every enqueue, dequeue, finish and seen event is appended to the current log file. Appends only go to an in-memory buffer; every syncDelay milliseconds the
+ * sync thread swaps it for an empty one and writes and fsyncs it without holding the lock, so many events share one fsync (group commit) and crawler
+ * threads never wait for the disk. A crash loses at most the events of the last syncDelay milliseconds.
+ * </p>
+ *
+ * <p>
+ * Every checkpointInterval events the sync thread rotates the log and the closed files are compacted in the background into a checkpoint holding only the seen ids and
+ * the items which were never finished. On restart the newest checkpoint and the logs written after it are replayed into the queue. Items which were in
+ * progress when the crawl stopped are queued again.
+ * </p>
+ */
+public class FrontierLog implements Closeable {
+
+   protected static final Logger logger = LoggerFactory.getLogger(FrontierLog.class);
+
+   private static final byte ENQUEUE = 1;
+   private static final byte DEQUEUE = 2;
+   private static final byte FINISH = 3;
+   private static final byte SEEN = 4;
+
+   private static final String LOG_PREFIX = "wal-";
+   private static final String CHECKPOINT_PREFIX = "checkpoint-";
+   private static final String TMP_SUFFIX = ".tmp";
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+   private final File folder;
+   private final long syncDelay;
+   private final long checkpointInterval;
+   private final ReentrantLock writeLock = new ReentrantLock();
+   private final Thread syncThread;
+
+   /**
+    * Written by crawler threads while holding the write lock.
+    */
+   private ByteArrayOutputStream buffer = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+   private DataOutputStream out = new DataOutputStream(buffer);
+
+   /**
+    * The buffer swapped out by the last sync, only used by the sync thread.
+    */
+   private ByteArrayOutputStream spareBuffer = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+   private DataOutputStream spareOut = new DataOutputStream(spareBuffer);
+
+   /**
+    * Only used by the sync thread, and by close once the sync thread has stopped.
+    */
+   private FileOutputStream logFile;
+   private long logSequence;
+
+   private long eventsSinceCheckpoint;
+   private volatile boolean rotationRequested;
+   private volatile boolean compacting;
+   private volatile boolean closed;
+
+   private FrontierLog(File folder, long syncDelay, long checkpointInterval, long lastSequence) throws IOException {
+      this.folder = folder;
+      this.syncDelay = syncDelay;
+      this.checkpointInterval = checkpointInterval;
+      this.logSequence = lastSequence;
+      openNextLog();
+      syncThread = new Thread(new Runnable() {
+         public void run() {
+            syncLoop();
+         }
+      }, "Pastya-Bot-Frontier-Log-Sync");
+      syncThread.setDaemon(true);
+      syncThread.start();
+   }
+
+   /**
+    * Replays the log found in the folder into the queue, then opens a new log and attaches it to the queue.
+    *
+    * @param folder
+    *           the folder of the log, created if missing
+    * @param queue
+    *           the empty queue to restore
+    * @param syncDelay
+    *           milliseconds between two fsyncs of the log
+    * @param checkpointInterval
+    *           number of events after which the log is compacted into a new checkpoint
+    * @return the log, attached to the queue
+    * @throws IOException
+    *            if the folder cannot be created or read
+    */
+   public static FrontierLog open(File folder, FetchItemQueue queue, long syncDelay, long checkpointInterval) throws IOException {
+      if (!folder.exists() && !folder.mkdirs()) {
+         throw new IOException("Couldn't create the frontier log folder: " + folder.getAbsolutePath());
+      }
+      List<File> files = replayableFiles(folder);
+      long lastSequence = 0;
+      if (!files.isEmpty()) {
+         long start = System.currentTimeMillis();
+         Replay replay = new Replay(queue);
+         replay.run(files);
+         lastSequence = sequenceOf(files.get(files.size() - 1));
+         logger.info("Resumed frontier from {}: {} pages queued, {} finished, in {} ms", folder.getAbsolutePath(), replay.queued, replay.finished.size(),
+               System.currentTimeMillis() - start);
+      }
+      FrontierLog log = new FrontierLog(folder, syncDelay, checkpointInterval, lastSequence);
+      queue.setFrontierLog(log);
+      if (!files.isEmpty()) {
+         log.startCompaction(files, lastSequence);
+      }
+      return log;
+   }
+
+   public void enqueued(FetchItem item) {
+      writeLock.lock();
+      try {
+         writeEnqueue(item);
+      } catch (IOException e) {
+         logger.error("Cannot write to the frontier log", e);
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   /**
+    * Records a batch of queued items under a single acquisition of the log lock.
+    */
+   public void enqueued(List<FetchItem> items) {
+      writeLock.lock();
+      try {
+         for (FetchItem item : items) {
+            writeEnqueue(item);
+         }
+      } catch (IOException e) {
+         logger.error("Cannot write to the frontier log", e);
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   private void writeEnqueue(FetchItem item) throws IOException {
+      if (closed) {
+         return;
+      }
+      if (!item.isWritable()) {
+         logger.warn("Url too long for the frontier log, it won't be resumed: {}", item.getToUrl());
+         return;
+      }
+      out.writeByte(ENQUEUE);
+      out.writeLong(item.getItemId());
+      out.writeShort(item.linkDepth);
+      out.writeUTF(item.getQueueKey());
+      out.writeUTF(item.getToUrl());
+      appended();
+   }
+
+   public void dequeued(long itemId) {
+      append(DEQUEUE, itemId);
+   }
+
+   public void finished(long itemId) {
+      append(FINISH, itemId);
+   }
+
+   public void seen(long itemId) {
+      append(SEEN, itemId);
+   }
+
+   /**
+    * Flushes and fsyncs the pending events and closes the log.
+    */
+   public void close() throws IOException {
+      closed = true;
+      synchronized (this) {
+         notifyAll();
+      }
+      try {
+         syncThread.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      rotationRequested = false;
+      try {
+         sync();
+      } finally {
+         logFile.close();
+      }
+   }
+
+   private void append(byte type, long itemId) {
+      writeLock.lock();
+      try {
+         if (closed) {
+            return;
+         }
+         out.writeByte(type);
+         out.writeLong(itemId);
+         appended();
+      } catch (IOException e) {
+         logger.error("Cannot write to the frontier log", e);
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   /**
+    * Asks the sync thread to rotate the log once checkpointInterval events were appended, unless a compaction is still running.
+    */
+   private void appended() {
+      if (++eventsSinceCheckpoint >= checkpointInterval && !compacting && !rotationRequested) {
+         eventsSinceCheckpoint = 0;
+         rotationRequested = true;
+         synchronized (this) {
+            notifyAll();
+         }
+      }
+   }
+
+   private void syncLoop() {
+      while (!closed) {
+         try {
+            synchronized (this) {
+               if (!rotationRequested && !closed) {
+                  wait(syncDelay);
+               }
+            }
+            if (!closed) {
+               sync();
+            }
+         } catch (InterruptedException e) {
+            return;
+         } catch (IOException e) {
+            logger.error("Cannot sync the frontier log", e);
+         }
+      }
+   }
+
+   /**
+    * Swaps the buffer under the write lock, then writes and fsyncs it without the lock. A requested rotation happens right after, so the events of the
+    * swapped buffer are the last ones of the closed file.
+    */
+   private void sync() throws IOException {
+      ByteArrayOutputStream pending;
+      boolean rotate;
+      writeLock.lock();
+      try {
+         pending = buffer;
+         buffer = spareBuffer;
+         spareBuffer = pending;
+         DataOutputStream pendingOut = out;
+         out = spareOut;
+         spareOut = pendingOut;
+         rotate = rotationRequested;
+      } finally {
+         writeLock.unlock();
+      }
+      if (pending.size() > 0) {
+         try {
+            pending.writeTo(logFile);
+            logFile.getChannel().force(false);
+         } finally {
+            pending.reset();
+         }
+      }
+      if (rotate) {
+         logFile.close();
+         long closedSequence = logSequence;
+         openNextLog();
+         rotationRequested = false;
+         startCompaction(replayableFiles(folder, closedSequence), closedSequence);
+      }
+   }
+
+   private void openNextLog() throws IOException {
+      logSequence++;
+      logFile = new FileOutputStream(new File(folder, String.format("%s%012d", LOG_PREFIX, logSequence)));
+   }
+
+   private void startCompaction(final List<File> files, final long sequence) {
+      compacting = true;
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            try {
+               compact(files, sequence);
+            } catch (IOException e) {
+               logger.error("Cannot write frontier checkpoint " + sequence, e);
+            } finally {
+               compacting = false;
+            }
+         }
+      }, "Pastya-Bot-Frontier-Log-Compaction");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Rewrites the given checkpoint and logs, all of them closed, into one checkpoint holding the seen ids and the unfinished items. The old files are only
+    * deleted once the new checkpoint is in place, so a crash during compaction never loses state.
+    */
+   private void compact(List<File> files, long sequence) throws IOException {
+      final ConcurrentLongHashSet finished = new ConcurrentLongHashSet();
+      new Reader() {
+         void onFinish(long itemId) {
+            finished.add(itemId);
+         }
+      }.readAll(files);
+
+      File tmp = new File(folder, String.format("%s%012d%s", CHECKPOINT_PREFIX, sequence, TMP_SUFFIX));
+      final FileOutputStream file = new FileOutputStream(tmp);
+      try (final DataOutputStream checkpoint = new DataOutputStream(new BufferedOutputStream(file, IO_BUFFER_SIZE))) {
+         new Reader() {
+            void onEnqueue(long itemId, int linkDepth, String queueKey, String toUrl) throws IOException {
+               if (finished.contains(itemId)) {
+                  checkpoint.writeByte(SEEN);
+                  checkpoint.writeLong(itemId);
+               } else {
+                  checkpoint.writeByte(ENQUEUE);
+                  checkpoint.writeLong(itemId);
+                  checkpoint.writeShort(linkDepth);
+                  checkpoint.writeUTF(queueKey);
+                  checkpoint.writeUTF(toUrl);
+               }
+            }
+
+            void onSeen(long itemId) throws IOException {
+               checkpoint.writeByte(SEEN);
+               checkpoint.writeLong(itemId);
+            }
+         }.readAll(files);
+         checkpoint.flush();
+         file.getChannel().force(false);
+      }
+      File target = new File(folder, String.format("%s%012d", CHECKPOINT_PREFIX, sequence));
+      if (!tmp.renameTo(target)) {
+         throw new IOException("Couldn't rename " + tmp.getAbsolutePath() + " to " + target.getAbsolutePath());
+      }
+      for (File old : files) {
+         if (!old.equals(target) && !old.delete()) {
+            logger.warn("Couldn't delete compacted frontier log file: {}", old.getAbsolutePath());
+         }
+      }
+      logger.debug("Wrote frontier checkpoint {}", target.getAbsolutePath());
+   }
+
+   /**
+    * @return the newest checkpoint followed by the logs written after it, in order
+    */
+   private static List<File> replayableFiles(File folder) {
+      return replayableFiles(folder, Long.MAX_VALUE);
+   }
+
+   private static List<File> replayableFiles(File folder, long maxSequence) {
+      File checkpoint = null;
+      List<File> logs = new ArrayList<File>();
+      File[] files = folder.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_SUFFIX)) {
+               continue;
+            }
+            if (name.startsWith(CHECKPOINT_PREFIX) && sequenceOf(file) <= maxSequence) {
+               if (checkpoint == null || sequenceOf(file) > sequenceOf(checkpoint)) {
+                  checkpoint = file;
+               }
+            } else if (name.startsWith(LOG_PREFIX) && sequenceOf(file) <= maxSequence) {
+               logs.add(file);
+            }
+         }
+      }
+      List<File> result = new ArrayList<File>();
+      long after = 0;
+      if (checkpoint != null) {
+         result.add(checkpoint);
+         after = sequenceOf(checkpoint);
+      }
+      // Names are zero padded, so the lexical order is the sequence order
+      Collections.sort(logs);
+      for (File log : logs) {
+         if (sequenceOf(log) > after) {
+            result.add(log);
+         }
+      }
+      return result;
+   }
+
+   private static long sequenceOf(File file) {
+      String name = file.getName();
+      return Long.parseLong(name.substring(name.indexOf('-') + 1));
+   }
+
+   /**
+    * Streams the records of a list of checkpoint and log files to its callbacks. A record cut off by a crash ends the file it is in.
+    */
+   private abstract static class Reader {
+
+      void readAll(List<File> files) throws IOException {
+         for (File file : files) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE))) {
+               read(in);
+            } catch (EOFException e) {
+               logger.warn("Frontier log {} ends with an incomplete record, ignoring it", file.getName());
+            }
+         }
+      }
+
+      private void read(DataInputStream in) throws IOException {
+         int type;
+         while ((type = in.read()) != -1) {
+            long itemId = in.readLong();
+            switch (type) {
+            case ENQUEUE:
+               int linkDepth = in.readShort();
+               String queueKey = in.readUTF();
+               String toUrl = in.readUTF();
+               onEnqueue(itemId, linkDepth, queueKey, toUrl);
+               break;
+            case DEQUEUE:
+               break;
+            case FINISH:
+               onFinish(itemId);
+               break;
+            case SEEN:
+               onSeen(itemId);
+               break;
+            default:
+               throw new IOException("Corrupt frontier log, unknown record type " + type);
+            }
+         }
+      }
+
+      void onEnqueue(long itemId, int linkDepth, String queueKey, String toUrl) throws IOException {
+      }
+
+      void onFinish(long itemId) throws IOException {
+      }
+
+      void onSeen(long itemId) throws IOException {
+      }
+   }
+
+   /**
+    * Restores a queue in two passes: the first collects the finished ids, the second queues every item which was not finished.
+    */
+   private static class Replay {
+      final FetchItemQueue queue;
+      final ConcurrentLongHashSet finished = new ConcurrentLongHashSet();
+      int queued;
+
+      Replay(FetchItemQueue queue) {
+         this.queue = queue;
+      }
+
+      void run(List<File> files) throws IOException {
+         new Reader() {
+            void onFinish(long itemId) {
+               finished.add(itemId);
+            }
+         }.readAll(files);
+         new Reader() {
+            void onEnqueue(long itemId, int linkDepth, String queueKey, String toUrl) {
+               if (finished.contains(itemId)) {
+                  queue.markSeen(itemId);
+               } else {
+                  FetchItem item = FetchItem.restore(itemId, toUrl, queueKey, linkDepth);
+                  if (item != null && queue.addPageFetchItem(item)) {
+                     queued++;
+                  }
+               }
+            }
+
+            void onSeen(long itemId) {
+               queue.markSeen(itemId);
+            }
+         }.readAll(files);
+      }
+   }
+}
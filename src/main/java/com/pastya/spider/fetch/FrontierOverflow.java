@@ -0,0 +1,231 @@
+package com.pastya.spider.fetch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk backed overflow of the {@link FetchItemQueue}.
+ *
+ * <p>
+ * Items are first collected in a bounded in-memory tail. When the tail is full it is written as one append-only segment file of compact records
+ * (id, depth, queue key, url) to the overflow folder. Segments are read back sequentially, oldest first, as the in-memory part of the frontier drains, and
+ * are deleted once fully consumed. The order in which items were added is preserved.
+ * </p>
+ */
+public class FrontierOverflow implements Closeable {
+
+   protected static final Logger logger = LoggerFactory.getLogger(FrontierOverflow.class);
+
+   private static final String SEGMENT_PREFIX = "segment-";
+   private static final String SEGMENT_SUFFIX = ".dat";
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+   private final File folder;
+   private final int tailCapacity;
+   private final ArrayDeque<FetchItem> tail;
+   private final ArrayDeque<File> segments = new ArrayDeque<File>();
+   private DataInputStream reader;
+   private File readingSegment;
+   private int remainingInSegment;
+   private long segmentSequence;
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Only written while holding the lock, read without it.
+    */
+   private volatile long size;
+
+   /**
+    * @param folder
+    *           the folder the segment files are written to. Leftover segments of a previous run are removed
+    * @param tailCapacity
+    *           number of items buffered in memory before they are written out as one segment
+    * @throws IOException
+    *            if the folder cannot be created
+    */
+   public FrontierOverflow(File folder, int tailCapacity) throws IOException {
+      this.folder = folder;
+      this.tailCapacity = Math.max(1, tailCapacity);
+      this.tail = new ArrayDeque<FetchItem>(this.tailCapacity);
+      if (!folder.exists() && !folder.mkdirs()) {
+         throw new IOException("Couldn't create the frontier folder: " + folder.getAbsolutePath());
+      }
+      deleteSegments();
+   }
+
+   /**
+    * @return number of items held by the overflow, on disk and in the tail
+    */
+   public long size() {
+      return size;
+   }
+
+   public boolean isEmpty() {
+      return size == 0;
+   }
+
+   /**
+    * Adds the item after the newest one. Nothing is changed when an exception is thrown, so the caller can keep the item elsewhere.
+    *
+    * @throws IOException
+    *            if the url is too long for a record or the tail cannot be written out
+    */
+   public void append(FetchItem item) throws IOException {
+      if (!item.isWritable()) {
+         throw new IOException("Url too long for a frontier segment record");
+      }
+      lock.lock();
+      try {
+         tail.addLast(item);
+         if (tail.size() >= tailCapacity) {
+            try {
+               flushTail();
+            } catch (IOException e) {
+               tail.pollLast();
+               throw e;
+            }
+         }
+         size++;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Moves up to max of the oldest items into the given list. Records whose url cannot be parsed are dropped.
+    *
+    * @return number of records consumed, including dropped ones
+    * @throws IOException
+    *            if a segment cannot be read
+    */
+   public int drainTo(List<FetchItem> out, int max) throws IOException {
+      lock.lock();
+      try {
+         int consumed = 0;
+         while (consumed < max && size > 0) {
+            FetchItem item;
+            if (reader != null || openNextSegment()) {
+               item = readRecord();
+               if (--remainingInSegment == 0) {
+                  closeReader(true);
+               }
+            } else {
+               item = tail.pollFirst();
+            }
+            size--;
+            consumed++;
+            if (item != null) {
+               out.add(item);
+            }
+         }
+         return consumed;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public void clear() throws IOException {
+      lock.lock();
+      try {
+         closeReader(true);
+         tail.clear();
+         deleteSegments();
+         size = 0;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public void close() throws IOException {
+      lock.lock();
+      try {
+         closeReader(false);
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Writes the tail as the next segment. On failure the partial segment is deleted and the tail is kept.
+    */
+   private void flushTail() throws IOException {
+      File segment = new File(folder, String.format("%s%012d%s", SEGMENT_PREFIX, segmentSequence + 1, SEGMENT_SUFFIX));
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment), IO_BUFFER_SIZE))) {
+         out.writeInt(tail.size());
+         for (FetchItem item : tail) {
+            out.writeLong(item.getItemId());
+            out.writeShort(item.linkDepth);
+            out.writeUTF(item.getQueueKey());
+            out.writeUTF(item.getToUrl());
+         }
+      } catch (IOException e) {
+         if (segment.exists() && !segment.delete()) {
+            logger.warn("Couldn't delete partial frontier segment: {}", segment.getAbsolutePath());
+         }
+         throw e;
+      }
+      segmentSequence++;
+      segments.addLast(segment);
+      tail.clear();
+   }
+
+   private boolean openNextSegment() throws IOException {
+      File segment = segments.pollFirst();
+      if (segment == null) {
+         return false;
+      }
+      readingSegment = segment;
+      reader = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), IO_BUFFER_SIZE));
+      remainingInSegment = reader.readInt();
+      return true;
+   }
+
+   private FetchItem readRecord() throws IOException {
+      long itemId = reader.readLong();
+      int linkDepth = reader.readShort();
+      String queueKey = reader.readUTF();
+      String toUrl = reader.readUTF();
+      FetchItem item = FetchItem.restore(itemId, toUrl, queueKey, linkDepth);
+      if (item == null) {
+         logger.warn("Dropping unparsable url from frontier segment: {}", toUrl);
+      }
+      return item;
+   }
+
+   private void closeReader(boolean delete) throws IOException {
+      if (reader != null) {
+         reader.close();
+         reader = null;
+         if (delete && !readingSegment.delete()) {
+            logger.warn("Couldn't delete consumed frontier segment: {}", readingSegment.getAbsolutePath());
+         }
+         readingSegment = null;
+      }
+   }
+
+   private void deleteSegments() {
+      segments.clear();
+      File[] files = folder.listFiles();
+      if (files == null) {
+         return;
+      }
+      for (File file : files) {
+         if (file.getName().startsWith(SEGMENT_PREFIX) && !file.delete()) {
+            logger.warn("Couldn't delete frontier segment: {}", file.getAbsolutePath());
+         }
+      }
+   }
+}
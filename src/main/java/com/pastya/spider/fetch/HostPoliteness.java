@@ -0,0 +1,119 @@
+package com.pastya.spider.fetch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-host politeness delay for the {@link Fetcher} and the {@link AsyncFetcher}.
+ *
+ * <p>
+ * Each host has the time of its next free request slot in a concurrent map. A caller reserves a slot with a compare-and-set and then sleeps until that slot
+ * without holding any lock, so requests to different hosts never wait for each other and requests to the same host are spaced by the delay.
+ * </p>
+ *
+ * <p>
+ * For crawler threads the ready heap of the {@link FetchItemQueue} is authoritative: it hands out one item per host at a time and schedules the host
+ * again only after its delay, including the Crawl-delay of robots.txt. This map is the Fetcher's own guard and applies the configured politeness delay to
+ * every request the Fetcher sends, so it only makes a request wait when the queue was bypassed, as by robots.txt and sitemap fetches.
+ * </p>
+ */
+public class HostPoliteness {
+
+   /**
+    * Hosts idle for longer than this are forgotten.
+    */
+   private static final long IDLE_HOST_MILLIS = 60000;
+
+   /**
+    * Idle hosts are purged every this many reservations.
+    */
+   private static final int PURGE_INTERVAL = 10000;
+
+   /**
+    * Slot value of an entry being purged, a reservation never succeeds on it.
+    */
+   private static final long PURGED = Long.MIN_VALUE;
+
+   private final ConcurrentMap<String, AtomicLong> nextSlots = new ConcurrentHashMap<String, AtomicLong>();
+   private final AtomicInteger reservations = new AtomicInteger();
+
+   /**
+    * Waits until the given host may be requested again and reserves that slot.
+    *
+    * @param host
+    *           the host key
+    * @param delayMillis
+    *           minimum time between two requests to the host
+    * @throws InterruptedException
+    *            if interrupted while waiting
+    */
+   public void acquire(String host, long delayMillis) throws InterruptedException {
+      long wait = reserve(host, delayMillis);
+      if (wait > 0) {
+         Thread.sleep(wait);
+      }
+   }
+
+   /**
+    * Reserves the next free slot of the host without waiting.
+    *
+    * @return milliseconds until the reserved slot, 0 if it is now
+    */
+   public long reserve(String host, long delayMillis) {
+      if (reservations.incrementAndGet() % PURGE_INTERVAL == 0) {
+         purgeIdleHosts();
+      }
+      AtomicLong nextSlot = slotOf(host);
+      while (true) {
+         long current = nextSlot.get();
+         if (current == PURGED) {
+            // Purged in the meantime, reserve on the entry which replaces it
+            nextSlots.remove(host, nextSlot);
+            nextSlot = slotOf(host);
+            continue;
+         }
+         long now = System.currentTimeMillis();
+         long slot = Math.max(now, current);
+         if (nextSlot.compareAndSet(current, slot + delayMillis)) {
+            return slot - now;
+         }
+      }
+   }
+
+   private AtomicLong slotOf(String host) {
+      AtomicLong nextSlot = nextSlots.get(host);
+      if (nextSlot == null) {
+         AtomicLong created = new AtomicLong();
+         nextSlot = nextSlots.putIfAbsent(host, created);
+         if (nextSlot == null) {
+            nextSlot = created;
+         }
+      }
+      return nextSlot;
+   }
+
+   /**
+    * @return number of hosts currently tracked
+    */
+   public int getHostCount() {
+      return nextSlots.size();
+   }
+
+   /**
+    * Removes the hosts whose next free slot passed more than the idle time ago. An entry is first marked as purged with a compare-and-set on the slot it
+    * was idle at, so a concurrent reservation either lands before and keeps the entry, or sees the mark and moves to a new entry.
+    */
+   private void purgeIdleHosts() {
+      long idleSince = System.currentTimeMillis() - IDLE_HOST_MILLIS;
+      for (Map.Entry<String, AtomicLong> entry : nextSlots.entrySet()) {
+         AtomicLong nextSlot = entry.getValue();
+         long current = nextSlot.get();
+         if (current != PURGED && current < idleSince && nextSlot.compareAndSet(current, PURGED)) {
+            nextSlots.remove(entry.getKey(), nextSlot);
+         }
+      }
+   }
+}
@@ -0,0 +1,66 @@
+package com.pastya.spider.fetch;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+
+/**
+ * The pending FetchItems of a single host (protocol + host name), together with the time at which the politeness delay of that host ends.
+ *
+ * <p>
+ * Instances are not thread safe, they are always guarded by the shard of {@link FetchItemQueue} that owns them.
+ * </p>
+ */
+class HostQueue {
+
+   static final Comparator<HostQueue> BY_NEXT_FETCH_TIME = new Comparator<HostQueue>() {
+      public int compare(HostQueue a, HostQueue b) {
+         return Long.compare(a.nextFetchTime, b.nextFetchTime);
+      }
+   };
+
+   final String key;
+
+   final Deque<FetchItem> items = new ArrayDeque<FetchItem>();
+
+   /**
+    * Earliest time in milliseconds at which the next item of this host may be handed out.
+    */
+   long nextFetchTime;
+
+   /**
+    * Minimum time in milliseconds between two fetches of this host.
+    */
+   long crawlDelay;
+
+   /**
+    * True while an item of this host is being fetched. A host is never handed out twice concurrently.
+    */
+   boolean inProgress;
+
+   /**
+    * True while this host is present in the ready heap of its shard.
+    */
+   boolean scheduled;
+
+   HostQueue(String key, long crawlDelay) {
+      this.key = key;
+      this.crawlDelay = crawlDelay;
+   }
+
+   void add(FetchItem item) {
+      items.addLast(item);
+   }
+
+   FetchItem poll() {
+      return items.pollFirst();
+   }
+
+   int size() {
+      return items.size();
+   }
+
+   boolean isEmpty() {
+      return items.isEmpty();
+   }
+}
@@ -0,0 +1,265 @@
+package com.pastya.spider.fetch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CountingInputStream;
+import com.pastya.spider.metadata.HttpHeaders;
+
+/**
+ * Persistent cache validators (ETag, Last-Modified and a hash of the content) of the fetched pages, keyed by item id.
+ *
+ * <p>
+ * On a recrawl the {@link Fetcher} sends them as If-None-Match and If-Modified-Since so unchanged pages are answered with 304 Not Modified and neither
+ * downloaded nor parsed. The content hash catches unchanged pages of servers that ignore conditional requests.
+ * </p>
+ *
+ * <p>
+ * Updates are appended to a log which is folded into the snapshot on {@link #close()}. The log is not fsynced, a crash only loses validators, which costs a
+ * full download of those pages on the next crawl. A record cut short by a crash is truncated away when the store is opened.
+ * </p>
+ */
+public class ValidatorStore implements Closeable {
+
+   protected static final Logger logger = LoggerFactory.getLogger(ValidatorStore.class);
+
+   private static final String SNAPSHOT_FILE = "validators.dat";
+   private static final String LOG_FILE = "validators.log";
+   private static final String TMP_SUFFIX = ".tmp";
+   private static final int IO_BUFFER_SIZE = 64 * 1024;
+   private static final int MAX_UTF_LENGTH = 65535;
+
+   private final File folder;
+   private final ConcurrentMap<Long, Validators> validators = new ConcurrentHashMap<Long, Validators>();
+   private final ReentrantLock writeLock = new ReentrantLock();
+   private DataOutputStream log;
+   // A record is encoded whole before it goes to the log, guarded by the write lock
+   private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+   private final DataOutputStream recordOut = new DataOutputStream(record);
+
+   /**
+    * The validators of one page. Empty strings stand for missing headers, and for headers too long to be stored.
+    */
+   public static class Validators {
+      private final String etag;
+      private final String lastModified;
+      private final long contentHash;
+
+      public Validators(String etag, String lastModified, long contentHash) {
+         this.etag = storable(etag);
+         this.lastModified = storable(lastModified);
+         this.contentHash = contentHash;
+      }
+
+      public String getEtag() {
+         return etag;
+      }
+
+      public String getLastModified() {
+         return lastModified;
+      }
+
+      public long getContentHash() {
+         return contentHash;
+      }
+   }
+
+   private ValidatorStore(File folder) {
+      this.folder = folder;
+   }
+
+   /**
+    * Loads the validators stored in the folder.
+    *
+    * @param folder
+    *           the folder of the store, created if missing
+    * @return the store, ready for updates
+    * @throws IOException
+    *            if the folder cannot be created or written
+    */
+   public static ValidatorStore open(File folder) throws IOException {
+      if (!folder.exists() && !folder.mkdirs()) {
+         throw new IOException("Couldn't create the validator folder: " + folder.getAbsolutePath());
+      }
+      ValidatorStore store = new ValidatorStore(folder);
+      store.load(new File(folder, SNAPSHOT_FILE));
+      store.load(new File(folder, LOG_FILE));
+      store.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(folder, LOG_FILE), true), IO_BUFFER_SIZE));
+      logger.info("Loaded validators of {} pages from {}", store.validators.size(), folder.getAbsolutePath());
+      return store;
+   }
+
+   /**
+    * @return the validators of the item, or null if it was never fetched
+    */
+   public Validators get(long itemId) {
+      return validators.get(itemId);
+   }
+
+   /**
+    * @param contentHash
+    *           the first 64 bits of the murmur3_128 hash of the content, as given by Page.getContentDigest()
+    * @return true if the item was stored before with the same content hash. A hash of 0, for content cut at the download limit, is never unchanged.
+    */
+   public boolean isUnchanged(long itemId, long contentHash) {
+      Validators previous = validators.get(itemId);
+      return previous != null && contentHash != 0 && previous.contentHash == contentHash;
+   }
+
+   /**
+    * Stores the validators of a page which was fetched and processed successfully. A page which failed is left out, so the next crawl fetches it in
+    * full.
+    *
+    * @param itemId
+    *           id of the fetched item
+    * @param responseHeaders
+    *           headers of the response
+    * @param content
+    *           the downloaded content
+    * @return true if the content differs from the one fetched before, or the page was not fetched before
+    * @throws IOException
+    *            if the content cannot be read
+    */
+   public boolean update(long itemId, Header[] responseHeaders, ByteSource content) throws IOException {
+      return update(itemId, responseHeaders, content.hash(Hashing.murmur3_128()).asLong());
+   }
+
+   /**
+    * Stores the validators of a page which was fetched and processed successfully, with the hash of its content computed while it downloaded.
+    *
+    * @param contentHash
+    *           the first 64 bits of the murmur3_128 hash of the content, as given by Page.getContentDigest()
+    * @return true if the content differs from the one fetched before, or the page was not fetched before
+    */
+   public boolean update(long itemId, Header[] responseHeaders, long contentHash) {
+      Validators current = new Validators(headerValue(responseHeaders, HttpHeaders.ETAG), headerValue(responseHeaders, HttpHeaders.LAST_MODIFIED),
+            contentHash);
+      Validators previous = validators.put(itemId, current);
+      writeLock.lock();
+      try {
+         record.reset();
+         write(recordOut, itemId, current);
+         record.writeTo(log);
+      } catch (IOException e) {
+         logger.error("Cannot write to the validator log", e);
+      } finally {
+         writeLock.unlock();
+      }
+      return previous == null || previous.contentHash != contentHash;
+   }
+
+   public int size() {
+      return validators.size();
+   }
+
+   /**
+    * Writes all validators to a new snapshot and removes the log.
+    */
+   public void close() throws IOException {
+      writeLock.lock();
+      try {
+         log.close();
+         File tmp = new File(folder, SNAPSHOT_FILE + TMP_SUFFIX);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), IO_BUFFER_SIZE));
+         try {
+            for (Map.Entry<Long, Validators> entry : validators.entrySet()) {
+               write(out, entry.getKey(), entry.getValue());
+            }
+         } finally {
+            out.close();
+         }
+         File snapshot = new File(folder, SNAPSHOT_FILE);
+         if ((snapshot.exists() && !snapshot.delete()) || !tmp.renameTo(snapshot)) {
+            throw new IOException("Cannot replace the validator snapshot: " + snapshot.getAbsolutePath());
+         }
+         if (!new File(folder, LOG_FILE).delete()) {
+            logger.warn("Cannot delete the validator log in {}", folder.getAbsolutePath());
+         }
+      } finally {
+         writeLock.unlock();
+      }
+   }
+
+   /**
+    * Reads the validators of the file. A record cut short by a crash is truncated away, so the records appended after it stay aligned.
+    */
+   private void load(File file) throws IOException {
+      if (!file.exists()) {
+         return;
+      }
+      CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+      DataInputStream in = new DataInputStream(counting);
+      long complete = 0;
+      try {
+         while (true) {
+            long itemId = in.readLong();
+            validators.put(itemId, new Validators(in.readUTF(), in.readUTF(), in.readLong()));
+            complete = counting.getCount();
+         }
+      } catch (EOFException e) {
+         // End of file, or a record cut short by a crash
+      } finally {
+         in.close();
+      }
+      if (complete < file.length()) {
+         logger.warn("Validator file {} ends with an incomplete record, truncating it", file.getAbsolutePath());
+         try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(complete);
+         }
+      }
+   }
+
+   private static void write(DataOutputStream out, long itemId, Validators validators) throws IOException {
+      out.writeLong(itemId);
+      out.writeUTF(validators.etag);
+      out.writeUTF(validators.lastModified);
+      out.writeLong(validators.contentHash);
+   }
+
+   /**
+    * @return the header value, or an empty string if it is missing or longer than a record can hold
+    */
+   private static String storable(String value) {
+      if (value == null || value.length() > MAX_UTF_LENGTH) {
+         return "";
+      }
+      int bytes = 0;
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+      }
+      return bytes <= MAX_UTF_LENGTH ? value : "";
+   }
+
+   private static String headerValue(Header[] headers, String name) {
+      if (headers == null) {
+         return null;
+      }
+      for (Header header : headers) {
+         if (name.equalsIgnoreCase(header.getName())) {
+            return header.getValue();
+         }
+      }
+      return null;
+   }
+}
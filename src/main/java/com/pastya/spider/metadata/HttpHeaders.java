@@ -12,6 +12,8 @@ public interface HttpHeaders {
 
   public final static String CONTENT_ENCODING = "Content-Encoding";
 
+  public final static String ACCEPT_ENCODING = "Accept-Encoding";
+
   public final static String CONTENT_LANGUAGE = "Content-Language";
 
   public final static String CONTENT_LENGTH = "Content-Length";
@@ -28,5 +30,11 @@ public interface HttpHeaders {
 
   public final static String LAST_MODIFIED = "Last-Modified";
 
+  public final static String ETAG = "ETag";
+
+  public final static String IF_NONE_MATCH = "If-None-Match";
+
+  public final static String IF_MODIFIED_SINCE = "If-Modified-Since";
+
   public final static String LOCATION = "Location";
 }
\ No newline at end of file
@@ -0,0 +1,259 @@
+package com.pastya.spider.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.pastya.spider.crawl.CrawlPipeline;
+import com.pastya.spider.fetch.FetchItemQueue;
+
+/**
+ * Counters and latencies of the crawl.
+ *
+ * <p>
+ * Fetches, loads and parses are recorded through the static methods from any thread, with an adder or array increment and no allocation. Like the byte
+ * counters of {@link com.pastya.spider.fetch.ContentDecoding} they are kept for the whole JVM. An instance adds the queue of a crawl and the rates
+ * computed by {@link #update()}, and is what JMX and the {@link MetricsHttpServer} read.
+ * </p>
+ */
+public class CrawlMetrics implements CrawlMetricsMXBean {
+
+   protected static final Logger logger = LoggerFactory.getLogger(CrawlMetrics.class);
+
+   /**
+    * Name the metrics are registered with in the platform MBean server.
+    */
+   public static final String OBJECT_NAME = "com.pastya.spider:type=CrawlMetrics";
+
+   /**
+    * Percentiles reported for every stage.
+    */
+   static final double[] PERCENTILES = { 50, 99, 99.9 };
+   static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+   static final String[] QUANTILES = { "0.5", "0.99", "0.999" };
+
+   private static final int MAX_STATUS_CODE = 599;
+
+   private static final LongAdder pagesFetched = new LongAdder();
+   private static final LongAdder fetchErrors = new LongAdder();
+   private static final LongAdder bytesReceived = new LongAdder();
+   // Index 0 counts status codes out of range
+   private static final AtomicLongArray statusCodes = new AtomicLongArray(MAX_STATUS_CODE + 1);
+
+   /**
+    * Stages whose latencies are recorded.
+    */
+   public enum Stage {
+      /**
+       * From sending the request to receiving the response headers, after the politeness delay.
+       */
+      FETCH,
+      /**
+       * Reading and decoding the body. A page parsed while it streams includes its parse time.
+       */
+      LOAD,
+      /**
+       * Parsing a page. A page parsed while it streams includes its download time.
+       */
+      PARSE;
+
+      private final LatencyHistogram latency = new LatencyHistogram();
+
+      public LatencyHistogram getLatency() {
+         return latency;
+      }
+   }
+
+   private final FetchItemQueue queue;
+   private final CrawlPipeline pipeline;
+   private long lastUpdate = System.nanoTime();
+   private long lastPages;
+   private long lastBytes;
+   private volatile double pagesPerSecond;
+   private volatile double bytesPerSecond;
+
+   /**
+    * @param pipeline
+    *           the pipeline of a staged crawl, may be null
+    */
+   public CrawlMetrics(FetchItemQueue queue, CrawlPipeline pipeline) {
+      this.queue = queue;
+      this.pipeline = pipeline;
+      lastPages = pagesFetched.sum();
+      lastBytes = bytesReceived.sum();
+   }
+
+   /**
+    * Records a response.
+    *
+    * @param nanos
+    *           time until the response headers were received
+    */
+   public static void fetched(int statusCode, long nanos) {
+      pagesFetched.increment();
+      statusCodes.incrementAndGet(statusCode > 0 && statusCode <= MAX_STATUS_CODE ? statusCode : 0);
+      Stage.FETCH.latency.record(nanos);
+   }
+
+   /**
+    * Records a request which got no response.
+    */
+   public static void fetchFailed() {
+      fetchErrors.increment();
+   }
+
+   /**
+    * Records a body read.
+    *
+    * @param receivedBytes
+    *           bytes received, before decoding
+    * @param nanos
+    *           time taken to read the body
+    */
+   public static void loaded(long receivedBytes, long nanos) {
+      bytesReceived.add(receivedBytes);
+      Stage.LOAD.latency.record(nanos);
+   }
+
+   public static void parsed(long nanos) {
+      Stage.PARSE.latency.record(nanos);
+   }
+
+   /**
+    * Computes the rates since the previous update. Called periodically, rates read in between are those of the last period.
+    */
+   public synchronized void update() {
+      long now = System.nanoTime();
+      long pages = pagesFetched.sum();
+      long bytes = bytesReceived.sum();
+      double seconds = (now - lastUpdate) / 1e9;
+      if (seconds > 0) {
+         pagesPerSecond = (pages - lastPages) / seconds;
+         bytesPerSecond = (bytes - lastBytes) / seconds;
+      }
+      lastUpdate = now;
+      lastPages = pages;
+      lastBytes = bytes;
+   }
+
+   /**
+    * Registers these metrics in the platform MBean server, replacing those of an earlier crawl.
+    */
+   public void register() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         server.registerMBean(this, name);
+      } catch (JMException e) {
+         logger.warn("Cannot register the crawl metrics with JMX", e);
+      }
+   }
+
+   public void unregister() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+      } catch (JMException e) {
+         logger.warn("Cannot unregister the crawl metrics from JMX", e);
+      }
+   }
+
+   /**
+    * @return a one line summary, for example "12.0 pages/s, 840.2 KB/s, queue 5120, in progress 20, fetch p50/p99/p999 85.2/610.0/1200.5 ms, ..."
+    */
+   public String summary() {
+      StringBuilder builder = new StringBuilder();
+      builder.append(String.format("%.1f pages/s, %.1f KB/s, queue %d, in progress %d", pagesPerSecond, bytesPerSecond / 1024, getQueueSize(),
+            getInProgress()));
+      if (pipeline != null) {
+         builder.append(", pending ").append(getPendingPages());
+      }
+      builder.append(", errors ").append(getFetchErrors());
+      for (Stage stage : Stage.values()) {
+         builder.append(", ").append(stage.name().toLowerCase()).append(" p50/p99/p999");
+         for (int i = 0; i < PERCENTILES.length; i++) {
+            builder.append(i == 0 ? ' ' : '/').append(String.format("%.1f", stage.latency.getPercentile(PERCENTILES[i]) / 1e6));
+         }
+         builder.append(" ms");
+      }
+      return builder.toString();
+   }
+
+   @Override
+   public long getPagesFetched() {
+      return pagesFetched.sum();
+   }
+
+   @Override
+   public long getFetchErrors() {
+      return fetchErrors.sum();
+   }
+
+   @Override
+   public long getBytesReceived() {
+      return bytesReceived.sum();
+   }
+
+   @Override
+   public double getPagesPerSecond() {
+      return pagesPerSecond;
+   }
+
+   @Override
+   public double getBytesPerSecond() {
+      return bytesPerSecond;
+   }
+
+   @Override
+   public int getQueueSize() {
+      return queue.getQueueSize();
+   }
+
+   @Override
+   public int getInProgress() {
+      return queue.getInProgressSize();
+   }
+
+   @Override
+   public int getPendingPages() {
+      return pipeline == null ? 0 : pipeline.getPendingPages();
+   }
+
+   @Override
+   public Map<String, Long> getStatusCodes() {
+      Map<String, Long> codes = new TreeMap<String, Long>();
+      for (int code = 0; code <= MAX_STATUS_CODE; code++) {
+         long count = statusCodes.get(code);
+         if (count > 0) {
+            codes.put(code == 0 ? "other" : Integer.toString(code), count);
+         }
+      }
+      return codes;
+   }
+
+   @Override
+   public Map<String, Double> getLatencyMillis() {
+      Map<String, Double> latencies = new TreeMap<String, Double>();
+      for (Stage stage : Stage.values()) {
+         for (int i = 0; i < PERCENTILES.length; i++) {
+            latencies.put(stage.name().toLowerCase() + "." + PERCENTILE_NAMES[i], stage.latency.getPercentile(PERCENTILES[i]) / 1e6);
+         }
+      }
+      return latencies;
+   }
+}
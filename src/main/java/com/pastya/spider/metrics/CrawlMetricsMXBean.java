@@ -0,0 +1,44 @@
+package com.pastya.spider.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link CrawlMetrics}, registered as "com.pastya.spider:type=CrawlMetrics".
+ */
+public interface CrawlMetricsMXBean {
+
+   long getPagesFetched();
+
+   long getFetchErrors();
+
+   long getBytesReceived();
+
+   /**
+    * @return pages fetched per second between the last two updates
+    */
+   double getPagesPerSecond();
+
+   /**
+    * @return bytes received per second between the last two updates
+    */
+   double getBytesPerSecond();
+
+   int getQueueSize();
+
+   int getInProgress();
+
+   /**
+    * @return pages waiting to be parsed or stored by a staged crawl
+    */
+   int getPendingPages();
+
+   /**
+    * @return number of responses per status code
+    */
+   Map<String, Long> getStatusCodes();
+
+   /**
+    * @return latency percentiles per stage in milliseconds, keyed like "fetch.p99"
+    */
+   Map<String, Double> getLatencyMillis();
+}
@@ -0,0 +1,88 @@
+package com.pastya.spider.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, recorded from any number of threads without locks or allocation.
+ *
+ * <p>
+ * Buckets are laid out as in HdrHistogram: values below 128 have a bucket each, above that every power of two is split into 64 buckets, so a value is
+ * counted in a bucket at most 1/64th wider than itself. Recording is one array increment. Percentiles are computed from the counts when read and are
+ * the upper bound of their bucket, at most 1.6% above the recorded value. Counts are kept since the start of the crawl.
+ * </p>
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 7;
+   private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+   private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+   private static final int BUCKETS = indexOf(Long.MAX_VALUE) + 1;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+   /**
+    * @param nanos
+    *           the duration to count, negative durations count as 0
+    */
+   public void record(long nanos) {
+      counts.incrementAndGet(indexOf(Math.max(nanos, 0)));
+   }
+
+   /**
+    * @return number of recorded durations
+    */
+   public long getCount() {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         count += counts.get(i);
+      }
+      return count;
+   }
+
+   /**
+    * @param percentile
+    *           between 0 and 100, for example 99.9
+    * @return the duration in nanoseconds which the given percentage of the recorded durations do not exceed, 0 if none was recorded
+    */
+   public long getPercentile(double percentile) {
+      long[] snapshot = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         snapshot[i] = counts.get(i);
+         total += snapshot[i];
+      }
+      if (total == 0) {
+         return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += snapshot[i];
+         if (seen >= rank) {
+            return highestValueOf(i);
+         }
+      }
+      return highestValueOf(BUCKETS - 1);
+   }
+
+   /**
+    * Values below SUB_BUCKET_COUNT are their own index. Bigger values are shifted right until they fall between SUB_BUCKET_HALF and SUB_BUCKET_COUNT,
+    * each shift adds SUB_BUCKET_HALF buckets.
+    */
+   private static int indexOf(long value) {
+      if (value < SUB_BUCKET_COUNT) {
+         return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+      return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+   }
+
+   private static long highestValueOf(int index) {
+      if (index < SUB_BUCKET_COUNT) {
+         return index;
+      }
+      int shift = index / SUB_BUCKET_HALF - 1;
+      long subBucket = index - shift * SUB_BUCKET_HALF;
+      return ((subBucket + 1) << shift) - 1;
+   }
+}
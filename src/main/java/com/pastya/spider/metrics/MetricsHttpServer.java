@@ -0,0 +1,111 @@
+package com.pastya.spider.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the {@link CrawlMetrics} at "/metrics" on the loopback interface, in the Prometheus text format.
+ */
+public class MetricsHttpServer {
+
+   protected static final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+   private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+   private final HttpServer server;
+
+   /**
+    * Starts serving on a single thread.
+    *
+    * @throws IOException
+    *            if the port cannot be bound
+    */
+   public MetricsHttpServer(final CrawlMetrics metrics, int port) throws IOException {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/metrics", new HttpHandler() {
+         @Override
+         public void handle(HttpExchange exchange) throws IOException {
+            try {
+               byte[] body = format(metrics).getBytes(StandardCharsets.UTF_8);
+               exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+               exchange.sendResponseHeaders(200, body.length);
+               try (OutputStream out = exchange.getResponseBody()) {
+                  out.write(body);
+               }
+            } finally {
+               exchange.close();
+            }
+         }
+      });
+      server.start();
+      logger.info("Serving crawl metrics at http://{}:{}/metrics", server.getAddress().getHostString(), server.getAddress().getPort());
+   }
+
+   public int getPort() {
+      return server.getAddress().getPort();
+   }
+
+   public void stop() {
+      server.stop(0);
+   }
+
+   static String format(CrawlMetrics metrics) {
+      StringBuilder text = new StringBuilder();
+      counter(text, "crawler_pages_fetched_total", "Responses received", metrics.getPagesFetched());
+      counter(text, "crawler_fetch_errors_total", "Requests which got no response", metrics.getFetchErrors());
+      counter(text, "crawler_bytes_received_total", "Bytes of bodies received, before decoding", metrics.getBytesReceived());
+      gauge(text, "crawler_pages_per_second", "Responses per second over the last period", metrics.getPagesPerSecond());
+      gauge(text, "crawler_bytes_per_second", "Bytes received per second over the last period", metrics.getBytesPerSecond());
+      gauge(text, "crawler_queue_size", "Items waiting to be fetched", metrics.getQueueSize());
+      gauge(text, "crawler_in_progress", "Items being fetched", metrics.getInProgress());
+      gauge(text, "crawler_pending_pages", "Pages waiting to be parsed or stored", metrics.getPendingPages());
+
+      header(text, "crawler_responses_total", "Responses per status code", "counter");
+      for (Map.Entry<String, Long> entry : metrics.getStatusCodes().entrySet()) {
+         text.append("crawler_responses_total{status=\"").append(entry.getKey()).append("\"} ").append(entry.getValue()).append('\n');
+      }
+
+      header(text, "crawler_latency_seconds", "Latency per stage", "summary");
+      for (CrawlMetrics.Stage stage : CrawlMetrics.Stage.values()) {
+         String name = stage.name().toLowerCase();
+         LatencyHistogram latency = stage.getLatency();
+         for (int i = 0; i < CrawlMetrics.PERCENTILES.length; i++) {
+            text.append("crawler_latency_seconds{stage=\"").append(name).append("\",quantile=\"").append(CrawlMetrics.QUANTILES[i]).append("\"} ")
+                  .append(latency.getPercentile(CrawlMetrics.PERCENTILES[i]) / 1e9).append('\n');
+         }
+         text.append("crawler_latency_seconds_count{stage=\"").append(name).append("\"} ").append(latency.getCount()).append('\n');
+      }
+      return text.toString();
+   }
+
+   private static void counter(StringBuilder text, String name, String help, long value) {
+      header(text, name, help, "counter");
+      text.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void gauge(StringBuilder text, String name, String help, long value) {
+      header(text, name, help, "gauge");
+      text.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void gauge(StringBuilder text, String name, String help, double value) {
+      header(text, name, help, "gauge");
+      text.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void header(StringBuilder text, String name, String help, String type) {
+      text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+   }
+}
@@ -0,0 +1,44 @@
+package com.pastya.spider.parser;
+
+/**
+ * A link found in a page: the raw href, the text of its anchor and the name of the tag it was found in.
+ */
+public class ExtractedUrlAnchorPair {
+
+   private String href;
+   private String anchor;
+   private String tag;
+
+   public ExtractedUrlAnchorPair() {
+   }
+
+   public ExtractedUrlAnchorPair(String href, String anchor, String tag) {
+      this.href = href;
+      this.anchor = anchor;
+      this.tag = tag;
+   }
+
+   public String getHref() {
+      return href;
+   }
+
+   public void setHref(String href) {
+      this.href = href;
+   }
+
+   public String getAnchor() {
+      return anchor;
+   }
+
+   public void setAnchor(String anchor) {
+      this.anchor = anchor;
+   }
+
+   public String getTag() {
+      return tag;
+   }
+
+   public void setTag(String tag) {
+      this.tag = tag;
+   }
+}
@@ -0,0 +1,487 @@
+package com.pastya.spider.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fast path of the {@link Parser} for link discovery in HTML.
+ *
+ * <p>
+ * A hand-written tokenizer which runs over the raw bytes of the page and only looks at what a crawler needs: the href of a, area, link and base tags, the
+ * src of embedded resources and the text of anchors. Markup is never decoded into characters or turned into SAX events; only the few attribute values
+ * that are kept become Strings. Comments, scripts and styles are skipped.
+ * </p>
+ *
+ * <p>
+ * The tokenizer works for any charset which encodes ASCII as single bytes (UTF-8, ISO-8859-*, windows-125*, ...). {@link #canExtract(byte[], int, Charset)}
+ * tells whether a page qualifies, the Parser falls back to Tika for everything else.
+ * </p>
+ */
+public class HtmlLinkExtractor {
+
+   /**
+    * Number of leading bytes {@link #canExtract(byte[], int, Charset)} looks at.
+    */
+   public static final int SNIFF_SIZE = 1024;
+
+   private static final int BUFFER_SIZE = 8192;
+   private static final int MAX_ANCHOR_BYTES = 256;
+   private static final int MAX_VALUE_BYTES = 8192;
+
+   private final int maxLinks;
+
+   /**
+    * The links and base url found in a page.
+    */
+   public static class Result {
+      private final List<ExtractedUrlAnchorPair> links = new ArrayList<ExtractedUrlAnchorPair>();
+      private String baseUrl;
+
+      public List<ExtractedUrlAnchorPair> getLinks() {
+         return links;
+      }
+
+      /**
+       * @return the href of the first base tag, or null
+       */
+      public String getBaseUrl() {
+         return baseUrl;
+      }
+   }
+
+   /**
+    * @param maxLinks
+    *           links after this many are ignored, the rest of the page is still read
+    */
+   public HtmlLinkExtractor(int maxLinks) {
+      this.maxLinks = maxLinks;
+   }
+
+   /**
+    * Tells whether the page can be handled by this extractor, judging from its first bytes.
+    *
+    * @param head
+    *           the first bytes of the page
+    * @param length
+    *           number of valid bytes in head
+    * @param charset
+    *           the declared charset, null if unknown
+    * @return false for charsets with multi byte ASCII, binary content or content without any tag
+    */
+   public static boolean canExtract(byte[] head, int length, Charset charset) {
+      if (charset != null && (charset.name().startsWith("UTF-16") || charset.name().startsWith("UTF-32"))) {
+         return false;
+      }
+      if (length >= 2 && ((head[0] == (byte) 0xFE && head[1] == (byte) 0xFF) || (head[0] == (byte) 0xFF && head[1] == (byte) 0xFE))) {
+         return false;
+      }
+      boolean hasTag = false;
+      for (int i = 0; i < length; i++) {
+         if (head[i] == 0) {
+            return false;
+         }
+         if (head[i] == '<') {
+            hasTag = true;
+         }
+      }
+      return hasTag;
+   }
+
+   /**
+    * Extracts the links of the page.
+    *
+    * @param in
+    *           the raw content
+    * @param charset
+    *           charset of the attribute values and anchor texts, null for UTF-8
+    * @return the links and base url
+    * @throws IOException
+    *            if reading fails
+    */
+   public Result extract(InputStream in, Charset charset) throws IOException {
+      return new Tokenizer(in, charset == null ? Charset.forName("UTF-8") : charset, maxLinks).run();
+   }
+
+   /**
+    * Tokenizer state for a single page.
+    */
+   private static final class Tokenizer {
+      private final InputStream in;
+      private final Charset charset;
+      private final int maxLinks;
+      private final byte[] buf = new byte[BUFFER_SIZE];
+      private int pos;
+      private int limit;
+
+      private final Bytes tagName = new Bytes(16);
+      private final Bytes attrName = new Bytes(16);
+      private final Bytes value = new Bytes(256);
+      private final Bytes anchorText = new Bytes(MAX_ANCHOR_BYTES);
+      private final Result result = new Result();
+
+      /**
+       * The href of the a tag being read, null outside of anchors.
+       */
+      private String openHref;
+
+      Tokenizer(InputStream in, Charset charset, int maxLinks) {
+         this.in = in;
+         this.charset = charset;
+         this.maxLinks = maxLinks;
+      }
+
+      Result run() throws IOException {
+         int c;
+         while (result.links.size() < maxLinks && (c = read()) >= 0) {
+            if (c == '<') {
+               tag();
+            } else if (openHref != null) {
+               appendAnchorText(c);
+            }
+         }
+         closeAnchor();
+         // A streamed page only holds the bytes read, its content and SimHash need the whole page
+         while (fill()) {
+            pos = limit;
+         }
+         return result;
+      }
+
+      private void tag() throws IOException {
+         int c = read();
+         if (c == '!') {
+            c = read();
+            if (c == '-' && peek() == '-') {
+               read();
+               skipComment();
+            } else {
+               skipTo('>');
+            }
+            return;
+         }
+         if (c == '?') {
+            skipTo('>');
+            return;
+         }
+         boolean closing = c == '/';
+         if (closing) {
+            c = read();
+         }
+         if (!isLetter(c)) {
+            // A lone '<' in text
+            if (openHref != null && !closing) {
+               appendAnchorText('<');
+               if (c >= 0) {
+                  appendAnchorText(c);
+               }
+            }
+            return;
+         }
+         tagName.clear();
+         while (c >= 0 && !isSpace(c) && c != '>' && c != '/') {
+            tagName.append(toLower(c));
+            c = read();
+         }
+         if (closing) {
+            if (tagName.is("a")) {
+               closeAnchor();
+            }
+            if (c != '>') {
+               skipTo('>');
+            }
+            return;
+         }
+
+         String href = null;
+         String src = null;
+         while (c >= 0 && c != '>') {
+            if (isSpace(c) || c == '/') {
+               c = read();
+               continue;
+            }
+            attrName.clear();
+            while (c >= 0 && !isSpace(c) && c != '=' && c != '>' && c != '/') {
+               attrName.append(toLower(c));
+               c = read();
+            }
+            while (isSpace(c)) {
+               c = read();
+            }
+            if (c != '=') {
+               continue;
+            }
+            c = read();
+            while (isSpace(c)) {
+               c = read();
+            }
+            boolean wanted = attrName.is("href") || attrName.is("src");
+            value.clear();
+            if (c == '"' || c == '\'') {
+               int quote = c;
+               c = read();
+               while (c >= 0 && c != quote) {
+                  if (wanted) {
+                     value.append(c);
+                  }
+                  c = read();
+               }
+               c = read();
+            } else {
+               while (c >= 0 && !isSpace(c) && c != '>') {
+                  if (wanted) {
+                     value.append(c);
+                  }
+                  c = read();
+               }
+            }
+            if (wanted) {
+               String text = decodeEntities(value.toString(charset).trim());
+               if (attrName.is("href")) {
+                  href = text;
+               } else {
+                  src = text;
+               }
+            }
+         }
+         handleTag(href, src);
+      }
+
+      private void handleTag(String href, String src) throws IOException {
+         if (tagName.is("a")) {
+            // An a tag closes the previous one, nesting is not allowed
+            closeAnchor();
+            if (href != null) {
+               openHref = href;
+               anchorText.clear();
+            }
+         } else if (tagName.is("area") || tagName.is("link")) {
+            addLink(href, "");
+         } else if (tagName.is("base")) {
+            if (result.baseUrl == null && href != null) {
+               result.baseUrl = href;
+            }
+         } else if (tagName.is("img") || tagName.is("iframe") || tagName.is("frame") || tagName.is("embed") || tagName.is("source")) {
+            addLink(src, "");
+         } else if (tagName.is("script")) {
+            addLink(src, "");
+            skipRawText("script");
+         } else if (tagName.is("style")) {
+            skipRawText("style");
+         }
+      }
+
+      private void addLink(String href, String anchor) {
+         if (href != null && !href.isEmpty() && result.links.size() < maxLinks) {
+            result.links.add(new ExtractedUrlAnchorPair(href, anchor, tagName.toString(charset)));
+         }
+      }
+
+      private void closeAnchor() {
+         if (openHref != null) {
+            String href = openHref;
+            openHref = null;
+            if (!href.isEmpty() && result.links.size() < maxLinks) {
+               result.links.add(new ExtractedUrlAnchorPair(href, decodeEntities(anchorText.toString(charset).trim()), "a"));
+            }
+         }
+      }
+
+      private void appendAnchorText(int c) {
+         if (anchorText.length >= MAX_ANCHOR_BYTES) {
+            return;
+         }
+         if (isSpace(c)) {
+            // Collapse white space
+            if (anchorText.length > 0 && anchorText.data[anchorText.length - 1] != ' ') {
+               anchorText.append(' ');
+            }
+         } else {
+            anchorText.append(c);
+         }
+      }
+
+      private void skipComment() throws IOException {
+         int dashes = 0;
+         int c;
+         while ((c = read()) >= 0) {
+            if (c == '>' && dashes >= 2) {
+               return;
+            }
+            dashes = c == '-' ? dashes + 1 : 0;
+         }
+      }
+
+      /**
+       * Skips the content of script and style elements up to their closing tag.
+       */
+      private void skipRawText(String name) throws IOException {
+         int c;
+         while ((c = read()) >= 0) {
+            if (c != '<' || peek() != '/') {
+               continue;
+            }
+            read();
+            int matched = 0;
+            while (matched < name.length() && toLower(c = read()) == name.charAt(matched)) {
+               matched++;
+            }
+            if (matched == name.length()) {
+               skipTo('>');
+               return;
+            }
+         }
+      }
+
+      private void skipTo(int end) throws IOException {
+         int c;
+         while ((c = read()) >= 0 && c != end) {
+            // skip
+         }
+      }
+
+      private int read() throws IOException {
+         if (pos == limit && !fill()) {
+            return -1;
+         }
+         return buf[pos++] & 0xFF;
+      }
+
+      private int peek() throws IOException {
+         if (pos == limit && !fill()) {
+            return -1;
+         }
+         return buf[pos] & 0xFF;
+      }
+
+      private boolean fill() throws IOException {
+         int n = in.read(buf, 0, buf.length);
+         while (n == 0) {
+            n = in.read(buf, 0, buf.length);
+         }
+         if (n < 0) {
+            return false;
+         }
+         pos = 0;
+         limit = n;
+         return true;
+      }
+   }
+
+   /**
+    * Reusable byte accumulator, capped at {@link #MAX_VALUE_BYTES}.
+    */
+   private static final class Bytes {
+      byte[] data;
+      int length;
+
+      Bytes(int capacity) {
+         data = new byte[capacity];
+      }
+
+      void clear() {
+         length = 0;
+      }
+
+      void append(int c) {
+         if (length == data.length) {
+            if (length >= MAX_VALUE_BYTES) {
+               return;
+            }
+            byte[] grown = new byte[Math.min(length * 2, MAX_VALUE_BYTES)];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+         }
+         data[length++] = (byte) c;
+      }
+
+      /**
+       * @return true if the bytes equal the given lower case ASCII string
+       */
+      boolean is(String ascii) {
+         if (length != ascii.length()) {
+            return false;
+         }
+         for (int i = 0; i < length; i++) {
+            if (data[i] != ascii.charAt(i)) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      String toString(Charset charset) {
+         return new String(data, 0, length, charset);
+      }
+   }
+
+   private static boolean isLetter(int c) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+   }
+
+   private static boolean isSpace(int c) {
+      return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+   }
+
+   private static int toLower(int c) {
+      return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+   }
+
+   /**
+    * Decodes the character references which commonly appear in urls and anchor texts.
+    */
+   static String decodeEntities(String text) {
+      int amp = text.indexOf('&');
+      if (amp < 0) {
+         return text;
+      }
+      StringBuilder sb = new StringBuilder(text.length());
+      sb.append(text, 0, amp);
+      int i = amp;
+      while (i < text.length()) {
+         char c = text.charAt(i);
+         int semi = c == '&' ? text.indexOf(';', i) : -1;
+         if (semi < 0 || semi - i > 10) {
+            sb.append(c);
+            i++;
+            continue;
+         }
+         String entity = text.substring(i + 1, semi);
+         String decoded = decodeEntity(entity);
+         if (decoded == null) {
+            sb.append(c);
+            i++;
+         } else {
+            sb.append(decoded);
+            i = semi + 1;
+         }
+      }
+      return sb.toString();
+   }
+
+   private static String decodeEntity(String entity) {
+      if (entity.equals("amp")) {
+         return "&";
+      } else if (entity.equals("lt")) {
+         return "<";
+      } else if (entity.equals("gt")) {
+         return ">";
+      } else if (entity.equals("quot")) {
+         return "\"";
+      } else if (entity.equals("apos")) {
+         return "'";
+      } else if (entity.equals("nbsp")) {
+         return " ";
+      } else if (entity.startsWith("#")) {
+         try {
+            int code = entity.startsWith("#x") || entity.startsWith("#X") ? Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+            return new String(Character.toChars(code));
+         } catch (IllegalArgumentException e) {
+            return null;
+         }
+      }
+      return null;
+   }
+}
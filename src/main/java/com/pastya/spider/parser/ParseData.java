@@ -7,6 +7,7 @@ public class ParseData {
 
    private Set<String> outgoingUrls = new HashSet<String>();
    private String content = null;
+   private long simHash;
 
    public String getContent() {
       return content;
@@ -16,6 +17,17 @@ public class ParseData {
       this.content = content;
    }
 
+   /**
+    * @return the {@link com.pastya.spider.dedup.SimHash} of the text, or 0 if it was not computed
+    */
+   public long getSimHash() {
+      return simHash;
+   }
+
+   public void setSimHash(long simHash) {
+      this.simHash = simHash;
+   }
+
    public Set<String> getOutgoingUrls() {
       return outgoingUrls;
    }
@@ -1,12 +1,12 @@
 package com.pastya.spider.parser;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
@@ -15,9 +15,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 import com.pastya.spider.config.CrawlConfig;
 import com.pastya.spider.crawl.Page;
+import com.pastya.spider.dedup.SimHash;
 import com.pastya.spider.fetch.FetchItem;
+import com.pastya.spider.metrics.CrawlMetrics;
+import com.pastya.spider.utils.UrlHelper;
 
 public class Parser {
    protected static final Logger logger = LoggerFactory.getLogger(Parser.class);
@@ -25,15 +30,47 @@ public class Parser {
    private final CrawlConfig config;
    private final HtmlParser htmlParser;
    private final ParseContext parseContext;
-   private static final Pattern pattern = initializePattern();
+   private final HtmlLinkExtractor linkExtractor;
+   private final byte[] sniffBuffer = new byte[HtmlLinkExtractor.SNIFF_SIZE];
 
    public Parser(CrawlConfig config) throws InstantiationException, IllegalAccessException {
       this.config = config;
       htmlParser = new HtmlParser();
       parseContext = new ParseContext();
+      // Some extracted links are filtered out later, so the extractor collects more than the limit
+      linkExtractor = config.getCrawlerInfo().isFastLinkExtraction() ? new HtmlLinkExtractor(2 * config.getUrlFilters().getMaxOutgoingLinksToFollow() + 1)
+            : null;
    }
 
    public void parse(Page page, String contextURL) throws Exception {
+      try (InputStream content = page.getContent().openStream()) {
+         parse(page, content, contextURL);
+      }
+   }
+
+   /**
+    * Parses the page while its content is read from the given stream, for example straight from {@link Page#openContent}. The text of the page is only set
+    * as the ParseData content if the page keeps its content.
+    *
+    * @param page
+    *           the page to parse
+    * @param content
+    *           the content of the page
+    * @param contextURL
+    *           the url relative links are resolved against
+    * @throws Exception
+    *            when parsing fails
+    */
+   public void parse(Page page, InputStream content, String contextURL) throws Exception {
+      long start = System.nanoTime();
+      try {
+         parseContent(page, content, contextURL);
+      } finally {
+         CrawlMetrics.parsed(System.nanoTime() - start);
+      }
+   }
+
+   private void parseContent(Page page, InputStream content, String contextURL) throws Exception {
       if (Parser.hasBinaryContent(page.getContentType())) { // Images
          ParseData parseData = new ParseData();
          if (config.getUrlFilters().isSkipImages()) {
@@ -43,78 +80,138 @@ public class Parser {
       } else if (Parser.hasPlainTextContent(page.getContentType())) { // plain Text
          try {
             ParseData parseData = new ParseData();
-            if (page.getContentCharset() == null) {
-               parseData.setContent(new String(page.getContentData()));
-            } else {
-               parseData.setContent(new String(page.getContentData(), page.getContentCharset()));
+            String text = CharStreams.toString(new InputStreamReader(content, charsetOf(page)));
+            // Like HTML, the content is only kept when the page keeps its own
+            if (page.hasContent()) {
+               parseData.setContent(text);
+            }
+            parseData.setOutgoingUrls(Parser.extractUrls(text));
+            if (config.getCrawlerInfo().isNearDuplicateDetection()) {
+               parseData.setSimHash(SimHash.ofText(text));
             }
-            parseData.setOutgoingUrls(Parser.extractUrls(parseData.getContent()));
             page.setParseData(parseData);
          } catch (Exception e) {
             logger.error("{}, while parsing: {}", e.getMessage(), page.getFetchItem().getToUrl());
             throw new ParseException(e);
          }
       } else { // isHTML
-         Metadata metadata = new Metadata();
-         DefaultHandler contentHandler = new DefaultHandler();
-         try (InputStream inputStream = new ByteArrayInputStream(page.getContentData())) {
-            htmlParser.parse(inputStream, contentHandler, metadata, parseContext);
-         } catch (Exception e) {
-            logger.error("{}, while parsing: {}", e.getMessage(), page.getFetchItem().getToUrl());
-            throw e;
+         BufferedInputStream buffered = new BufferedInputStream(content, HtmlLinkExtractor.SNIFF_SIZE);
+         ParseData parseData;
+         if (linkExtractor != null && HtmlLinkExtractor.canExtract(sniffBuffer, sniff(buffered), charsetOf(page))) {
+            parseData = parseHtmlLinks(page, buffered, contextURL);
+         } else {
+            parseData = parseHtmlWithTika(page, buffered, contextURL);
          }
 
-         if (page.getContentCharset() == null) {
-            page.setContentCharset(metadata.get("Content-Encoding"));
+         try {
+            // The parsers may stop before the end, a streamed page only holds the bytes read so far
+            ByteStreams.copy(buffered, ByteStreams.nullOutputStream());
+            if (page.hasContent()) {
+               parseData.setContent(contentAsString(page));
+               if (config.getCrawlerInfo().isNearDuplicateDetection()) {
+                  parseData.setSimHash(SimHash.ofHtml(parseData.getContent()));
+               }
+            }
+
+            page.setParseData(parseData);
+         } catch (IOException | IllegalArgumentException e) {
+            logger.error("error parsing the html: " + page.getFetchItem().getToUrl(), e);
+            throw new ParseException(e);
          }
+      }
+   }
 
-         ParseData parseData = new ParseData();
-         parseData.setText(contentHandler.getBodyText().trim());
-         Set<FetchItem> outgoingUrls = new HashSet<FetchItem>();
+   /**
+    * Fast path: only the links of the page are extracted, from its raw bytes.
+    */
+   private ParseData parseHtmlLinks(Page page, InputStream content, String contextURL) throws Exception {
+      HtmlLinkExtractor.Result result;
+      try {
+         result = linkExtractor.extract(content, charsetOf(page));
+      } catch (IOException e) {
+         logger.error("{}, while parsing: {}", e.getMessage(), page.getFetchItem().getToUrl());
+         throw e;
+      }
+      if (result.getBaseUrl() != null) {
+         contextURL = result.getBaseUrl();
+      }
+      ParseData parseData = new ParseData();
+      parseData.setOutgoingUrls(toFetchItems(result.getLinks(), contextURL));
+      return parseData;
+   }
 
-         String baseURL = contentHandler.getBaseUrl();
-         if (baseURL != null) {
-            contextURL = baseURL;
-         }
+   private ParseData parseHtmlWithTika(Page page, InputStream content, String contextURL) throws Exception {
+      Metadata metadata = new Metadata();
+      DefaultHandler contentHandler = new DefaultHandler();
+      try {
+         htmlParser.parse(content, contentHandler, metadata, parseContext);
+      } catch (Exception e) {
+         logger.error("{}, while parsing: {}", e.getMessage(), page.getFetchItem().getToUrl());
+         throw e;
+      }
 
-         int urlCount = 0;
-         for (ExtractedUrlAnchorPair urlAnchorPair : contentHandler.getOutgoingUrls()) {
+      if (page.getContentCharset() == null) {
+         page.setContentCharset(metadata.get("Content-Encoding"));
+      }
 
-            String href = urlAnchorPair.getHref();
-            if ((href == null) || href.trim().isEmpty()) {
-               continue;
-            }
+      ParseData parseData = new ParseData();
+      parseData.setText(contentHandler.getBodyText().trim());
 
-            String hrefLoweredCase = href.trim().toLowerCase();
-            if (!hrefLoweredCase.contains("javascript:") && !hrefLoweredCase.contains("mailto:") && !hrefLoweredCase.contains("@")) {
-               String url = URLCanonicalizer.getCanonicalURL(href, contextURL);
-               if (url != null) {
-                  FetchItem fetchItem = FetchItem.create(url, 0);
-                  fetchItem.setTag(urlAnchorPair.getTag());
-                  fetchItem.setAnchor(urlAnchorPair.getAnchor());
-                  outgoingUrls.add(fetchItem);
-                  urlCount++;
-                  if (urlCount > config.getUrlFilters().getMaxOutgoingLinksToFollow()) {
-                     break;
-                  }
-               }
-            }
+      String baseURL = contentHandler.getBaseUrl();
+      if (baseURL != null) {
+         contextURL = baseURL;
+      }
+      parseData.setOutgoingUrls(toFetchItems(contentHandler.getOutgoingUrls(), contextURL));
+      return parseData;
+   }
+
+   private Set<FetchItem> toFetchItems(Iterable<ExtractedUrlAnchorPair> urlAnchorPairs, String contextURL) {
+      Set<FetchItem> outgoingUrls = new HashSet<FetchItem>();
+      int urlCount = 0;
+      for (ExtractedUrlAnchorPair urlAnchorPair : urlAnchorPairs) {
+
+         String href = urlAnchorPair.getHref();
+         if (href == null) {
+            continue;
          }
-         parseData.setOutgoingUrls(outgoingUrls);
 
-         try {
-            if (page.getContentCharset() == null) {
-               parseData.setContent(new String(page.getContentData()));
-            } else {
-               parseData.setContent(new String(page.getContentData(), page.getContentCharset()));
+         // javascript: and mailto: links are not http URLs and come back null
+         String url = UrlHelper.canonicalize(href, contextURL);
+         if (url != null && url.indexOf('@') < 0 && !(config.getUrlFilters().isSkipHttpsPages() && url.startsWith("https:"))) {
+            FetchItem fetchItem = FetchItem.create(url, 0);
+            fetchItem.setTag(urlAnchorPair.getTag());
+            fetchItem.setAnchor(urlAnchorPair.getAnchor());
+            outgoingUrls.add(fetchItem);
+            urlCount++;
+            if (urlCount > config.getUrlFilters().getMaxOutgoingLinksToFollow()) {
+               break;
             }
-
-            page.setParseData(parseData);
-         } catch (UnsupportedEncodingException e) {
-            logger.error("error parsing the html: " + page.getFetchItem().getToUrl(), e);
-            throw new ParseException(e);
          }
       }
+      return outgoingUrls;
+   }
+
+   /**
+    * Reads the first bytes of the stream into the sniff buffer without consuming them.
+    *
+    * @return number of bytes read
+    */
+   private int sniff(BufferedInputStream in) throws IOException {
+      in.mark(HtmlLinkExtractor.SNIFF_SIZE);
+      int length = ByteStreams.read(in, sniffBuffer, 0, HtmlLinkExtractor.SNIFF_SIZE);
+      in.reset();
+      return length;
+   }
+
+   /**
+    * Decodes the content of the page straight from its buffer, without copying it into an array first.
+    */
+   private static String contentAsString(Page page) throws IOException {
+      return page.getContent().asCharSource(charsetOf(page)).read();
+   }
+
+   private static Charset charsetOf(Page page) {
+      return page.getContentCharset() == null ? Charset.defaultCharset() : Charset.forName(page.getContentCharset());
    }
 
    private static boolean hasBinaryContent(String contentType) {
@@ -130,33 +227,9 @@ public class Parser {
    }
 
    private static Set<String> extractUrls(String input) {
-       Set<String> extractedUrls = new HashSet<>();
-
-       if (input != null) {
-           Matcher matcher = pattern.matcher(input);
-           while (matcher.find()) {
-               String urlStr = matcher.group();
-               if (!urlStr.startsWith("http")) {
-                   urlStr = "http://" + urlStr;
-               }
-               extractedUrls.add(urlStr);
-           }
-       }
-
-       return extractedUrls;
+      if (input == null) {
+         return new HashSet<>();
+      }
+      return new HashSet<>(UrlScanner.scan(input));
    }
-
-   // Pattern shamelessly borrowed from Another project
-   private static Pattern initializePattern() {
-       return Pattern.compile("\\b(((ht|f)tp(s?)\\:\\/\\/|~\\/|\\/)|www.)" +
-                              "(\\w+:\\w+@)?(([-\\w]+\\.)+(com|org|net|gov" +
-                              "|mil|biz|info|mobi|name|aero|jobs|museum" +
-                              "|travel|[a-z]{2}))(:[\\d]{1,5})?" +
-                              "(((\\/([-\\w~!$+|.,=]|%[a-f\\d]{2})+)+|\\/)+|\\?|#)?" +
-                              "((\\?([-\\w~!$+|.,*:]|%[a-f\\d{2}])+=?" +
-                              "([-\\w~!$+|.,*:=]|%[a-f\\d]{2})*)" +
-                              "(&(?:[-\\w~!$+|.,*:]|%[a-f\\d{2}])+=?" +
-                              "([-\\w~!$+|.,*:=]|%[a-f\\d]{2})*)*)*" +
-                              "(#([-\\w~!$+|.,*:=]|%[a-f\\d]{2})*)?\\b");
-   }   
 }
@@ -0,0 +1,226 @@
+package com.pastya.spider.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds URLs in plain text in a single left to right pass.
+ *
+ * <p>
+ * A URL starts at a word boundary with http://, https://, ftp://, ftps:// or www., followed by optional user:password@, a host made of dot separated
+ * labels ending in a known top-level domain or a two letter country code, an optional port, and an optional path, query and fragment. Trailing
+ * punctuation is not part of the URL, so "see http://example.com/a." yields "http://example.com/a". URLs starting with www. are returned with http://
+ * prepended.
+ * </p>
+ *
+ * <p>
+ * Unlike the regular expression it replaces, the scanner never backtracks: a failed candidate resumes the scan after the characters it looked at, so each
+ * character is examined a bounded number of times and the time is linear in the length of the text whatever its content.
+ * </p>
+ */
+public final class UrlScanner {
+
+   private static final String[] SCHEMES = { "http://", "https://", "ftp://", "ftps://" };
+   private static final String WWW = "www.";
+   private static final String DEFAULT_SCHEME = "http://";
+
+   private static final Set<String> TOP_LEVEL_DOMAINS = new HashSet<String>(Arrays.asList("com", "org", "net", "gov", "mil", "biz", "info", "mobi",
+         "name", "aero", "jobs", "museum", "travel"));
+
+   private static final int MAX_PORT_DIGITS = 5;
+
+   private UrlScanner() {
+   }
+
+   /**
+    * @return the URLs found in the text, in the order they appear
+    */
+   public static List<String> scan(CharSequence text) {
+      List<String> urls = new ArrayList<String>();
+      int length = text.length();
+      int i = 0;
+      while (i < length) {
+         char c = text.charAt(i);
+         if ((c == 'h' || c == 'f' || c == 'w') && (i == 0 || !isWordChar(text.charAt(i - 1)))) {
+            int next = scanUrl(text, i, urls);
+            if (next > i) {
+               i = next;
+               continue;
+            }
+         }
+         i++;
+      }
+      return urls;
+   }
+
+   /**
+    * Reads a URL starting at the given position and adds it to the list.
+    *
+    * @return the position to resume the scan from, or start if no URL can start there
+    */
+   private static int scanUrl(CharSequence text, int start, List<String> urls) {
+      int length = text.length();
+      int pos = -1;
+      for (String scheme : SCHEMES) {
+         if (startsWith(text, start, scheme)) {
+            pos = start + scheme.length();
+            break;
+         }
+      }
+      boolean hasScheme = pos >= 0;
+      int hostStart;
+      int minLabels;
+      if (hasScheme) {
+         hostStart = skipUserInfo(text, pos);
+         minLabels = 2;
+      } else if (startsWith(text, start, WWW)) {
+         hostStart = start;
+         minLabels = 3;
+      } else {
+         return start;
+      }
+
+      // The host is the longest run of labels ending in a top-level domain
+      int hostEnd = -1;
+      int labels = 0;
+      int labelStart = hostStart;
+      int end = hostStart;
+      while (end < length && isHostChar(text.charAt(end))) {
+         end++;
+      }
+      for (int p = hostStart; p <= end; p++) {
+         if (p == end || text.charAt(p) == '.') {
+            if (p == labelStart) {
+               break;
+            }
+            labels++;
+            if (labels >= minLabels && isTopLevelDomain(text, labelStart, p)) {
+               hostEnd = p;
+            }
+            labelStart = p + 1;
+         }
+      }
+      if (hostEnd < 0) {
+         return Math.max(end, start + 1);
+      }
+
+      int urlEnd = hostEnd;
+      if (urlEnd < length && text.charAt(urlEnd) == ':') {
+         int digits = 0;
+         while (urlEnd + 1 + digits < length && isDigit(text.charAt(urlEnd + 1 + digits))) {
+            digits++;
+         }
+         if (digits > 0 && digits <= MAX_PORT_DIGITS) {
+            urlEnd += 1 + digits;
+         }
+      }
+
+      int resume = urlEnd;
+      if (urlEnd < length && isTailStart(text.charAt(urlEnd))) {
+         while (resume < length && isTailChar(text.charAt(resume))) {
+            resume++;
+         }
+         // Trailing punctuation ends the sentence rather than the URL
+         urlEnd = resume;
+         while (!isWordChar(text.charAt(urlEnd - 1))) {
+            urlEnd--;
+         }
+      }
+
+      String url = text.subSequence(start, urlEnd).toString();
+      urls.add(hasScheme ? url : DEFAULT_SCHEME + url);
+      return resume;
+   }
+
+   /**
+    * @return the position after user:password@, or pos if there is none
+    */
+   private static int skipUserInfo(CharSequence text, int pos) {
+      int length = text.length();
+      int p = pos;
+      while (p < length && isWordChar(text.charAt(p))) {
+         p++;
+      }
+      if (p == pos || p >= length || text.charAt(p) != ':') {
+         return pos;
+      }
+      int passwordStart = ++p;
+      while (p < length && isWordChar(text.charAt(p))) {
+         p++;
+      }
+      if (p == passwordStart || p >= length || text.charAt(p) != '@') {
+         return pos;
+      }
+      return p + 1;
+   }
+
+   private static boolean isTopLevelDomain(CharSequence text, int start, int end) {
+      int length = end - start;
+      if (length == 2) {
+         return isLowerCaseLetter(text.charAt(start)) && isLowerCaseLetter(text.charAt(start + 1));
+      }
+      return length >= 3 && length <= 6 && TOP_LEVEL_DOMAINS.contains(text.subSequence(start, end).toString());
+   }
+
+   private static boolean startsWith(CharSequence text, int start, String prefix) {
+      if (start + prefix.length() > text.length()) {
+         return false;
+      }
+      for (int i = 0; i < prefix.length(); i++) {
+         if (text.charAt(start + i) != prefix.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+   }
+
+   private static boolean isLowerCaseLetter(char c) {
+      return c >= 'a' && c <= 'z';
+   }
+
+   private static boolean isWordChar(char c) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+   }
+
+   private static boolean isHostChar(char c) {
+      return isWordChar(c) || c == '-' || c == '.';
+   }
+
+   private static boolean isTailStart(char c) {
+      return c == '/' || c == '?' || c == '#';
+   }
+
+   private static boolean isTailChar(char c) {
+      if (isWordChar(c)) {
+         return true;
+      }
+      switch (c) {
+      case '-':
+      case '~':
+      case '!':
+      case '$':
+      case '+':
+      case '|':
+      case '.':
+      case ',':
+      case '=':
+      case '%':
+      case '/':
+      case '?':
+      case '&':
+      case '*':
+      case ':':
+      case '#':
+         return true;
+      default:
+         return false;
+      }
+   }
+}
@@ -0,0 +1,364 @@
+package com.pastya.spider.robots;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rules of a robots.txt which apply to one user agent, compiled into a trie of path patterns.
+ *
+ * <p>
+ * Patterns follow RFC 9309: a rule matches paths starting with its pattern, "*" matches any sequence of characters and a trailing "$" anchors the pattern
+ * at the end of the path. The longest matching pattern decides, Allow wins over Disallow for patterns of the same length.
+ * </p>
+ *
+ * <p>
+ * {@link #isAllowed(String)} walks the trie once along the path, so a check costs O(path length) whatever the number of rules. Patterns with wildcards add
+ * at most one state each to the walk. Instances are immutable and shared by all crawler threads.
+ * </p>
+ */
+public class RobotsRules {
+
+   /**
+    * Rules of a host without robots.txt.
+    */
+   public static final RobotsRules ALLOW_ALL = new RobotsRules(new Node(false), -1, Collections.<String> emptyList());
+
+   /**
+    * Rules of a host whose robots.txt cannot be fetched for now.
+    */
+   public static final RobotsRules DISALLOW_ALL;
+
+   static {
+      Node root = new Node(false);
+      root.insert("/", false);
+      DISALLOW_ALL = new RobotsRules(root, -1, Collections.<String> emptyList());
+   }
+
+   private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+   private final Node root;
+   private final long crawlDelayMillis;
+   private final List<String> sitemaps;
+
+   private RobotsRules(Node root, long crawlDelayMillis, List<String> sitemaps) {
+      this.root = root;
+      this.crawlDelayMillis = crawlDelayMillis;
+      this.sitemaps = sitemaps;
+   }
+
+   /**
+    * Parses a robots.txt and keeps the groups for the given user agent, or the "*" groups if none names it.
+    *
+    * @param content
+    *           the robots.txt
+    * @param userAgent
+    *           the User-Agent header of the crawler, its product token (the part before the first "/" or space) is matched case-insensitively
+    */
+   public static RobotsRules parse(String content, String userAgent) {
+      String productToken = productToken(userAgent);
+      Node agentRoot = new Node(false);
+      Node wildcardRoot = new Node(false);
+      long agentDelay = -1;
+      long wildcardDelay = -1;
+      boolean agentGroupFound = false;
+      List<String> sitemaps = new ArrayList<String>();
+
+      boolean inAgentGroup = false;
+      boolean inWildcardGroup = false;
+      boolean groupHasRules = false;
+      int lineStart = 0;
+      while (lineStart < content.length()) {
+         int lineEnd = lineStart;
+         while (lineEnd < content.length() && content.charAt(lineEnd) != '\n' && content.charAt(lineEnd) != '\r') {
+            lineEnd++;
+         }
+         String line = content.substring(lineStart, lineEnd);
+         lineStart = lineEnd + 1;
+
+         int comment = line.indexOf('#');
+         if (comment >= 0) {
+            line = line.substring(0, comment);
+         }
+         int colon = line.indexOf(':');
+         if (colon < 0) {
+            continue;
+         }
+         String key = line.substring(0, colon).trim().toLowerCase();
+         String value = line.substring(colon + 1).trim();
+
+         if (key.equals("user-agent")) {
+            if (groupHasRules) {
+               // A user-agent line after rules starts the next group
+               inAgentGroup = false;
+               inWildcardGroup = false;
+               groupHasRules = false;
+            }
+            if (value.equals("*")) {
+               inWildcardGroup = true;
+            } else if (productToken(value).equals(productToken)) {
+               inAgentGroup = true;
+               agentGroupFound = true;
+            }
+         } else if (key.equals("allow") || key.equals("disallow")) {
+            groupHasRules = true;
+            if (value.isEmpty()) {
+               // "Disallow:" allows everything
+               continue;
+            }
+            String pattern = normalizePattern(value);
+            if (inAgentGroup) {
+               agentRoot.insert(pattern, key.equals("allow"));
+            }
+            if (inWildcardGroup) {
+               wildcardRoot.insert(pattern, key.equals("allow"));
+            }
+         } else if (key.equals("crawl-delay")) {
+            groupHasRules = true;
+            long delay = parseDelayMillis(value);
+            if (inAgentGroup && agentDelay < 0) {
+               agentDelay = delay;
+            }
+            if (inWildcardGroup && wildcardDelay < 0) {
+               wildcardDelay = delay;
+            }
+         } else if (key.equals("sitemap")) {
+            if (!value.isEmpty()) {
+               sitemaps.add(value);
+            }
+         }
+      }
+      return agentGroupFound ? new RobotsRules(agentRoot, agentDelay, sitemaps) : new RobotsRules(wildcardRoot, wildcardDelay, sitemaps);
+   }
+
+   /**
+    * @param path
+    *           the path and query of the URL, for example "/a/b?c=d"
+    * @return true if the rules allow fetching the path
+    */
+   public boolean isAllowed(String path) {
+      if (root.isLeaf()) {
+         return true;
+      }
+      if (path.isEmpty()) {
+         path = "/";
+      }
+      States current = new States();
+      States next = new States();
+      current.add(root);
+      int bestLength = -1;
+      boolean bestAllows = true;
+      for (int i = 0;; i++) {
+         boolean end = i == path.length();
+         for (int s = 0; s < current.size; s++) {
+            Node node = current.nodes[s];
+            int allowLength = end ? Math.max(node.allow, node.endAllow) : node.allow;
+            int disallowLength = end ? Math.max(node.disallow, node.endDisallow) : node.disallow;
+            if (disallowLength > bestLength) {
+               bestLength = disallowLength;
+               bestAllows = false;
+            }
+            if (allowLength >= bestLength && allowLength >= 0) {
+               bestLength = allowLength;
+               bestAllows = true;
+            }
+         }
+         if (end) {
+            break;
+         }
+         char c = path.charAt(i);
+         next.size = 0;
+         for (int s = 0; s < current.size; s++) {
+            Node node = current.nodes[s];
+            Node child = node.child(c);
+            if (child != null) {
+               next.add(child);
+            }
+            if (node.wildcard) {
+               next.add(node);
+            }
+         }
+         if (next.size == 0) {
+            break;
+         }
+         States swap = current;
+         current = next;
+         next = swap;
+      }
+      return bestAllows;
+   }
+
+   /**
+    * @return the Crawl-delay in milliseconds, or -1 if none is given
+    */
+   public long getCrawlDelayMillis() {
+      return crawlDelayMillis;
+   }
+
+   /**
+    * @return the URLs of the Sitemap lines, which apply whatever the user agent
+    */
+   public List<String> getSitemaps() {
+      return sitemaps;
+   }
+
+   private static String productToken(String userAgent) {
+      String token = userAgent.trim();
+      for (int i = 0; i < token.length(); i++) {
+         char c = token.charAt(i);
+         if (c == '/' || c == ' ' || c == '(') {
+            token = token.substring(0, i);
+            break;
+         }
+      }
+      return token.toLowerCase();
+   }
+
+   private static long parseDelayMillis(String value) {
+      try {
+         double seconds = Double.parseDouble(value);
+         return seconds < 0 || Double.isNaN(seconds) ? -1 : (long) (seconds * 1000);
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   /**
+    * Escapes non-ASCII characters as UTF-8 and uppercases escapes, as in canonical URLs, and makes the pattern start with "/" or "*".
+    */
+   private static String normalizePattern(String value) {
+      StringBuilder pattern = new StringBuilder(value.length() + 1);
+      if (value.charAt(0) != '/' && value.charAt(0) != '*') {
+         pattern.append('/');
+      }
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '%' && i + 2 < value.length()) {
+            pattern.append('%').append(Character.toUpperCase(value.charAt(i + 1))).append(Character.toUpperCase(value.charAt(i + 2)));
+            i += 2;
+         } else if (c < 0x80) {
+            pattern.append(c);
+         } else {
+            int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+            for (byte b : value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+               pattern.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+            }
+            i = end - 1;
+         }
+      }
+      return pattern.toString();
+   }
+
+   /**
+    * A trie node. The rule fields hold the length of the longest Allow or Disallow pattern ending here, -1 if none.
+    */
+   private static final class Node {
+      private static final char[] NO_KEYS = new char[0];
+      private static final Node[] NO_CHILDREN = new Node[0];
+
+      /**
+       * True for nodes reached through "*", they match any character and stay active.
+       */
+      final boolean wildcard;
+      char[] keys = NO_KEYS;
+      Node[] children = NO_CHILDREN;
+      Node star;
+      int allow = -1;
+      int disallow = -1;
+      int endAllow = -1;
+      int endDisallow = -1;
+
+      Node(boolean wildcard) {
+         this.wildcard = wildcard;
+      }
+
+      boolean isLeaf() {
+         return keys.length == 0 && star == null && allow < 0 && disallow < 0 && endAllow < 0 && endDisallow < 0;
+      }
+
+      Node child(char c) {
+         int index = Arrays.binarySearch(keys, c);
+         return index >= 0 ? children[index] : null;
+      }
+
+      void insert(String pattern, boolean allows) {
+         int length = pattern.length();
+         boolean anchored = pattern.endsWith("$");
+         int patternEnd = anchored ? length - 1 : length;
+         // A trailing "*" changes nothing for a prefix match
+         while (!anchored && patternEnd > 0 && pattern.charAt(patternEnd - 1) == '*') {
+            patternEnd--;
+         }
+         Node node = this;
+         for (int i = 0; i < patternEnd; i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+               if (!node.wildcard) {
+                  if (node.star == null) {
+                     node.star = new Node(true);
+                  }
+                  node = node.star;
+               }
+            } else {
+               node = node.getOrAddChild(c);
+            }
+         }
+         if (anchored) {
+            if (allows) {
+               node.endAllow = Math.max(node.endAllow, length);
+            } else {
+               node.endDisallow = Math.max(node.endDisallow, length);
+            }
+         } else if (allows) {
+            node.allow = Math.max(node.allow, length);
+         } else {
+            node.disallow = Math.max(node.disallow, length);
+         }
+      }
+
+      private Node getOrAddChild(char c) {
+         int index = Arrays.binarySearch(keys, c);
+         if (index >= 0) {
+            return children[index];
+         }
+         int insertAt = -index - 1;
+         Node child = new Node(false);
+         char[] newKeys = new char[keys.length + 1];
+         Node[] newChildren = new Node[children.length + 1];
+         System.arraycopy(keys, 0, newKeys, 0, insertAt);
+         System.arraycopy(children, 0, newChildren, 0, insertAt);
+         newKeys[insertAt] = c;
+         newChildren[insertAt] = child;
+         System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+         System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+         keys = newKeys;
+         children = newChildren;
+         return child;
+      }
+   }
+
+   /**
+    * The active nodes of a walk. Entering a node also enters its "*" child, which matches the empty string.
+    */
+   private static final class States {
+      Node[] nodes = new Node[4];
+      int size;
+
+      void add(Node node) {
+         for (int i = 0; i < size; i++) {
+            if (nodes[i] == node) {
+               return;
+            }
+         }
+         if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+         }
+         nodes[size++] = node;
+         if (node.star != null) {
+            add(node.star);
+         }
+      }
+   }
+}
@@ -0,0 +1,234 @@
+package com.pastya.spider.robots;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.crawl.Page;
+import com.pastya.spider.fetch.FetchItem;
+import com.pastya.spider.fetch.FetchResult;
+import com.pastya.spider.fetch.Fetcher;
+import com.pastya.spider.metadata.HttpHeaders;
+import com.pastya.spider.sitemap.SitemapReader;
+import com.pastya.spider.utils.UrlHelper;
+
+/**
+ * Fetches the robots.txt of each host once and answers whether its pages may be crawled.
+ *
+ * <p>
+ * Compiled {@link RobotsRules} are cached per host key (protocol, host name and port if not the default) for robotsCacheTtl seconds, and at most
+ * robotsCacheSize hosts are kept, the least recently used are evicted. Concurrent lookups of a host which is not cached wait for a single fetch.
+ * </p>
+ *
+ * <p>
+ * As in RFC 9309, a missing robots.txt (4xx) allows everything, and an unreachable one (5xx, 429 or a network error) disallows everything until it is
+ * fetched again after {@link #UNAVAILABLE_RETRY_MILLIS}.
+ * </p>
+ */
+public class RobotstxtServer {
+
+   protected static final Logger logger = LoggerFactory.getLogger(RobotstxtServer.class);
+
+   /**
+    * Time after which a robots.txt which could not be fetched is tried again.
+    */
+   public static final long UNAVAILABLE_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+   private static final int MAX_REDIRECTS = 5;
+   private static final String ROBOTS_PATH = "/robots.txt";
+
+   private final CrawlConfig config;
+   private final Fetcher fetcher;
+   private final boolean enabled;
+   private final long maxCrawlDelay;
+   private final LoadingCache<String, CachedRules> cache;
+   private volatile SitemapReader sitemapReader;
+
+   /**
+    * Rules together with the time after which they must be fetched again.
+    */
+   private static class CachedRules {
+      final RobotsRules rules;
+      final long expiresAt;
+
+      CachedRules(RobotsRules rules, long expiresAt) {
+         this.rules = rules;
+         this.expiresAt = expiresAt;
+      }
+
+      boolean isExpired() {
+         return expiresAt < System.currentTimeMillis();
+      }
+   }
+
+   public RobotstxtServer(CrawlConfig config, Fetcher fetcher) {
+      this.config = config;
+      this.fetcher = fetcher;
+      CrawlConfig.CrawlerInfo crawlerInfo = config.getCrawlerInfo();
+      this.enabled = crawlerInfo.isRespectRobotsTxt();
+      this.maxCrawlDelay = crawlerInfo.getMaxCrawlDelay();
+      this.cache = CacheBuilder.newBuilder().maximumSize(crawlerInfo.getRobotsCacheSize())
+            .expireAfterWrite(crawlerInfo.getRobotsCacheTtl(), TimeUnit.SECONDS).build(new CacheLoader<String, CachedRules>() {
+               @Override
+               public CachedRules load(String hostKey) {
+                  return fetchRules(hostKey);
+               }
+            });
+   }
+
+   /**
+    * Checks the item against the robots.txt of its host, fetching it first if it is not cached.
+    *
+    * @return true if the item may be fetched
+    */
+   public boolean allows(FetchItem item) {
+      if (!enabled) {
+         return true;
+      }
+      return getRules(hostKey(item)).isAllowed(item.getUrl().getFile());
+   }
+
+   /**
+    * Checks the item against the cached robots.txt of its host, without fetching anything. Meant for the outgoing links of a page, whose hosts are checked
+    * with {@link #allows(FetchItem)} once they are fetched.
+    *
+    * @return true if the robots.txt of the host is cached and disallows the item
+    */
+   public boolean isKnownDisallowed(FetchItem item) {
+      if (!enabled) {
+         return false;
+      }
+      CachedRules cached = cache.getIfPresent(hostKey(item));
+      return cached != null && !cached.isExpired() && !cached.rules.isAllowed(item.getUrl().getFile());
+   }
+
+   /**
+    * @return the Crawl-delay of the cached robots.txt of the item's host in milliseconds, capped at maxCrawlDelay, or -1 if it has none
+    */
+   public long getCrawlDelay(FetchItem item) {
+      if (!enabled) {
+         return -1;
+      }
+      CachedRules cached = cache.getIfPresent(hostKey(item));
+      if (cached == null || cached.rules.getCrawlDelayMillis() < 0) {
+         return -1;
+      }
+      return Math.min(cached.rules.getCrawlDelayMillis(), maxCrawlDelay);
+   }
+
+   /**
+    * @param hostKey
+    *           protocol, host name and port if not the default, for example "http://www.example.com" or "http://localhost:8080"
+    * @return the rules of the host, fetched if they are not cached or expired
+    */
+   public RobotsRules getRules(String hostKey) {
+      CachedRules cached = cache.getUnchecked(hostKey);
+      if (cached.isExpired()) {
+         cache.asMap().remove(hostKey, cached);
+         cached = cache.getUnchecked(hostKey);
+      }
+      return cached.rules;
+   }
+
+   /**
+    * @param sitemapReader
+    *           reader the Sitemap lines of fetched robots.txt are submitted to, or null to ignore them
+    */
+   public void setSitemapReader(SitemapReader sitemapReader) {
+      this.sitemapReader = sitemapReader;
+   }
+
+   /**
+    * @return number of hosts whose rules are cached
+    */
+   public long size() {
+      return cache.size();
+   }
+
+   /**
+    * @return the queue key of the item, with the port if it is not the default one
+    */
+   private static String hostKey(FetchItem item) {
+      int port = item.getUrl().getPort();
+      return port < 0 ? item.getQueueKey() : item.getQueueKey() + ":" + port;
+   }
+
+   private CachedRules fetchRules(String hostKey) {
+      String url = hostKey + ROBOTS_PATH;
+      for (int redirects = 0; redirects <= MAX_REDIRECTS && url != null; redirects++) {
+         FetchItem item = FetchItem.create(url, 0);
+         if (item == null) {
+            break;
+         }
+         FetchResult fetchResult = null;
+         Page page = null;
+         try {
+            fetchResult = fetcher.fetchPage(item);
+            int statusCode = fetchResult.getStatusCode();
+            if (statusCode >= 200 && statusCode <= 299) {
+               page = new Page(item);
+               if (!fetchResult.fetchContent(page, config.getCrawlerInfo().getMaxDownloadSize())) {
+                  return unavailable(hostKey, "content could not be read");
+               }
+               String content = page.getContent().asCharSource(StandardCharsets.UTF_8).read();
+               RobotsRules rules = RobotsRules.parse(content, config.getAgentInfo().getUserAgent());
+               SitemapReader reader = sitemapReader;
+               if (reader != null) {
+                  for (String sitemap : rules.getSitemaps()) {
+                     reader.submit(sitemap);
+                  }
+               }
+               return new CachedRules(rules, Long.MAX_VALUE);
+            } else if (statusCode >= 300 && statusCode <= 399) {
+               String location = headerValue(fetchResult.getResponseHeaders(), HttpHeaders.LOCATION);
+               url = location == null ? null : UrlHelper.canonicalize(location, url);
+            } else if (statusCode == 429 || statusCode >= 500) {
+               return unavailable(hostKey, "status " + statusCode);
+            } else {
+               return new CachedRules(RobotsRules.ALLOW_ALL, Long.MAX_VALUE);
+            }
+         } catch (IOException e) {
+            return unavailable(hostKey, e.getMessage());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return unavailable(hostKey, "interrupted");
+         } catch (RuntimeException e) {
+            return unavailable(hostKey, e.getMessage());
+         } finally {
+            if (fetchResult != null) {
+               fetchResult.discardContentIfNotConsumed();
+            }
+            if (page != null) {
+               page.release();
+            }
+         }
+      }
+      // Too many or broken redirects count as a missing robots.txt
+      return new CachedRules(RobotsRules.ALLOW_ALL, Long.MAX_VALUE);
+   }
+
+   private static CachedRules unavailable(String hostKey, String reason) {
+      logger.info("robots.txt of {} is unavailable ({}), its pages are not crawled for now", hostKey, reason);
+      return new CachedRules(RobotsRules.DISALLOW_ALL, System.currentTimeMillis() + UNAVAILABLE_RETRY_MILLIS);
+   }
+
+   private static String headerValue(Header[] headers, String name) {
+      if (headers == null) {
+         return null;
+      }
+      for (Header header : headers) {
+         if (name.equalsIgnoreCase(header.getName())) {
+            return header.getValue();
+         }
+      }
+      return null;
+   }
+}
@@ -0,0 +1,423 @@
+package com.pastya.spider.sitemap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.http.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.pastya.spider.config.CrawlConfig;
+import com.pastya.spider.crawl.Page;
+import com.pastya.spider.fetch.FetchItem;
+import com.pastya.spider.fetch.FetchItemQueue;
+import com.pastya.spider.fetch.FetchResult;
+import com.pastya.spider.fetch.Fetcher;
+import com.pastya.spider.metadata.HttpHeaders;
+import com.pastya.spider.utils.UrlHelper;
+
+/**
+ * Reads sitemaps and sitemap indexes and queues the pages they list.
+ *
+ * <p>
+ * Sitemaps are read one at a time on a background thread, while they download: XML sitemaps with a streaming parser, plain text sitemaps line by line,
+ * either of them gzipped or not. Memory stays bounded by {@link #BATCH_SIZE} entries whatever the size of the sitemap. The sitemaps of an index are read
+ * after it, down to {@link #MAX_INDEX_DEPTH} levels of indexes, and each sitemap is read once.
+ * </p>
+ *
+ * <p>
+ * Pages are queued in batches through {@link FetchItemQueue#addPageFetchItems(List)}, which drops pages queued before. Within a batch the pages with the
+ * most recent lastmod are queued first, so they are fetched first on their host.
+ * </p>
+ */
+public class SitemapReader {
+
+   protected static final Logger logger = LoggerFactory.getLogger(SitemapReader.class);
+
+   /**
+    * Size limit of a sitemap from the sitemaps.org protocol, applied to the downloaded and the uncompressed content.
+    */
+   public static final int MAX_SITEMAP_SIZE = 50 * 1024 * 1024;
+
+   /**
+    * Levels of sitemap indexes followed, an index listed deeper than this is skipped.
+    */
+   public static final int MAX_INDEX_DEPTH = 3;
+
+   /**
+    * Pages queued at once.
+    */
+   public static final int BATCH_SIZE = 1000;
+
+   private static final int MAX_REDIRECTS = 5;
+   private static final int SNIFF_LENGTH = 512;
+
+   private final Fetcher fetcher;
+   private final FetchItemQueue queue;
+   private final boolean skipHttpsPages;
+   private final XMLInputFactory xmlInputFactory;
+   private final BlockingQueue<Sitemap> pending = new LinkedBlockingQueue<Sitemap>();
+   private final Set<String> submitted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private final AtomicInteger unfinished = new AtomicInteger();
+   private final Thread thread;
+   private volatile boolean shutDown;
+
+   private static class Sitemap {
+      final String url;
+      final int depth;
+
+      Sitemap(String url, int depth) {
+         this.url = url;
+         this.depth = depth;
+      }
+   }
+
+   /**
+    * A page read from a sitemap, waiting in the current batch.
+    */
+   private static class Entry {
+      final FetchItem item;
+      final long lastModified;
+
+      Entry(FetchItem item, long lastModified) {
+         this.item = item;
+         this.lastModified = lastModified;
+      }
+   }
+
+   private static final Comparator<Entry> MOST_RECENT_FIRST = new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+         return Long.compare(b.lastModified, a.lastModified);
+      }
+   };
+
+   public SitemapReader(CrawlConfig config, Fetcher fetcher, FetchItemQueue queue) {
+      this.fetcher = fetcher;
+      this.queue = queue;
+      this.skipHttpsPages = config.getUrlFilters().isSkipHttpsPages();
+      xmlInputFactory = XMLInputFactory.newInstance();
+      // Sitemaps have no use for a DTD, and external entities would let a sitemap read local files
+      xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+      thread = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            readSitemaps();
+         }
+      }, "SitemapReader");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Schedules the sitemap or sitemap index for reading, unless it was submitted before.
+    *
+    * @return true if the sitemap is scheduled
+    */
+   public boolean submit(String url) {
+      return submit(url, null, 0);
+   }
+
+   /**
+    * @return true while submitted sitemaps are not completely read
+    */
+   public boolean isBusy() {
+      return unfinished.get() > 0;
+   }
+
+   /**
+    * Stops reading sitemaps, the one being read is abandoned.
+    */
+   public void shutDown() {
+      shutDown = true;
+      thread.interrupt();
+   }
+
+   private boolean submit(String href, String context, int depth) {
+      if (shutDown) {
+         return false;
+      }
+      String url = UrlHelper.canonicalize(href, context);
+      if (url == null || !submitted.add(url)) {
+         return false;
+      }
+      unfinished.incrementAndGet();
+      pending.add(new Sitemap(url, depth));
+      return true;
+   }
+
+   private void readSitemaps() {
+      while (!shutDown) {
+         Sitemap sitemap;
+         try {
+            sitemap = pending.poll(1, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            break;
+         }
+         if (sitemap == null) {
+            continue;
+         }
+         try {
+            read(sitemap);
+         } catch (InterruptedException e) {
+            break;
+         } catch (Exception e) {
+            logger.warn("Cannot read sitemap {}: {}", sitemap.url, e.getMessage());
+         } finally {
+            unfinished.decrementAndGet();
+         }
+      }
+      pending.clear();
+      unfinished.set(0);
+   }
+
+   private void read(Sitemap sitemap) throws InterruptedException, IOException, XMLStreamException {
+      String url = sitemap.url;
+      for (int redirects = 0; redirects <= MAX_REDIRECTS && url != null; redirects++) {
+         FetchItem item = FetchItem.create(url, 0);
+         if (item == null) {
+            return;
+         }
+         FetchResult fetchResult = null;
+         Page page = null;
+         try {
+            fetchResult = fetcher.fetchPage(item, MAX_SITEMAP_SIZE);
+            int statusCode = fetchResult.getStatusCode();
+            if (statusCode >= 300 && statusCode <= 399) {
+               String location = headerValue(fetchResult.getResponseHeaders(), HttpHeaders.LOCATION);
+               url = location == null ? null : UrlHelper.canonicalize(location, url);
+               continue;
+            }
+            if (statusCode < 200 || statusCode > 299 || fetchResult.getEntity() == null) {
+               logger.info("Sitemap {} is not available, status {}", url, statusCode);
+               return;
+            }
+            page = new Page(item);
+            InputStream content = page.openContent(fetchResult.getEntity(), MAX_SITEMAP_SIZE, false);
+            try {
+               Counts counts = parse(decompress(content), url, sitemap.depth);
+               logger.info("Sitemap {}: {} pages queued out of {}, {} sitemaps listed", url, counts.queued, counts.pages, counts.sitemaps);
+            } finally {
+               content.close();
+            }
+            return;
+         } finally {
+            if (fetchResult != null) {
+               fetchResult.discardContentIfNotConsumed();
+            }
+            if (page != null) {
+               page.release();
+            }
+         }
+      }
+      logger.info("Sitemap {} is not available, too many redirects", sitemap.url);
+   }
+
+   /**
+    * Unzips a gzipped sitemap. The content type of sitemap.xml.gz files varies between servers, so the gzip header is looked for instead.
+    */
+   private static InputStream decompress(InputStream content) throws IOException {
+      BufferedInputStream in = new BufferedInputStream(content);
+      in.mark(2);
+      int b1 = in.read();
+      int b2 = in.read();
+      in.reset();
+      if (b1 == 0x1f && b2 == 0x8b) {
+         return new BufferedInputStream(ByteStreams.limit(new GZIPInputStream(in), MAX_SITEMAP_SIZE));
+      }
+      return in;
+   }
+
+   private static class Counts {
+      int pages;
+      int queued;
+      int sitemaps;
+   }
+
+   private Counts parse(InputStream in, String url, int depth) throws IOException, XMLStreamException {
+      Counts counts = new Counts();
+      List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+      try {
+         if (isXml(in)) {
+            parseXml(in, url, depth, batch, counts);
+         } else {
+            parseText(in, url, batch, counts);
+         }
+      } finally {
+         flush(batch, counts);
+      }
+      return counts;
+   }
+
+   /**
+    * @return true unless the first character which is not white space is something else than "<"
+    */
+   private static boolean isXml(InputStream in) throws IOException {
+      in.mark(SNIFF_LENGTH);
+      try {
+         for (int i = 0; i < SNIFF_LENGTH; i++) {
+            int b = in.read();
+            // Spaces and the UTF-8 byte order mark
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != 0xEF && b != 0xBB && b != 0xBF) {
+               return b == '<' || b < 0;
+            }
+         }
+         return true;
+      } finally {
+         in.reset();
+      }
+   }
+
+   private void parseXml(InputStream in, String url, int depth, List<Entry> batch, Counts counts) throws IOException, XMLStreamException {
+      XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+      try {
+         StringBuilder text = new StringBuilder();
+         String loc = null;
+         String lastmod = null;
+         boolean inText = false;
+         while (reader.hasNext()) {
+            if (Thread.currentThread().isInterrupted()) {
+               return;
+            }
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+               String element = reader.getLocalName();
+               if (element.equals("url") || element.equals("sitemap")) {
+                  loc = null;
+                  lastmod = null;
+               } else if (element.equals("loc") || element.equals("lastmod")) {
+                  text.setLength(0);
+                  inText = true;
+               }
+               break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+               if (inText) {
+                  text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+               }
+               break;
+            case XMLStreamConstants.END_ELEMENT:
+               String name = reader.getLocalName();
+               if (name.equals("loc")) {
+                  loc = text.toString().trim();
+               } else if (name.equals("lastmod")) {
+                  lastmod = text.toString().trim();
+               } else if (name.equals("url") && loc != null) {
+                  addPage(loc, url, parseLastModified(lastmod), batch, counts);
+               } else if (name.equals("sitemap") && loc != null) {
+                  if (depth < MAX_INDEX_DEPTH) {
+                     counts.sitemaps++;
+                     submit(loc, url, depth + 1);
+                  } else {
+                     logger.debug("Not reading sitemap {} listed in {}, too many levels of sitemap indexes", loc, url);
+                  }
+               }
+               inText = false;
+               break;
+            default:
+               break;
+            }
+         }
+      } finally {
+         reader.close();
+      }
+   }
+
+   private void parseText(InputStream in, String url, List<Entry> batch, Counts counts) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null && !Thread.currentThread().isInterrupted()) {
+         line = line.trim();
+         if (!line.isEmpty()) {
+            addPage(line, url, -1, batch, counts);
+         }
+      }
+   }
+
+   private void addPage(String loc, String sitemapUrl, long lastModified, List<Entry> batch, Counts counts) {
+      counts.pages++;
+      String url = UrlHelper.canonicalize(loc, sitemapUrl);
+      if (url == null || url.indexOf('@') >= 0 || (skipHttpsPages && url.startsWith("https:"))) {
+         return;
+      }
+      FetchItem item = FetchItem.create(url, 0);
+      if (item == null) {
+         return;
+      }
+      batch.add(new Entry(item, lastModified));
+      if (batch.size() >= BATCH_SIZE) {
+         flush(batch, counts);
+      }
+   }
+
+   private void flush(List<Entry> batch, Counts counts) {
+      if (batch.isEmpty()) {
+         return;
+      }
+      Collections.sort(batch, MOST_RECENT_FIRST);
+      List<FetchItem> items = new ArrayList<FetchItem>(batch.size());
+      for (Entry entry : batch) {
+         items.add(entry.item);
+      }
+      batch.clear();
+      counts.queued += queue.addPageFetchItems(items);
+   }
+
+   /**
+    * Parses a W3C datetime, as used by sitemaps: a date, or a date and time with a time zone.
+    *
+    * @return milliseconds since the epoch, or -1 if the value is missing or malformed
+    */
+   static long parseLastModified(String value) {
+      if (value == null || value.isEmpty()) {
+         return -1;
+      }
+      try {
+         if (value.length() == 10) {
+            return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+         }
+         return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+         return -1;
+      }
+   }
+
+   private static String headerValue(Header[] headers, String name) {
+      if (headers == null) {
+         return null;
+      }
+      for (Header header : headers) {
+         if (name.equalsIgnoreCase(header.getName())) {
+            return header.getValue();
+         }
+      }
+      return null;
+   }
+}
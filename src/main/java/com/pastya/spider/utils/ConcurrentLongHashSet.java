@@ -0,0 +1,274 @@
+package com.pastya.spider.utils;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock striped open addressing hash set of primitive longs.
+ *
+ * <p>
+ * Values are spread over a fixed number of segments, each a linear probing table guarded by its own lock. Lookups and updates do not allocate, and a
+ * value costs 8 bytes at full load instead of the 40+ bytes of a boxed Long in a linked list.
+ * </p>
+ */
+public class ConcurrentLongHashSet implements LongSet {
+
+   private static final int SEGMENT_COUNT = 64;
+   private static final float LOAD_FACTOR = 0.75f;
+
+   /**
+    * 0 marks a free slot, so the value 0 itself is tracked by a flag of its segment.
+    */
+   private static final long EMPTY = 0L;
+
+   private final Segment[] segments;
+
+   public ConcurrentLongHashSet() {
+      this(1024);
+   }
+
+   /**
+    * @param expectedSize
+    *           number of values the set is sized for up front. It grows beyond that on demand.
+    */
+   public ConcurrentLongHashSet(long expectedSize) {
+      int perSegment = (int) Math.min(1 << 30, Math.max(16, expectedSize / SEGMENT_COUNT / LOAD_FACTOR));
+      segments = new Segment[SEGMENT_COUNT];
+      for (int i = 0; i < SEGMENT_COUNT; i++) {
+         segments[i] = new Segment(tableSizeFor(perSegment));
+      }
+   }
+
+   public boolean add(long value) {
+      long hash = mix(value);
+      Segment segment = segmentFor(hash);
+      segment.lock();
+      try {
+         return segment.add(value, hash);
+      } finally {
+         segment.unlock();
+      }
+   }
+
+   public boolean contains(long value) {
+      long hash = mix(value);
+      Segment segment = segmentFor(hash);
+      segment.lock();
+      try {
+         return segment.contains(value, hash);
+      } finally {
+         segment.unlock();
+      }
+   }
+
+   /**
+    * Removes the value from the set.
+    *
+    * @return true if the value was present
+    */
+   public boolean remove(long value) {
+      long hash = mix(value);
+      Segment segment = segmentFor(hash);
+      segment.lock();
+      try {
+         return segment.remove(value, hash);
+      } finally {
+         segment.unlock();
+      }
+   }
+
+   public long size() {
+      long size = 0;
+      for (Segment segment : segments) {
+         segment.lock();
+         try {
+            size += segment.size;
+         } finally {
+            segment.unlock();
+         }
+      }
+      return size;
+   }
+
+   public void clear() {
+      for (Segment segment : segments) {
+         segment.lock();
+         try {
+            segment.clear();
+         } finally {
+            segment.unlock();
+         }
+      }
+   }
+
+   /**
+    * Passes every value of the set to the given visitor. Each segment is locked while it is visited.
+    */
+   public void forEach(LongVisitor visitor) {
+      for (Segment segment : segments) {
+         segment.lock();
+         try {
+            segment.forEach(visitor);
+         } finally {
+            segment.unlock();
+         }
+      }
+   }
+
+   public interface LongVisitor {
+      void visit(long value);
+   }
+
+   private Segment segmentFor(long hash) {
+      return segments[(int) (hash >>> 58)];
+   }
+
+   /**
+    * Finalization step of MurmurHash3, spreads fingerprints which are not well distributed in their low bits.
+    */
+   static long mix(long value) {
+      value ^= value >>> 33;
+      value *= 0xff51afd7ed558ccdL;
+      value ^= value >>> 33;
+      value *= 0xc4ceb9fe1a85ec53L;
+      value ^= value >>> 33;
+      return value;
+   }
+
+   private static int tableSizeFor(int capacity) {
+      int n = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+      return n < 0 ? 1 << 30 : n;
+   }
+
+   private static final class Segment extends ReentrantLock {
+      private static final long serialVersionUID = 1L;
+
+      long[] table;
+      int mask;
+      int size;
+      int threshold;
+      boolean hasZero;
+
+      Segment(int capacity) {
+         allocate(capacity);
+      }
+
+      boolean add(long value, long hash) {
+         if (value == EMPTY) {
+            if (hasZero) {
+               return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+         }
+         int i = (int) hash & mask;
+         long current;
+         while ((current = table[i]) != EMPTY) {
+            if (current == value) {
+               return false;
+            }
+            i = (i + 1) & mask;
+         }
+         table[i] = value;
+         if (++size > threshold) {
+            rehash(table.length << 1);
+         }
+         return true;
+      }
+
+      boolean contains(long value, long hash) {
+         if (value == EMPTY) {
+            return hasZero;
+         }
+         int i = (int) hash & mask;
+         long current;
+         while ((current = table[i]) != EMPTY) {
+            if (current == value) {
+               return true;
+            }
+            i = (i + 1) & mask;
+         }
+         return false;
+      }
+
+      boolean remove(long value, long hash) {
+         if (value == EMPTY) {
+            if (!hasZero) {
+               return false;
+            }
+            hasZero = false;
+            size--;
+            return true;
+         }
+         int i = (int) hash & mask;
+         long current;
+         while ((current = table[i]) != EMPTY) {
+            if (current == value) {
+               shiftBack(i);
+               size--;
+               return true;
+            }
+            i = (i + 1) & mask;
+         }
+         return false;
+      }
+
+      /**
+       * Backward shift deletion: moves later entries of the probe run into the freed slot so no tombstones are needed.
+       */
+      private void shiftBack(int free) {
+         int i = free;
+         while (true) {
+            i = (i + 1) & mask;
+            long current = table[i];
+            if (current == EMPTY) {
+               break;
+            }
+            int home = (int) mix(current) & mask;
+            // Move the entry if its home slot is not between the free slot and its current slot (cyclically)
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+               table[free] = current;
+               free = i;
+            }
+         }
+         table[free] = EMPTY;
+      }
+
+      void forEach(LongVisitor visitor) {
+         if (hasZero) {
+            visitor.visit(EMPTY);
+         }
+         for (long value : table) {
+            if (value != EMPTY) {
+               visitor.visit(value);
+            }
+         }
+      }
+
+      void clear() {
+         allocate(16);
+         size = 0;
+         hasZero = false;
+      }
+
+      private void rehash(int capacity) {
+         long[] old = table;
+         allocate(capacity);
+         for (long value : old) {
+            if (value != EMPTY) {
+               int i = (int) mix(value) & mask;
+               while (table[i] != EMPTY) {
+                  i = (i + 1) & mask;
+               }
+               table[i] = value;
+            }
+         }
+      }
+
+      private void allocate(int capacity) {
+         table = new long[capacity];
+         mask = capacity - 1;
+         threshold = (int) (capacity * LOAD_FACTOR);
+      }
+   }
+}
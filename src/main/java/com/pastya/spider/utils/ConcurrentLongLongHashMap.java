@@ -0,0 +1,198 @@
+package com.pastya.spider.utils;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock striped open addressing hash map from primitive longs to primitive longs.
+ *
+ * <p>
+ * Laid out like {@link ConcurrentLongHashSet}, with the values in a second array next to the keys, so an entry costs 16 bytes at full load. Entries are
+ * never removed.
+ * </p>
+ */
+public class ConcurrentLongLongHashMap {
+
+   private static final int SEGMENT_COUNT = 64;
+   private static final float LOAD_FACTOR = 0.75f;
+
+   /**
+    * 0 marks a free slot, so the key 0 itself is tracked by a flag of its segment.
+    */
+   private static final long EMPTY = 0L;
+
+   private static final int ABSENT = -1;
+   private static final int ZERO_KEY = -2;
+
+   private final Segment[] segments;
+
+   public ConcurrentLongLongHashMap() {
+      this(1024);
+   }
+
+   /**
+    * @param expectedSize
+    *           number of entries the map is sized for up front. It grows beyond that on demand.
+    */
+   public ConcurrentLongLongHashMap(long expectedSize) {
+      int perSegment = (int) Math.min(1 << 30, Math.max(16, expectedSize / SEGMENT_COUNT / LOAD_FACTOR));
+      segments = new Segment[SEGMENT_COUNT];
+      for (int i = 0; i < SEGMENT_COUNT; i++) {
+         segments[i] = new Segment(tableSizeFor(perSegment));
+      }
+   }
+
+   /**
+    * Maps the key to the value unless it is mapped already.
+    *
+    * @return true if the key was absent
+    */
+   public boolean putIfAbsent(long key, long value) {
+      long hash = ConcurrentLongHashSet.mix(key);
+      Segment segment = segmentFor(hash);
+      segment.lock();
+      try {
+         return segment.putIfAbsent(key, value, hash);
+      } finally {
+         segment.unlock();
+      }
+   }
+
+   /**
+    * @return the value the key maps to, or the default value if the key is absent
+    */
+   public long get(long key, long defaultValue) {
+      long hash = ConcurrentLongHashSet.mix(key);
+      Segment segment = segmentFor(hash);
+      segment.lock();
+      try {
+         return segment.get(key, hash, defaultValue);
+      } finally {
+         segment.unlock();
+      }
+   }
+
+   public boolean containsKey(long key) {
+      long hash = ConcurrentLongHashSet.mix(key);
+      Segment segment = segmentFor(hash);
+      segment.lock();
+      try {
+         return segment.indexOf(key, hash) != ABSENT;
+      } finally {
+         segment.unlock();
+      }
+   }
+
+   public long size() {
+      long size = 0;
+      for (Segment segment : segments) {
+         segment.lock();
+         try {
+            size += segment.size;
+         } finally {
+            segment.unlock();
+         }
+      }
+      return size;
+   }
+
+   private Segment segmentFor(long hash) {
+      return segments[(int) (hash >>> 58)];
+   }
+
+   private static int tableSizeFor(int capacity) {
+      int n = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+      return n < 0 ? 1 << 30 : n;
+   }
+
+   private static final class Segment extends ReentrantLock {
+      private static final long serialVersionUID = 1L;
+
+      long[] keys;
+      long[] values;
+      int mask;
+      int size;
+      int threshold;
+      boolean hasZero;
+      long zeroValue;
+
+      Segment(int capacity) {
+         allocate(capacity);
+      }
+
+      boolean putIfAbsent(long key, long value, long hash) {
+         if (key == EMPTY) {
+            if (hasZero) {
+               return false;
+            }
+            hasZero = true;
+            zeroValue = value;
+            size++;
+            return true;
+         }
+         int i = (int) hash & mask;
+         long current;
+         while ((current = keys[i]) != EMPTY) {
+            if (current == key) {
+               return false;
+            }
+            i = (i + 1) & mask;
+         }
+         keys[i] = key;
+         values[i] = value;
+         if (++size > threshold) {
+            rehash(keys.length << 1);
+         }
+         return true;
+      }
+
+      long get(long key, long hash, long defaultValue) {
+         int i = indexOf(key, hash);
+         if (i == ABSENT) {
+            return defaultValue;
+         }
+         return i == ZERO_KEY ? zeroValue : values[i];
+      }
+
+      /**
+       * @return the slot of the key, {@link #ZERO_KEY} for the key 0 or {@link #ABSENT}
+       */
+      int indexOf(long key, long hash) {
+         if (key == EMPTY) {
+            return hasZero ? ZERO_KEY : ABSENT;
+         }
+         int i = (int) hash & mask;
+         long current;
+         while ((current = keys[i]) != EMPTY) {
+            if (current == key) {
+               return i;
+            }
+            i = (i + 1) & mask;
+         }
+         return ABSENT;
+      }
+
+      private void rehash(int capacity) {
+         long[] oldKeys = keys;
+         long[] oldValues = values;
+         allocate(capacity);
+         for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != EMPTY) {
+               int i = (int) ConcurrentLongHashSet.mix(key) & mask;
+               while (keys[i] != EMPTY) {
+                  i = (i + 1) & mask;
+               }
+               keys[i] = key;
+               values[i] = oldValues[j];
+            }
+         }
+      }
+
+      private void allocate(int capacity) {
+         keys = new long[capacity];
+         values = new long[capacity];
+         mask = capacity - 1;
+         threshold = (int) (capacity * LOAD_FACTOR);
+      }
+   }
+}
@@ -0,0 +1,89 @@
+package com.pastya.spider.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free Bloom filter over primitive longs.
+ *
+ * <p>
+ * An approximate {@link LongSet}: {@link #contains(long)} never misses a value that was added, but may report a value which was never added with the
+ * configured false positive probability. At 1% it needs about 1.2 bytes per value.
+ * </p>
+ */
+public class LongBloomFilter implements LongSet {
+
+   private final AtomicLongArray bits;
+   private final long bitCount;
+   private final int hashCount;
+   private final LongAdder size = new LongAdder();
+
+   /**
+    * @param expectedInsertions
+    *           number of values the filter is sized for. Beyond that the false positive rate grows.
+    * @param falsePositiveRate
+    *           wanted probability of a false positive at expectedInsertions values, for example 0.01
+    */
+   public LongBloomFilter(long expectedInsertions, double falsePositiveRate) {
+      if (expectedInsertions <= 0) {
+         throw new IllegalArgumentException("Expected insertions must be positive: " + expectedInsertions);
+      }
+      if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+         throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+      }
+      long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+      int words = (int) Math.min(Integer.MAX_VALUE - 8, (m + 63) >>> 6);
+      this.bits = new AtomicLongArray(words);
+      this.bitCount = (long) words << 6;
+      this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+   }
+
+   public boolean add(long value) {
+      long hash = ConcurrentLongHashSet.mix(value);
+      int h1 = (int) hash;
+      int h2 = (int) (hash >>> 32);
+      boolean changed = false;
+      for (int i = 1; i <= hashCount; i++) {
+         long combined = (h1 + (long) i * h2) & Long.MAX_VALUE;
+         long bit = combined % bitCount;
+         int word = (int) (bit >>> 6);
+         long mask = 1L << bit;
+         long current;
+         while (((current = bits.get(word)) & mask) == 0) {
+            if (bits.compareAndSet(word, current, current | mask)) {
+               changed = true;
+               break;
+            }
+         }
+      }
+      if (changed) {
+         size.increment();
+      }
+      return changed;
+   }
+
+   public boolean contains(long value) {
+      long hash = ConcurrentLongHashSet.mix(value);
+      int h1 = (int) hash;
+      int h2 = (int) (hash >>> 32);
+      for (int i = 1; i <= hashCount; i++) {
+         long combined = (h1 + (long) i * h2) & Long.MAX_VALUE;
+         long bit = combined % bitCount;
+         if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   public long size() {
+      return size.sum();
+   }
+
+   public void clear() {
+      for (int i = 0; i < bits.length(); i++) {
+         bits.set(i, 0L);
+      }
+      size.reset();
+   }
+}
@@ -0,0 +1,26 @@
+package com.pastya.spider.utils;
+
+/**
+ * A thread safe set of primitive longs, used for url fingerprints.
+ */
+public interface LongSet {
+
+   /**
+    * Adds the value to the set.
+    *
+    * @return true if the value was not present before
+    */
+   boolean add(long value);
+
+   /**
+    * @return true if the value is (or, for approximate sets, may be) present
+    */
+   boolean contains(long value);
+
+   /**
+    * @return number of values added, for approximate sets an estimate
+    */
+   long size();
+
+   void clear();
+}
@@ -0,0 +1,197 @@
+package com.pastya.spider.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+
+/**
+ * Growable byte buffer made of fixed-size slabs taken from a shared pool.
+ *
+ * <p>
+ * Reading a body of unknown length never allocates for the worst case and never copies: the buffer takes one more slab whenever the current one is full.
+ * {@link #release()} hands the slabs back to the pool, so a crawler thread reuses the same memory for every page instead of producing garbage. At most
+ * {@link #POOL_CAPACITY} idle slabs are kept, the rest is left to the garbage collector.
+ * </p>
+ *
+ * <p>
+ * The content is exposed as a read-only {@link ByteSource} view. The view must not be used after the buffer is released.
+ * </p>
+ */
+public class SlabBuffer {
+
+   public static final int SLAB_SIZE = 16 * 1024;
+
+   /**
+    * Maximum number of idle slabs kept for reuse, 64 MB.
+    */
+   public static final int POOL_CAPACITY = 4096;
+
+   private static final BlockingQueue<byte[]> POOL = new ArrayBlockingQueue<byte[]>(POOL_CAPACITY);
+
+   private final List<byte[]> slabs = new ArrayList<byte[]>();
+   private int size;
+   private boolean released;
+
+   /**
+    * Appends the stream to this buffer until it ends or maxBytes bytes are held.
+    *
+    * @return number of bytes read
+    * @throws IOException
+    *            if reading fails
+    */
+   public int readFrom(InputStream in, int maxBytes) throws IOException {
+      checkNotReleased();
+      int read = 0;
+      while (size < maxBytes) {
+         int offset = size % SLAB_SIZE;
+         if (offset == 0 && slabs.size() * SLAB_SIZE == size) {
+            slabs.add(takeSlab());
+         }
+         byte[] slab = slabs.get(slabs.size() - 1);
+         int n = in.read(slab, offset, Math.min(SLAB_SIZE - offset, maxBytes - size));
+         if (n < 0) {
+            break;
+         }
+         size += n;
+         read += n;
+      }
+      return read;
+   }
+
+   /**
+    * Appends the given bytes, for content which is pushed rather than pulled from a stream.
+    */
+   public void write(byte[] b, int off, int len) {
+      checkNotReleased();
+      while (len > 0) {
+         int offset = size % SLAB_SIZE;
+         if (offset == 0 && slabs.size() * SLAB_SIZE == size) {
+            slabs.add(takeSlab());
+         }
+         int n = Math.min(len, SLAB_SIZE - offset);
+         System.arraycopy(b, off, slabs.get(slabs.size() - 1), offset, n);
+         size += n;
+         off += n;
+         len -= n;
+      }
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /**
+    * @return read-only slices of the slabs holding the content, in order
+    */
+   public ByteBuffer[] asReadOnlyBuffers() {
+      checkNotReleased();
+      ByteBuffer[] buffers = new ByteBuffer[slabs.size()];
+      for (int i = 0; i < buffers.length; i++) {
+         int length = Math.min(SLAB_SIZE, size - i * SLAB_SIZE);
+         buffers[i] = ByteBuffer.wrap(slabs.get(i), 0, length).asReadOnlyBuffer();
+      }
+      return buffers;
+   }
+
+   /**
+    * @return a read-only view of the content
+    */
+   public ByteSource asByteSource() {
+      return new ByteSource() {
+         @Override
+         public InputStream openStream() {
+            checkNotReleased();
+            return new SlabInputStream();
+         }
+
+         @Override
+         public Optional<Long> sizeIfKnown() {
+            return Optional.of((long) size);
+         }
+
+         @Override
+         public long size() {
+            return size;
+         }
+
+         @Override
+         public boolean isEmpty() {
+            return size == 0;
+         }
+      };
+   }
+
+   /**
+    * Hands the slabs back to the pool. The buffer and its views cannot be used afterwards.
+    */
+   public void release() {
+      if (released) {
+         return;
+      }
+      released = true;
+      for (byte[] slab : slabs) {
+         POOL.offer(slab);
+      }
+      slabs.clear();
+      size = 0;
+   }
+
+   private void checkNotReleased() {
+      if (released) {
+         throw new IllegalStateException("The buffer was released");
+      }
+   }
+
+   private static byte[] takeSlab() {
+      byte[] slab = POOL.poll();
+      return slab != null ? slab : new byte[SLAB_SIZE];
+   }
+
+   private class SlabInputStream extends InputStream {
+      private int position;
+
+      @Override
+      public int read() {
+         if (position >= size) {
+            return -1;
+         }
+         byte b = slabs.get(position / SLAB_SIZE)[position % SLAB_SIZE];
+         position++;
+         return b & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (len == 0) {
+            return 0;
+         }
+         if (position >= size) {
+            return -1;
+         }
+         int offset = position % SLAB_SIZE;
+         int n = Math.min(len, Math.min(SLAB_SIZE - offset, size - position));
+         System.arraycopy(slabs.get(position / SLAB_SIZE), offset, b, off, n);
+         position += n;
+         return n;
+      }
+
+      @Override
+      public long skip(long n) {
+         long skipped = Math.max(0, Math.min(n, size - position));
+         position += skipped;
+         return skipped;
+      }
+
+      @Override
+      public int available() {
+         return size - position;
+      }
+   }
+}
@@ -1,12 +1,11 @@
 package com.pastya.spider.utils;
 
+import java.net.IDN;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +16,23 @@ import com.google.common.collect.Lists;
 
 public class UrlHelper {
    private static final Logger LOG = LoggerFactory.getLogger(UrlHelper.class.getName());
-   private static final Pattern URL_PROTOCOL_REGEX = Pattern.compile("^https?://", Pattern.CASE_INSENSITIVE);
-   
+   private static final String HTTP = "http";
+   private static final String HTTPS = "https";
+   private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+   private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   /**
+    * Scratch buffer of {@link #canonicalize(String, String)}, so only the resulting string is allocated.
+    */
+   private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+      @Override
+      protected StringBuilder initialValue() {
+         return new StringBuilder(256);
+      }
+   };
+
    public static String getDomain(String url) {
       try {
          return getDomainChecked(url);
@@ -30,15 +44,31 @@ public class UrlHelper {
 
    public static String getDomainChecked(String url) throws URISyntaxException {
       Preconditions.checkNotNull(url);
-      url = addProtocol(url);
-      return new URI(url).getHost();
+      int start = hasHttpProtocol(url) ? url.indexOf("://") + 3 : 0;
+      int end = indexOfAny(url, start, url.length(), "/?#");
+      int hostStart = url.lastIndexOf('@', end - 1) + 1;
+      if (hostStart < start) {
+         hostStart = start;
+      }
+      int hostEnd = hostEnd(url, hostStart, end);
+      if (hostEnd < 0) {
+         throw new URISyntaxException(url, "Malformed authority");
+      }
+      return hostEnd == hostStart ? null : url.substring(hostStart, hostEnd);
    }
 
    public static String getPath(String url) {
       Preconditions.checkNotNull(url);
-      url = addProtocol(url);
+      int start = hasHttpProtocol(url) ? url.indexOf("://") + 3 : 0;
+      int pathStart = indexOfAny(url, start, url.length(), "/?#");
+      int pathEnd = indexOfAny(url, pathStart, url.length(), "?#");
+      int escape = url.indexOf('%', pathStart);
+      if (escape < 0 || escape >= pathEnd) {
+         return url.substring(pathStart, pathEnd);
+      }
+      // Escaped paths are decoded like URI does
       try {
-         return new URI(url).getPath();
+         return new URI(addProtocol(url)).getPath();
       } catch (URISyntaxException e) {
          LOG.info("Malformed url: " + url);
          return null;
@@ -61,8 +91,7 @@ public class UrlHelper {
 
    public static String addProtocol(String url) {
       Preconditions.checkNotNull(url);
-      Matcher matcher = URL_PROTOCOL_REGEX.matcher(url);
-      if (!matcher.find()) {
+      if (!hasHttpProtocol(url)) {
          url = "http://" + url;
       }
       return url;
@@ -87,13 +116,375 @@ public class UrlHelper {
 
       return levels;
    }
-   
+
    public static long byteArray2Long(byte[] b) {
-      int value = 0;
+      long value = 0;
       for (int i = 0; i < 8; i++) {
-          int shift = (8 - 1 - i) * 8;
-          value += (b[i] & 0x000000FF) << shift;
+         value = (value << 8) | (b[i] & 0xFFL);
       }
       return value;
-  }   
+   }
+
+   /**
+    * Resolves a link against the URL of the page it was found in and brings it to canonical form: scheme and host lowercased, default port removed,
+    * dot segments removed, escapes of unreserved characters decoded, other escapes uppercased, unsafe characters escaped as UTF-8, an empty path replaced
+    * by "/", an empty query and the fragment removed.
+    *
+    * <p>
+    * Two links to the same page give the same string, which makes it usable as a dedup key through {@link #fingerprint(CharSequence)}. Nothing but the
+    * result is allocated.
+    * </p>
+    *
+    * @param href
+    *           the link, absolute or relative
+    * @param context
+    *           the URL the link is relative to, may be null for absolute links
+    * @return the canonical URL, or null if the link is malformed or not an http or https URL
+    */
+   public static String canonicalize(String href, String context) {
+      Preconditions.checkNotNull(href);
+      int start = 0;
+      int end = href.length();
+      while (start < end && href.charAt(start) <= ' ') {
+         start++;
+      }
+      while (end > start && href.charAt(end - 1) <= ' ') {
+         end--;
+      }
+      int fragment = href.indexOf('#', start);
+      if (fragment >= 0 && fragment < end) {
+         end = fragment;
+      }
+
+      StringBuilder buffer = BUFFER.get();
+      buffer.setLength(0);
+      int schemeEnd = schemeEnd(href, start, end);
+      if (schemeEnd >= 0) {
+         if (!href.startsWith("//", schemeEnd + 1) || !appendSchemeAndAuthority(buffer, href, start, schemeEnd, end)) {
+            return null;
+         }
+         int pathStart = indexOfAny(href, schemeEnd + 3, end, "/?");
+         appendPathAndQuery(buffer, href, pathStart, end, null, 0, 0);
+      } else {
+         if (context == null) {
+            return null;
+         }
+         int contextEnd = context.indexOf('#');
+         if (contextEnd < 0) {
+            contextEnd = context.length();
+         }
+         int contextSchemeEnd = schemeEnd(context, 0, contextEnd);
+         if (contextSchemeEnd < 0 || !context.startsWith("//", contextSchemeEnd + 1)) {
+            return null;
+         }
+         if (href.startsWith("//", start)) {
+            // Network-path reference, only the scheme comes from the context
+            String scheme = httpScheme(context, 0, contextSchemeEnd);
+            int authorityEnd = indexOfAny(href, start + 2, end, "/?");
+            if (scheme == null) {
+               return null;
+            }
+            buffer.append(scheme).append("://");
+            if (!appendAuthority(buffer, href, start + 2, authorityEnd, scheme == HTTPS)) {
+               return null;
+            }
+            appendPathAndQuery(buffer, href, authorityEnd, end, null, 0, 0);
+         } else {
+            if (!appendSchemeAndAuthority(buffer, context, 0, contextSchemeEnd, contextEnd)) {
+               return null;
+            }
+            int contextPathStart = indexOfAny(context, contextSchemeEnd + 3, contextEnd, "/?");
+            int contextQueryStart = indexOfAny(context, contextPathStart, contextEnd, "?");
+            if (start == end) {
+               // Same document reference
+               appendPathAndQuery(buffer, context, contextPathStart, contextEnd, null, 0, 0);
+            } else if (href.charAt(start) == '/') {
+               appendPathAndQuery(buffer, href, start, end, null, 0, 0);
+            } else if (href.charAt(start) == '?') {
+               appendPathAndQuery(buffer, href, start, end, context, contextPathStart, contextQueryStart);
+            } else {
+               int directoryEnd = context.lastIndexOf('/', contextQueryStart - 1) + 1;
+               if (directoryEnd <= contextPathStart) {
+                  directoryEnd = contextPathStart;
+               }
+               appendPathAndQuery(buffer, href, start, end, context, contextPathStart, directoryEnd);
+            }
+         }
+      }
+      return buffer.toString();
+   }
+
+   /**
+    * 64-bit fingerprint of a URL: FNV-1a over its characters followed by the MurmurHash3 finalizer. It is stable across runs, so it can be persisted.
+    * Canonicalize the URL first so that equivalent URLs get the same fingerprint.
+    */
+   public static long fingerprint(CharSequence url) {
+      long hash = FNV_OFFSET_BASIS;
+      for (int i = 0; i < url.length(); i++) {
+         char c = url.charAt(i);
+         hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+         if (c > 0xFF) {
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+         }
+      }
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb9fe1a85ec53L;
+      hash ^= hash >>> 33;
+      return hash;
+   }
+
+   private static boolean hasHttpProtocol(String url) {
+      return url.regionMatches(true, 0, "http://", 0, 7) || url.regionMatches(true, 0, "https://", 0, 8);
+   }
+
+   /**
+    * @return the index of the ':' ending the scheme, or -1 if the reference is relative
+    */
+   private static int schemeEnd(String s, int start, int end) {
+      for (int i = start; i < end; i++) {
+         char c = s.charAt(i);
+         if (c == ':') {
+            return i > start ? i : -1;
+         }
+         boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+         if (!letter && (i == start || !((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'))) {
+            return -1;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * @return {@link #HTTP} or {@link #HTTPS} if the scheme [start, schemeEnd) is one of them in any case, null otherwise
+    */
+   private static String httpScheme(String s, int start, int schemeEnd) {
+      int length = schemeEnd - start;
+      if (length == HTTP.length() && s.regionMatches(true, start, HTTP, 0, length)) {
+         return HTTP;
+      } else if (length == HTTPS.length() && s.regionMatches(true, start, HTTPS, 0, length)) {
+         return HTTPS;
+      }
+      return null;
+   }
+
+   /**
+    * Appends the lowercased scheme and the authority which follows its "//".
+    *
+    * @return false if the scheme is not http or https or the authority is malformed
+    */
+   private static boolean appendSchemeAndAuthority(StringBuilder buffer, String s, int start, int schemeEnd, int end) {
+      String scheme = httpScheme(s, start, schemeEnd);
+      if (scheme == null) {
+         return false;
+      }
+      buffer.append(scheme).append("://");
+      return appendAuthority(buffer, s, schemeEnd + 3, indexOfAny(s, schemeEnd + 3, end, "/?"), scheme == HTTPS);
+   }
+
+   private static boolean appendAuthority(StringBuilder buffer, String s, int start, int end, boolean https) {
+      int hostStart = s.lastIndexOf('@', end - 1) + 1;
+      if (hostStart > start) {
+         appendEscaped(buffer, s, start, hostStart, false);
+      } else {
+         hostStart = start;
+      }
+      int hostEnd = hostEnd(s, hostStart, end);
+      if (hostEnd < 0 || hostEnd == hostStart) {
+         return false;
+      }
+      int hostLength = buffer.length();
+      boolean ascii = true;
+      for (int i = hostStart; i < hostEnd; i++) {
+         char c = s.charAt(i);
+         ascii &= c < 0x80;
+         buffer.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+      }
+      if (buffer.charAt(buffer.length() - 1) == '.') {
+         buffer.setLength(buffer.length() - 1);
+      }
+      if (buffer.length() == hostLength) {
+         return false;
+      }
+      if (!ascii) {
+         String host;
+         try {
+            host = IDN.toASCII(buffer.substring(hostLength)).toLowerCase();
+         } catch (IllegalArgumentException e) {
+            return false;
+         }
+         buffer.setLength(hostLength);
+         buffer.append(host);
+      }
+      if (hostEnd + 1 < end) {
+         int port = 0;
+         for (int i = hostEnd + 1; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9' || port > 0xFFFF) {
+               return false;
+            }
+            port = port * 10 + (c - '0');
+         }
+         if (port > 0xFFFF) {
+            return false;
+         }
+         if (port != (https ? 443 : 80)) {
+            buffer.append(':').append(port);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * @return the end of the host in the authority part [start, end) without user info, or -1 if the port is malformed
+    */
+   private static int hostEnd(String s, int start, int end) {
+      int hostEnd;
+      if (start < end && s.charAt(start) == '[') {
+         int close = s.indexOf(']', start);
+         if (close < 0 || close >= end) {
+            return -1;
+         }
+         hostEnd = close + 1;
+      } else {
+         hostEnd = s.indexOf(':', start);
+         if (hostEnd < 0 || hostEnd > end) {
+            hostEnd = end;
+         }
+      }
+      if (hostEnd < end && s.charAt(hostEnd) != ':') {
+         return -1;
+      }
+      return hostEnd;
+   }
+
+   /**
+    * Appends the path with its dot segments removed, then the query. Relative paths are appended to the base directory [basePathStart, baseDirectoryEnd)
+    * of the context, a reference which is only a query keeps the path of the context.
+    */
+   private static void appendPathAndQuery(StringBuilder buffer, String s, int start, int end, String context, int basePathStart, int basePathEnd) {
+      int queryStart = indexOfAny(s, start, end, "?");
+      int pathStart = buffer.length();
+      buffer.append('/');
+      if (context != null) {
+         appendPath(buffer, pathStart, context, basePathStart, basePathEnd);
+      }
+      appendPath(buffer, pathStart, s, start, queryStart);
+      if (queryStart + 1 < end) {
+         buffer.append('?');
+         appendEscaped(buffer, s, queryStart + 1, end, true);
+      }
+   }
+
+   private static void appendPath(StringBuilder buffer, int pathStart, String s, int start, int end) {
+      if (start < end && s.charAt(start) == '/') {
+         start++;
+      }
+      int segmentStart = buffer.length();
+      for (int i = start; i <= end; i++) {
+         if (i < end && s.charAt(i) != '/') {
+            continue;
+         }
+         appendEscaped(buffer, s, start, i, false);
+         int segmentLength = buffer.length() - segmentStart;
+         if (segmentLength == 1 && buffer.charAt(segmentStart) == '.') {
+            buffer.setLength(segmentStart);
+         } else if (segmentLength == 2 && buffer.charAt(segmentStart) == '.' && buffer.charAt(segmentStart + 1) == '.') {
+            int parent = segmentStart - 1;
+            while (parent > pathStart && buffer.charAt(parent - 1) != '/') {
+               parent--;
+            }
+            buffer.setLength(parent > pathStart ? parent : pathStart + 1);
+         } else if (i < end) {
+            buffer.append('/');
+         }
+         segmentStart = buffer.length();
+         start = i + 1;
+      }
+   }
+
+   /**
+    * Appends the characters with escapes normalized and the characters which are not allowed in a path or query escaped.
+    */
+   private static void appendEscaped(StringBuilder buffer, String s, int start, int end, boolean query) {
+      for (int i = start; i < end; i++) {
+         char c = s.charAt(i);
+         if (c == '%') {
+            int high = i + 2 < end ? Character.digit(s.charAt(i + 1), 16) : -1;
+            int low = high >= 0 ? Character.digit(s.charAt(i + 2), 16) : -1;
+            if (low < 0) {
+               buffer.append("%25");
+               continue;
+            }
+            char decoded = (char) (high * 16 + low);
+            if (isUnreserved(decoded)) {
+               buffer.append(decoded);
+            } else {
+               appendEscape(buffer, decoded);
+            }
+            i += 2;
+         } else if (isUnreserved(c) || isSubDelimiter(c) || c == ':' || c == '@' || c == '/' || (query && c == '?')) {
+            buffer.append(c);
+         } else if (c < 0x80) {
+            appendEscape(buffer, c);
+         } else {
+            int codePoint = Character.codePointAt(s, i);
+            if (Character.isSupplementaryCodePoint(codePoint)) {
+               i++;
+            }
+            appendUtf8Escaped(buffer, codePoint);
+         }
+      }
+   }
+
+   private static void appendUtf8Escaped(StringBuilder buffer, int codePoint) {
+      if (codePoint < 0x800) {
+         appendEscape(buffer, 0xC0 | (codePoint >> 6));
+      } else if (codePoint < 0x10000) {
+         appendEscape(buffer, 0xE0 | (codePoint >> 12));
+         appendEscape(buffer, 0x80 | ((codePoint >> 6) & 0x3F));
+      } else {
+         appendEscape(buffer, 0xF0 | (codePoint >> 18));
+         appendEscape(buffer, 0x80 | ((codePoint >> 12) & 0x3F));
+         appendEscape(buffer, 0x80 | ((codePoint >> 6) & 0x3F));
+      }
+      appendEscape(buffer, 0x80 | (codePoint & 0x3F));
+   }
+
+   private static void appendEscape(StringBuilder buffer, int b) {
+      buffer.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+   }
+
+   private static boolean isUnreserved(char c) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~';
+   }
+
+   private static boolean isSubDelimiter(char c) {
+      switch (c) {
+      case '!':
+      case '$':
+      case '&':
+      case '\'':
+      case '(':
+      case ')':
+      case '*':
+      case '+':
+      case ',':
+      case ';':
+      case '=':
+         return true;
+      default:
+         return false;
+      }
+   }
+
+   private static int indexOfAny(String s, int start, int end, String chars) {
+      for (int i = start; i < end; i++) {
+         if (chars.indexOf(s.charAt(i)) >= 0) {
+            return i;
+         }
+      }
+      return end;
+   }
 }
@@ -0,0 +1,66 @@
+package com.pastya.spider.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads when the running JVM supports them (Java 21 or later).
+ *
+ * <p>
+ * The project is built for older Java versions, so the Thread.ofVirtual() builder is looked up reflectively once. On JVMs without virtual threads
+ * {@link #isSupported()} is false and {@link #newThread(Runnable, String)} falls back to platform threads.
+ * </p>
+ */
+public final class VirtualThreads {
+   private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+   private static final MethodHandle OF_VIRTUAL;
+   private static final MethodHandle NAME;
+   private static final MethodHandle UNSTARTED;
+
+   static {
+      MethodHandle ofVirtual = null;
+      MethodHandle name = null;
+      MethodHandle unstarted = null;
+      try {
+         MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+         Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+         Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+         ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+         name = lookup.findVirtual(builderClass, "name", MethodType.methodType(builderClass, String.class));
+         unstarted = lookup.findVirtual(builderClass, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+      } catch (ReflectiveOperationException e) {
+         LOG.debug("Virtual threads are not supported by this JVM");
+      }
+      OF_VIRTUAL = ofVirtual;
+      NAME = name;
+      UNSTARTED = unstarted;
+   }
+
+   private VirtualThreads() {
+   }
+
+   public static boolean isSupported() {
+      return OF_VIRTUAL != null;
+   }
+
+   /**
+    * Creates an unstarted virtual thread, or a platform thread if virtual threads are not supported.
+    */
+   public static Thread newThread(Runnable runnable, String name) {
+      if (!isSupported()) {
+         return new Thread(runnable, name);
+      }
+      try {
+         Object builder = OF_VIRTUAL.invoke();
+         builder = NAME.invoke(builder, name);
+         return (Thread) UNSTARTED.invoke(builder, runnable);
+      } catch (Throwable e) {
+         throw new IllegalStateException("Cannot create virtual thread " + name, e);
+      }
+   }
+}
@@ -0,0 +1,357 @@
+package com.pastya.spider.warc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteSource;
+import com.pastya.spider.config.CrawlConfig;
+
+/**
+ * Writes fetched pages to WARC files (ISO 28500, WARC/1.0) in a folder, as a request and a response record per page.
+ *
+ * <p>
+ * Every record is its own gzip member, so the files can be read with any gzip tool and a record can be read alone from its offset. Crawler threads build
+ * and compress the records of their pages, at the fastest deflate level which is about four times faster than the default, and hand them to a bounded
+ * queue. A single writer thread appends them to the current file, starts a new file once it reaches warcMaxFileSize and fsyncs every warcSyncInterval
+ * milliseconds. Files are named *.warc.gz.open until they are complete.
+ * </p>
+ *
+ * <p>
+ * Crawler threads never wait for the disk: when the queue is full the page is not archived and counted in {@link #getDroppedRecords()}.
+ * </p>
+ *
+ * <p>
+ * Pages are archived as decoded: Content-Encoding, Transfer-Encoding and Content-Length headers are kept as X-Crawler-* headers and the Content-Length of
+ * the archived payload is added. The request record holds the request line with the Host and User-Agent headers.
+ * </p>
+ */
+public class WarcWriter implements Closeable {
+
+   protected static final Logger logger = LoggerFactory.getLogger(WarcWriter.class);
+
+   private static final String FILE_PREFIX = "pastya";
+   private static final String FILE_SUFFIX = ".warc.gz";
+   private static final String OPEN_SUFFIX = ".open";
+   private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+   private static final byte[] END_OF_RECORD = { '\r', '\n', '\r', '\n' };
+   private static final int IO_BUFFER_SIZE = 256 * 1024;
+   private static final int MAX_BATCH = 256;
+   private static final long DROP_LOG_INTERVAL = 1000;
+   private static final long CLOSE_OFFER_MILLIS = 100;
+
+   /**
+    * Tells the writer thread to finish the current file and stop.
+    */
+   private static final byte[] CLOSE = new byte[0];
+
+   private final File folder;
+   private final String userAgent;
+   private final long maxFileSize;
+   private final long syncIntervalMillis;
+   private final BlockingQueue<byte[]> queue;
+   private final AtomicLong droppedRecords = new AtomicLong();
+   private final AtomicLong writtenRecords = new AtomicLong();
+   private final Thread thread;
+   private volatile boolean closed;
+
+   private FileOutputStream file;
+   private OutputStream out;
+   private File openFile;
+   private long fileSize;
+   private int fileSerial;
+   private long lastSync;
+
+   public WarcWriter(File folder, CrawlConfig config) throws IOException {
+      CrawlConfig.CrawlerInfo crawlerInfo = config.getCrawlerInfo();
+      if (crawlerInfo.getWarcSyncInterval() <= 0) {
+         // The writer thread polls the queue for this long, 0 would make it spin
+         throw new IllegalArgumentException("WARC sync interval must be positive: " + crawlerInfo.getWarcSyncInterval());
+      }
+      if (!folder.exists() && !folder.mkdirs()) {
+         throw new IOException("Couldn't create the WARC folder: " + folder.getAbsolutePath());
+      }
+      this.folder = folder;
+      this.userAgent = config.getAgentInfo().getUserAgent();
+      this.maxFileSize = crawlerInfo.getWarcMaxFileSize();
+      this.syncIntervalMillis = crawlerInfo.getWarcSyncInterval();
+      this.queue = new ArrayBlockingQueue<byte[]>(crawlerInfo.getWarcQueueSize());
+      thread = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            writeRecords();
+         }
+      }, "WarcWriter");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Queues the request and response records of a fetched page, compressed in the calling thread.
+    *
+    * @param url
+    *           the fetched URL
+    * @param statusCode
+    *           status of the response
+    * @param responseHeaders
+    *           headers of the response
+    * @param content
+    *           the decoded content of the response
+    * @return true if the page is queued for writing, false if the writer is closed or the queue is full
+    * @throws IOException
+    *            if the content cannot be read
+    */
+   public boolean write(String url, int statusCode, Header[] responseHeaders, ByteSource content) throws IOException {
+      if (closed) {
+         return false;
+      }
+      Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+      String requestId = newRecordId();
+      String responseId = newRecordId();
+      byte[] response = responseHeader(statusCode, responseHeaders, content.size());
+      byte[] request = requestHeader(url);
+
+      long payloadSize = response.length + content.size();
+      ByteArrayOutputStream records = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, payloadSize / 3 + 1024));
+      GZIPOutputStream gzip = new FastGzipOutputStream(records, 8192);
+      writeRecordHeader(gzip, "response", responseId, requestId, now, url, "application/http; msgtype=response", payloadSize);
+      gzip.write(response);
+      content.copyTo(gzip);
+      gzip.write(END_OF_RECORD);
+      gzip.close();
+      gzip = new FastGzipOutputStream(records, 1024);
+      writeRecordHeader(gzip, "request", requestId, responseId, now, url, "application/http; msgtype=request", request.length);
+      gzip.write(request);
+      gzip.write(END_OF_RECORD);
+      gzip.close();
+
+      if (!queue.offer(records.toByteArray())) {
+         long dropped = droppedRecords.incrementAndGet();
+         if (dropped % DROP_LOG_INTERVAL == 1) {
+            logger.warn("WARC queue is full, {} pages were not archived so far", dropped);
+         }
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * @return number of pages not archived because the queue was full
+    */
+   public long getDroppedRecords() {
+      return droppedRecords.get();
+   }
+
+   /**
+    * @return number of pages written to WARC files
+    */
+   public long getWrittenRecords() {
+      return writtenRecords.get();
+   }
+
+   /**
+    * Writes the queued pages, completes the current file and stops the writer thread. Returns at once if the writer thread died.
+    */
+   public void close() throws IOException {
+      if (closed) {
+         return;
+      }
+      closed = true;
+      try {
+         // Nothing takes from a full queue once the writer thread died
+         while (!queue.offer(CLOSE, CLOSE_OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!thread.isAlive()) {
+               logger.error("WARC writer thread is not running, {} queued pages are not written", queue.size());
+               return;
+            }
+         }
+         thread.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while closing the WARC writer", e);
+      }
+   }
+
+   private void writeRecords() {
+      List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+      boolean closing = false;
+      try {
+         while (!closing) {
+            byte[] first = queue.poll(syncIntervalMillis, TimeUnit.MILLISECONDS);
+            if (first != null) {
+               batch.add(first);
+               queue.drainTo(batch, MAX_BATCH - 1);
+            }
+            for (byte[] records : batch) {
+               if (records == CLOSE) {
+                  closing = true;
+                  continue;
+               }
+               try {
+                  if (out == null || fileSize >= maxFileSize) {
+                     rotate();
+                  }
+                  out.write(records);
+                  fileSize += records.length;
+                  writtenRecords.incrementAndGet();
+               } catch (IOException e) {
+                  logger.error("Cannot write to the WARC file " + openFile, e);
+               }
+            }
+            batch.clear();
+            if (out != null && System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+               sync();
+            }
+         }
+      } catch (InterruptedException e) {
+         logger.warn("WARC writer interrupted, {} queued pages are not written", queue.size());
+      }
+      try {
+         finishFile();
+      } catch (IOException e) {
+         logger.error("Cannot complete the WARC file " + openFile, e);
+      }
+   }
+
+   private void sync() {
+      try {
+         out.flush();
+         file.getFD().sync();
+      } catch (IOException e) {
+         logger.error("Cannot sync the WARC file " + openFile, e);
+      }
+      lastSync = System.currentTimeMillis();
+   }
+
+   private void rotate() throws IOException {
+      finishFile();
+      Instant now = Instant.now();
+      String name = FILE_PREFIX + "-" + FILE_TIMESTAMP.format(now) + "-" + String.format(Locale.ROOT, "%05d", ++fileSerial) + FILE_SUFFIX;
+      openFile = new File(folder, name + OPEN_SUFFIX);
+      file = new FileOutputStream(openFile);
+      out = new BufferedOutputStream(file, IO_BUFFER_SIZE);
+      fileSize = 0;
+      lastSync = System.currentTimeMillis();
+
+      byte[] info = ("software: pastya-bot\r\nformat: WARC File Format 1.0\r\nhttp-header-user-agent: " + userAgent + "\r\n")
+            .getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+      GZIPOutputStream gzip = new FastGzipOutputStream(record, 1024);
+      writeRecordHeader(gzip, "warcinfo", newRecordId(), null, now.truncatedTo(ChronoUnit.SECONDS), null, "application/warc-fields", info.length,
+            "WARC-Filename: " + name);
+      gzip.write(info);
+      gzip.write(END_OF_RECORD);
+      gzip.close();
+      record.writeTo(out);
+      fileSize += record.size();
+   }
+
+   private void finishFile() throws IOException {
+      if (out == null) {
+         return;
+      }
+      out.flush();
+      file.getFD().sync();
+      out.close();
+      out = null;
+      String name = openFile.getName();
+      File complete = new File(folder, name.substring(0, name.length() - OPEN_SUFFIX.length()));
+      if (!openFile.renameTo(complete)) {
+         throw new IOException("Cannot rename the WARC file " + openFile);
+      }
+      logger.info("WARC file {} complete, {} bytes", complete.getName(), fileSize);
+   }
+
+   private static void writeRecordHeader(OutputStream out, String type, String recordId, String concurrentTo, Instant date, String url,
+         String contentType, long contentLength, String... extraHeaders) throws IOException {
+      StringBuilder header = new StringBuilder(256);
+      header.append("WARC/1.0\r\n");
+      header.append("WARC-Type: ").append(type).append("\r\n");
+      header.append("WARC-Record-ID: ").append(recordId).append("\r\n");
+      header.append("WARC-Date: ").append(date).append("\r\n");
+      if (url != null) {
+         header.append("WARC-Target-URI: ").append(url).append("\r\n");
+      }
+      if (concurrentTo != null) {
+         header.append("WARC-Concurrent-To: ").append(concurrentTo).append("\r\n");
+      }
+      for (String extra : extraHeaders) {
+         header.append(extra).append("\r\n");
+      }
+      header.append("Content-Type: ").append(contentType).append("\r\n");
+      header.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+      out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+   }
+
+   private static byte[] responseHeader(int statusCode, Header[] headers, long contentLength) {
+      StringBuilder header = new StringBuilder(1024);
+      String reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.ENGLISH);
+      header.append("HTTP/1.1 ").append(statusCode).append(' ').append(reason == null ? "" : reason).append("\r\n");
+      if (headers != null) {
+         for (Header h : headers) {
+            String name = h.getName();
+            // The payload is archived decoded, the headers describing the transfer are kept under other names
+            if (name.equalsIgnoreCase("Content-Encoding") || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Content-Length")) {
+               name = "X-Crawler-" + name;
+            }
+            header.append(name).append(": ").append(h.getValue()).append("\r\n");
+         }
+      }
+      header.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+      return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+   }
+
+   private byte[] requestHeader(String url) throws IOException {
+      URL u = new URL(url);
+      String file = u.getFile().isEmpty() ? "/" : u.getFile();
+      String host = u.getPort() < 0 ? u.getHost() : u.getHost() + ":" + u.getPort();
+      String request = "GET " + file + " HTTP/1.1\r\nHost: " + host + "\r\nUser-Agent: " + userAgent + "\r\n\r\n";
+      return request.getBytes(StandardCharsets.ISO_8859_1);
+   }
+
+   /**
+    * Gzip member compressed at the fastest level.
+    */
+   private static class FastGzipOutputStream extends GZIPOutputStream {
+      FastGzipOutputStream(OutputStream out, int size) throws IOException {
+         super(out, size);
+         def.setLevel(Deflater.BEST_SPEED);
+      }
+   }
+
+   /**
+    * Random (version 4) UUID from a thread-local generator, record ids need to be unique, not unpredictable.
+    */
+   private static String newRecordId() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long most = (random.nextLong() & ~0xF000L) | 0x4000L;
+      long least = (random.nextLong() & ~(3L << 62)) | (1L << 63);
+      return "<urn:uuid:" + new UUID(most, least) + ">";
+   }
+}
@@ -0,0 +1,79 @@
+package com.pastya.spider.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ContentDigestIndexTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void onlyOtherItemsAreDuplicates() throws IOException {
+      ContentDigestIndex index = ContentDigestIndex.open(folder.getRoot(), 16);
+      try {
+         assertTrue(index.add(100, 1));
+         assertTrue(index.add(100, 1));
+         assertFalse(index.add(100, 2));
+         assertTrue(index.contains(100));
+         assertEquals(1, index.size());
+      } finally {
+         index.close();
+      }
+   }
+
+   @Test
+   public void ownersSurviveAReopen() throws IOException {
+      ContentDigestIndex index = ContentDigestIndex.open(folder.getRoot(), 16);
+      index.add(100, 1);
+      index.add(200, 2);
+      index.add(100, 1);
+      index.close();
+      assertEquals(32, new File(folder.getRoot(), "digests.dat").length());
+
+      index = ContentDigestIndex.open(folder.getRoot(), 16);
+      try {
+         assertEquals(2, index.size());
+         // A recrawl of the same storage folder fetches its pages again
+         assertTrue(index.add(100, 1));
+         assertTrue(index.add(200, 2));
+         assertFalse(index.add(200, 3));
+      } finally {
+         index.close();
+      }
+   }
+
+   @Test
+   public void tornRecordIsTruncated() throws IOException {
+      ContentDigestIndex index = ContentDigestIndex.open(folder.getRoot(), 16);
+      index.add(100, 1);
+      index.close();
+      File file = new File(folder.getRoot(), "digests.dat");
+      try (FileOutputStream out = new FileOutputStream(file, true)) {
+         out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+      }
+
+      index = ContentDigestIndex.open(folder.getRoot(), 16);
+      index.add(200, 2);
+      index.close();
+      assertEquals(32, file.length());
+
+      index = ContentDigestIndex.open(folder.getRoot(), 16);
+      try {
+         assertEquals(2, index.size());
+         assertFalse(index.add(100, 2));
+         assertFalse(index.add(200, 1));
+      } finally {
+         index.close();
+      }
+   }
+}
@@ -0,0 +1,180 @@
+package com.pastya.spider.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FrontierLogTest {
+
+   private static final long SYNC_DELAY = 10;
+
+   @Rule
+   public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+   private static FetchItem item(int i) {
+      return FetchItem.create("http://host" + (i % 7) + ".example.com/page" + i + ".html", 0);
+   }
+
+   /**
+    * Queues the given number of items, then takes and finishes the given number of them.
+    *
+    * @return the ids of the finished items
+    */
+   private static Set<Long> crawl(FetchItemQueue queue, int items, int finished) {
+      for (int i = 0; i < items; i++) {
+         assertTrue(queue.addPageFetchItem(item(i)));
+      }
+      Set<Long> finishedIds = new HashSet<Long>();
+      while (finishedIds.size() < finished) {
+         FetchItem item = queue.getPageFetchItem();
+         assertNotNull(item);
+         queue.finishPageFetchItem(item, true);
+         finishedIds.add(item.getItemId());
+      }
+      return finishedIds;
+   }
+
+   private static void assertResumed(FetchItemQueue queue, int items, Set<Long> finishedIds) {
+      assertEquals(items - finishedIds.size(), queue.getQueueSize());
+      for (int i = 0; i < items; i++) {
+         FetchItem item = item(i);
+         assertTrue(queue.isSeenBefore(item.getItemId()));
+         assertFalse(queue.addPageFetchItem(item));
+      }
+   }
+
+   private static File newestLog(File folder) {
+      List<String> logs = new ArrayList<String>();
+      for (String name : folder.list()) {
+         if (name.startsWith("wal-")) {
+            logs.add(name);
+         }
+      }
+      Collections.sort(logs);
+      return new File(folder, logs.get(logs.size() - 1));
+   }
+
+   private static boolean hasCheckpoint(File folder) {
+      for (String name : folder.list()) {
+         if (name.startsWith("checkpoint-") && !name.endsWith(".tmp")) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   @Test
+   public void resumesTheItemsWhichWereNotFinished() throws IOException {
+      File folder = temporaryFolder.newFolder();
+      FetchItemQueue queue = new FetchItemQueue(4, 0);
+      FrontierLog log = FrontierLog.open(folder, queue, SYNC_DELAY, 1000000);
+      Set<Long> finishedIds = crawl(queue, 20, 8);
+      // Taken but never finished, as if the crawl stopped during its fetch
+      assertNotNull(queue.getPageFetchItem());
+      log.close();
+
+      FetchItemQueue resumed = new FetchItemQueue(4, 0);
+      FrontierLog.open(folder, resumed, SYNC_DELAY, 1000000).close();
+      assertResumed(resumed, 20, finishedIds);
+   }
+
+   @Test
+   public void ignoresARecordTornAtTheEndOfALog() throws IOException {
+      File folder = temporaryFolder.newFolder();
+      FetchItemQueue queue = new FetchItemQueue(4, 0);
+      FrontierLog log = FrontierLog.open(folder, queue, SYNC_DELAY, 1000000);
+      Set<Long> finishedIds = crawl(queue, 10, 4);
+      log.close();
+      // An enqueue record cut off inside its item id
+      try (FileOutputStream out = new FileOutputStream(newestLog(folder), true)) {
+         out.write(new byte[] { 1, 0x12, 0x34 });
+      }
+
+      FetchItemQueue resumed = new FetchItemQueue(4, 0);
+      FrontierLog.open(folder, resumed, SYNC_DELAY, 1000000).close();
+      assertResumed(resumed, 10, finishedIds);
+   }
+
+   @Test
+   public void replaysTheLogsWrittenAfterATornOne() throws IOException {
+      File folder = temporaryFolder.newFolder();
+      FetchItemQueue queue = new FetchItemQueue(4, 0);
+      FrontierLog log = FrontierLog.open(folder, queue, SYNC_DELAY, 1000000);
+      for (int i = 0; i < 10; i++) {
+         queue.addPageFetchItem(item(i));
+      }
+      log.close();
+      // Cut the last enqueue record in the middle of its url
+      File torn = newestLog(folder);
+      try (RandomAccessFile file = new RandomAccessFile(torn, "rw")) {
+         file.setLength(file.length() - 5);
+      }
+
+      FetchItemQueue second = new FetchItemQueue(4, 0);
+      log = FrontierLog.open(folder, second, SYNC_DELAY, 1000000);
+      assertEquals(9, second.getQueueSize());
+      for (int i = 10; i < 15; i++) {
+         second.addPageFetchItem(item(i));
+      }
+      log.close();
+
+      FetchItemQueue third = new FetchItemQueue(4, 0);
+      FrontierLog.open(folder, third, SYNC_DELAY, 1000000).close();
+      assertEquals(14, third.getQueueSize());
+      assertFalse(third.isSeenBefore(item(9).getItemId()));
+      assertTrue(third.isSeenBefore(item(14).getItemId()));
+   }
+
+   @Test
+   public void resumesAcrossCheckpoints() throws Exception {
+      File folder = temporaryFolder.newFolder();
+      FetchItemQueue queue = new FetchItemQueue(4, 0);
+      // A checkpoint every 25 events rotates the log several times
+      FrontierLog log = FrontierLog.open(folder, queue, SYNC_DELAY, 25);
+      Set<Long> finishedIds = crawl(queue, 100, 40);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!hasCheckpoint(folder) && System.currentTimeMillis() < deadline) {
+         Thread.sleep(SYNC_DELAY);
+      }
+      log.close();
+      assertTrue(hasCheckpoint(folder));
+
+      FetchItemQueue resumed = new FetchItemQueue(4, 0);
+      FrontierLog.open(folder, resumed, SYNC_DELAY, 25).close();
+      assertResumed(resumed, 100, finishedIds);
+   }
+
+   @Test
+   public void skipsItemsWhoseUrlDoesNotFitARecord() throws IOException {
+      File folder = temporaryFolder.newFolder();
+      FetchItemQueue queue = new FetchItemQueue(4, 0);
+      FrontierLog log = FrontierLog.open(folder, queue, SYNC_DELAY, 1000000);
+      StringBuilder url = new StringBuilder("http://www.example.com/");
+      while (url.length() <= 65535) {
+         url.append("segment/");
+      }
+      queue.addPageFetchItem(FetchItem.create(url.toString(), 0));
+      queue.addPageFetchItem(item(1));
+      log.close();
+
+      FetchItemQueue resumed = new FetchItemQueue(4, 0);
+      FrontierLog.open(folder, resumed, SYNC_DELAY, 1000000).close();
+      assertEquals(1, resumed.getQueueSize());
+      assertTrue(resumed.isSeenBefore(item(1).getItemId()));
+   }
+}
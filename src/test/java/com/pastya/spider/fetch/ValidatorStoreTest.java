@@ -0,0 +1,105 @@
+package com.pastya.spider.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ValidatorStoreTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void validatorsSurviveAReopen() throws IOException {
+      ValidatorStore store = ValidatorStore.open(folder.getRoot());
+      assertTrue(store.update(1, headers("\"v1\"", "Mon, 02 Oct 2017 10:00:00 GMT"), 11));
+      assertTrue(store.update(2, headers(null, null), 22));
+      assertFalse(store.update(1, headers("\"v1\"", "Mon, 02 Oct 2017 10:00:00 GMT"), 11));
+      store.close();
+
+      store = ValidatorStore.open(folder.getRoot());
+      try {
+         assertEquals(2, store.size());
+         assertEquals("\"v1\"", store.get(1).getEtag());
+         assertEquals("Mon, 02 Oct 2017 10:00:00 GMT", store.get(1).getLastModified());
+         assertEquals(11, store.get(1).getContentHash());
+         assertEquals("", store.get(2).getEtag());
+         assertEquals(22, store.get(2).getContentHash());
+         assertNull(store.get(3));
+      } finally {
+         store.close();
+      }
+   }
+
+   @Test
+   public void recordCutShortByACrashIsTruncated() throws IOException {
+      ValidatorStore store = ValidatorStore.open(folder.getRoot());
+      store.update(1, headers("\"v1\"", null), 11);
+      store.update(2, headers("\"v2\"", null), 22);
+      store.close();
+
+      // The log is written like the snapshot, a crash leaves the log of the run with its last record cut short
+      File snapshot = new File(folder.getRoot(), "validators.dat");
+      File log = new File(folder.getRoot(), "validators.log");
+      byte[] records = Files.readAllBytes(snapshot.toPath());
+      assertTrue(snapshot.delete());
+      try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+         raf.write(records);
+         raf.write(Arrays.copyOf(records, 13));
+      }
+
+      store = ValidatorStore.open(folder.getRoot());
+      assertEquals(2, store.size());
+      assertEquals(records.length, log.length());
+      store.update(3, headers("\"v3\"", null), 33);
+      store.close();
+
+      store = ValidatorStore.open(folder.getRoot());
+      try {
+         assertEquals(3, store.size());
+         assertEquals("\"v2\"", store.get(2).getEtag());
+         assertEquals("\"v3\"", store.get(3).getEtag());
+         assertEquals(33, store.get(3).getContentHash());
+      } finally {
+         store.close();
+      }
+   }
+
+   @Test
+   public void oversizedHeadersAreNotStored() throws IOException {
+      char[] chars = new char[70000];
+      Arrays.fill(chars, 'e');
+      String etag = new String(chars);
+      ValidatorStore store = ValidatorStore.open(folder.getRoot());
+      store.update(1, headers(etag, "Mon, 02 Oct 2017 10:00:00 GMT"), 11);
+      store.update(2, headers("\"v2\"", null), 22);
+      store.close();
+
+      store = ValidatorStore.open(folder.getRoot());
+      try {
+         assertEquals(2, store.size());
+         assertEquals("", store.get(1).getEtag());
+         assertEquals("Mon, 02 Oct 2017 10:00:00 GMT", store.get(1).getLastModified());
+         assertEquals("\"v2\"", store.get(2).getEtag());
+      } finally {
+         store.close();
+      }
+   }
+
+   private static Header[] headers(String etag, String lastModified) {
+      return new Header[] { new BasicHeader("ETag", etag), new BasicHeader("Last-Modified", lastModified) };
+   }
+}
@@ -0,0 +1,103 @@
+package com.pastya.spider.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+   private static long bucketOf(long nanos) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(nanos);
+      return histogram.getPercentile(100);
+   }
+
+   private static void assertUpperBound(long nanos) {
+      long bound = bucketOf(nanos);
+      assertTrue(nanos + " counted in bucket up to " + bound, bound >= nanos && bound - nanos <= nanos / 64);
+   }
+
+   private static void assertPercentile(long expected, long percentile) {
+      assertTrue(expected + " reported as " + percentile, percentile >= expected && percentile - expected <= expected / 64);
+   }
+
+   @Test
+   public void smallValuesHaveABucketEach() {
+      for (long nanos = 0; nanos < 128; nanos++) {
+         assertEquals(nanos, bucketOf(nanos));
+      }
+   }
+
+   @Test
+   public void bucketsAreAtMostOneSixtyFourthWiderThanTheirValues() {
+      for (int bits = 7; bits < 63; bits++) {
+         long power = 1L << bits;
+         assertUpperBound(power - 1);
+         assertUpperBound(power);
+         assertUpperBound(power + 1);
+         assertUpperBound(power + power / 2);
+      }
+      Random random = new Random(42);
+      for (int i = 0; i < 100000; i++) {
+         assertUpperBound((random.nextLong() >>> 1) >>> random.nextInt(63));
+      }
+   }
+
+   @Test
+   public void bucketsEndJustBelowPowersOfTwo() {
+      for (int bits = 7; bits < 63; bits++) {
+         long power = 1L << bits;
+         assertEquals(power - 1, bucketOf(power - 1));
+         assertTrue(bucketOf(power) > power - 1);
+      }
+   }
+
+   @Test
+   public void extremeValues() {
+      assertEquals(Long.MAX_VALUE, bucketOf(Long.MAX_VALUE));
+      assertEquals(0, bucketOf(-5));
+   }
+
+   @Test
+   public void percentilesOfAUniformDistribution() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (long millis = 1; millis <= 1000; millis++) {
+         histogram.record(millis * 1000000);
+      }
+      assertEquals(1000, histogram.getCount());
+      assertPercentile(500000000, histogram.getPercentile(50));
+      assertPercentile(990000000, histogram.getPercentile(99));
+      assertPercentile(1000000000, histogram.getPercentile(100));
+      assertPercentile(1000000, histogram.getPercentile(0));
+   }
+
+   @Test
+   public void emptyHistogramReportsZero() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      assertEquals(0, histogram.getCount());
+      assertEquals(0, histogram.getPercentile(99));
+   }
+
+   @Test
+   public void concurrentRecordingLosesNoCounts() throws InterruptedException {
+      final LatencyHistogram histogram = new LatencyHistogram();
+      Thread[] threads = new Thread[8];
+      for (int t = 0; t < threads.length; t++) {
+         threads[t] = new Thread(new Runnable() {
+            public void run() {
+               for (int i = 0; i < 100000; i++) {
+                  histogram.record(1000 + i % 64);
+               }
+            }
+         });
+         threads[t].start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      assertEquals(800000, histogram.getCount());
+   }
+}
@@ -0,0 +1,105 @@
+package com.pastya.spider.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HtmlLinkExtractorTest {
+
+   private static HtmlLinkExtractor.Result extract(String html) throws IOException {
+      return new HtmlLinkExtractor(1000).extract(new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)), null);
+   }
+
+   private static void assertLink(ExtractedUrlAnchorPair link, String tag, String href, String anchor) {
+      assertEquals(tag, link.getTag());
+      assertEquals(href, link.getHref());
+      assertEquals(anchor, link.getAnchor());
+   }
+
+   @Test
+   public void extractsAnchorsWithTheirText() throws IOException {
+      List<ExtractedUrlAnchorPair> links = extract("<p><A HREF=\"p?a=1&amp;b=2\" class=x>Hello\n   <b>world</b> &amp; more</a> <a href=next>n</a>").getLinks();
+      assertEquals(2, links.size());
+      assertLink(links.get(0), "a", "p?a=1&b=2", "Hello world & more");
+      assertLink(links.get(1), "a", "next", "n");
+   }
+
+   @Test
+   public void extractsLinksOfEmbeddedResources() throws IOException {
+      List<ExtractedUrlAnchorPair> links = extract(
+            "<link rel=stylesheet href=/s.css><script src='a.js'></script><img src=i.png alt='x > y'><area href='m'/><iframe src=\"f.html\"></iframe>")
+                  .getLinks();
+      assertEquals(5, links.size());
+      assertLink(links.get(0), "link", "/s.css", "");
+      assertLink(links.get(1), "script", "a.js", "");
+      assertLink(links.get(2), "img", "i.png", "");
+      assertLink(links.get(3), "area", "m", "");
+      assertLink(links.get(4), "iframe", "f.html", "");
+   }
+
+   @Test
+   public void skipsCommentsScriptsAndStyles() throws IOException {
+      List<ExtractedUrlAnchorPair> links = extract("<!-- <a href='comment'>x</a> --><script>var s = '<a href=\"script\">';</script>"
+            + "<style>a[href='style'] {}</style><a href=kept>kept</a>").getLinks();
+      assertEquals(1, links.size());
+      assertEquals("kept", links.get(0).getHref());
+   }
+
+   @Test
+   public void keepsTheFirstBaseUrl() throws IOException {
+      HtmlLinkExtractor.Result result = extract("<head><base href='http://b.com/x/'><base href='http://c.com/'></head><a href=y>y</a>");
+      assertEquals("http://b.com/x/", result.getBaseUrl());
+      assertNull(extract("<a href=y>y</a>").getBaseUrl());
+   }
+
+   @Test
+   public void closesAnAnchorLeftOpen() throws IOException {
+      List<ExtractedUrlAnchorPair> links = extract("<a href=first>one <a href=second>two 1 < 2").getLinks();
+      assertEquals(2, links.size());
+      assertLink(links.get(0), "a", "first", "one");
+      assertLink(links.get(1), "a", "second", "two 1 < 2");
+   }
+
+   @Test
+   public void decodesValuesInTheGivenCharset() throws IOException {
+      Charset latin1 = Charset.forName("ISO-8859-1");
+      byte[] html = "<a href=\"/caf\u00e9\">caf\u00e9</a>".getBytes(latin1);
+      List<ExtractedUrlAnchorPair> links = new HtmlLinkExtractor(10).extract(new ByteArrayInputStream(html), latin1).getLinks();
+      assertLink(links.get(0), "a", "/caf\u00e9", "caf\u00e9");
+   }
+
+   @Test
+   public void stopsCollectingAtTheLinkCapButReadsThePageToTheEnd() throws IOException {
+      StringBuilder html = new StringBuilder("<html>");
+      for (int i = 0; i < 5000; i++) {
+         html.append("<a href=\"/page").append(i).append("\">page</a>");
+      }
+      ByteArrayInputStream in = new ByteArrayInputStream(html.toString().getBytes(StandardCharsets.UTF_8));
+      List<ExtractedUrlAnchorPair> links = new HtmlLinkExtractor(10).extract(in, null).getLinks();
+      assertEquals(10, links.size());
+      assertEquals("/page9", links.get(9).getHref());
+      assertEquals(0, in.available());
+   }
+
+   @Test
+   public void acceptsOnlyPagesWithSingleByteAscii() {
+      byte[] html = "<html><body>text</body></html>".getBytes(StandardCharsets.UTF_8);
+      assertTrue(HtmlLinkExtractor.canExtract(html, html.length, null));
+      assertTrue(HtmlLinkExtractor.canExtract(html, html.length, StandardCharsets.UTF_8));
+      assertFalse(HtmlLinkExtractor.canExtract(html, html.length, StandardCharsets.UTF_16LE));
+      byte[] utf16 = "<html>".getBytes(StandardCharsets.UTF_16);
+      assertFalse(HtmlLinkExtractor.canExtract(utf16, utf16.length, null));
+      assertFalse(HtmlLinkExtractor.canExtract(new byte[] { 0, '<' }, 2, null));
+      byte[] text = "no markup at all".getBytes(StandardCharsets.UTF_8);
+      assertFalse(HtmlLinkExtractor.canExtract(text, text.length, null));
+   }
+}
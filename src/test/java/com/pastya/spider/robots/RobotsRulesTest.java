@@ -0,0 +1,123 @@
+package com.pastya.spider.robots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RobotsRulesTest {
+
+   private static final String USER_AGENT = "Pastya-Bot/1.0 (+http://www.pastya.com/bot)";
+
+   private static RobotsRules rules(String... lines) {
+      StringBuilder content = new StringBuilder("User-agent: *\n");
+      for (String line : lines) {
+         content.append(line).append('\n');
+      }
+      return RobotsRules.parse(content.toString(), USER_AGENT);
+   }
+
+   @Test
+   public void longestMatchingPatternDecides() {
+      RobotsRules rules = rules("Allow: /p", "Disallow: /");
+      assertTrue(rules.isAllowed("/page"));
+      assertFalse(rules.isAllowed("/other"));
+
+      rules = rules("Disallow: /folder", "Allow: /folder/public");
+      assertFalse(rules.isAllowed("/folder/private"));
+      assertTrue(rules.isAllowed("/folder/public/page.html"));
+   }
+
+   @Test
+   public void allowWinsOverDisallowOfTheSameLength() {
+      RobotsRules rules = rules("Disallow: /folder", "Allow: /folder");
+      assertTrue(rules.isAllowed("/folder/page"));
+   }
+
+   @Test
+   public void wildcardPatternsCountWithTheirFullLength() {
+      RobotsRules rules = rules("Allow: /page", "Disallow: /*.htm");
+      assertFalse(rules.isAllowed("/page.htm"));
+      assertTrue(rules.isAllowed("/page.php"));
+      assertFalse(rules.isAllowed("/a/b/c.htm"));
+   }
+
+   @Test
+   public void dollarAnchorsThePatternAtTheEnd() {
+      RobotsRules rules = rules("Allow: /$", "Disallow: /");
+      assertTrue(rules.isAllowed("/"));
+      assertTrue(rules.isAllowed(""));
+      assertFalse(rules.isAllowed("/page.htm"));
+
+      rules = rules("Disallow: /*.pdf$");
+      assertFalse(rules.isAllowed("/files/report.pdf"));
+      assertTrue(rules.isAllowed("/files/report.pdf?download=1"));
+   }
+
+   @Test
+   public void trailingWildcardIsAPrefixMatch() {
+      RobotsRules rules = rules("Disallow: /private*");
+      assertFalse(rules.isAllowed("/private"));
+      assertFalse(rules.isAllowed("/private/page"));
+      assertTrue(rules.isAllowed("/public"));
+   }
+
+   @Test
+   public void emptyDisallowAllowsEverything() {
+      RobotsRules rules = rules("Disallow:");
+      assertTrue(rules.isAllowed("/anything"));
+   }
+
+   @Test
+   public void groupOfTheUserAgentReplacesTheWildcardGroup() {
+      String content = "User-agent: *\nDisallow: /\n\nUser-agent: pastya-bot\nDisallow: /private\nCrawl-delay: 2.5\n";
+      RobotsRules rules = RobotsRules.parse(content, USER_AGENT);
+      assertTrue(rules.isAllowed("/page"));
+      assertFalse(rules.isAllowed("/private/page"));
+      assertEquals(2500, rules.getCrawlDelayMillis());
+
+      rules = RobotsRules.parse(content, "OtherBot/2.0");
+      assertFalse(rules.isAllowed("/page"));
+      assertEquals(-1, rules.getCrawlDelayMillis());
+   }
+
+   @Test
+   public void consecutiveUserAgentLinesShareTheirRules() {
+      String content = "User-agent: otherbot\nUser-agent: Pastya-Bot\nDisallow: /shared\n\nUser-agent: otherbot\nDisallow: /other\n";
+      RobotsRules rules = RobotsRules.parse(content, USER_AGENT);
+      assertFalse(rules.isAllowed("/shared/page"));
+      assertTrue(rules.isAllowed("/other/page"));
+   }
+
+   @Test
+   public void patternsAreComparedInTheirEscapedForm() {
+      RobotsRules rules = rules("Disallow: /caf\u00e9", "Disallow: /a%2fb");
+      assertFalse(rules.isAllowed("/caf%C3%A9/menu"));
+      assertFalse(rules.isAllowed("/a%2Fb"));
+   }
+
+   @Test
+   public void commentsAndUnknownLinesAreIgnored() {
+      RobotsRules rules = rules("# Disallow: /", "Disallow: /tmp # scratch files", "Noindex: /page");
+      assertFalse(rules.isAllowed("/tmp/file"));
+      assertTrue(rules.isAllowed("/page"));
+   }
+
+   @Test
+   public void sitemapsApplyWhateverTheUserAgent() {
+      String content = "Sitemap: http://www.site.com/sitemap.xml\nUser-agent: otherbot\nDisallow: /\nSitemap: http://www.site.com/news.xml\n";
+      RobotsRules rules = RobotsRules.parse(content, USER_AGENT);
+      assertEquals(Arrays.asList("http://www.site.com/sitemap.xml", "http://www.site.com/news.xml"), rules.getSitemaps());
+      assertTrue(rules.isAllowed("/"));
+   }
+
+   @Test
+   public void predefinedRules() {
+      assertTrue(RobotsRules.ALLOW_ALL.isAllowed("/page"));
+      assertFalse(RobotsRules.DISALLOW_ALL.isAllowed("/page"));
+      assertFalse(RobotsRules.DISALLOW_ALL.isAllowed(""));
+   }
+}
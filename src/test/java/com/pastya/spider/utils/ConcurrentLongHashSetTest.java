@@ -0,0 +1,144 @@
+package com.pastya.spider.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConcurrentLongHashSetTest {
+
+   @Test
+   public void addContainsAndRemove() {
+      ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+      assertTrue(set.add(42));
+      assertFalse(set.add(42));
+      assertTrue(set.contains(42));
+      assertFalse(set.contains(43));
+      assertTrue(set.remove(42));
+      assertFalse(set.remove(42));
+      assertFalse(set.contains(42));
+      assertEquals(0, set.size());
+   }
+
+   @Test
+   public void zeroIsAValueLikeAnyOther() {
+      ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+      assertFalse(set.contains(0));
+      assertTrue(set.add(0));
+      assertFalse(set.add(0));
+      assertTrue(set.contains(0));
+      assertEquals(1, set.size());
+      assertTrue(set.remove(0));
+      assertFalse(set.contains(0));
+      assertEquals(0, set.size());
+   }
+
+   @Test
+   public void growsBeyondTheExpectedSize() {
+      ConcurrentLongHashSet set = new ConcurrentLongHashSet(16);
+      for (long i = 1; i <= 200000; i++) {
+         assertTrue(set.add(i * 31));
+      }
+      assertEquals(200000, set.size());
+      for (long i = 1; i <= 200000; i++) {
+         assertTrue(set.contains(i * 31));
+         assertFalse(set.contains(i * 31 + 1));
+      }
+   }
+
+   @Test
+   public void removalKeepsTheProbeRunsIntact() {
+      // Sequential values in a small set give long probe runs, removing every other value shifts the rest back
+      ConcurrentLongHashSet set = new ConcurrentLongHashSet(16);
+      for (long i = 1; i <= 50000; i++) {
+         set.add(i);
+      }
+      for (long i = 2; i <= 50000; i += 2) {
+         assertTrue(set.remove(i));
+      }
+      assertEquals(25000, set.size());
+      for (long i = 1; i <= 50000; i++) {
+         assertEquals(i % 2 == 1, set.contains(i));
+      }
+      for (long i = 2; i <= 50000; i += 2) {
+         assertTrue(set.add(i));
+      }
+      assertEquals(50000, set.size());
+   }
+
+   @Test
+   public void forEachVisitsEveryValue() {
+      ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+      for (long i = 0; i < 1000; i++) {
+         set.add(i);
+      }
+      final long[] sum = new long[1];
+      final int[] count = new int[1];
+      set.forEach(new ConcurrentLongHashSet.LongVisitor() {
+         public void visit(long value) {
+            sum[0] += value;
+            count[0]++;
+         }
+      });
+      assertEquals(1000, count[0]);
+      assertEquals(999 * 1000 / 2, sum[0]);
+   }
+
+   @Test
+   public void clearRemovesEverything() {
+      ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+      for (long i = 0; i < 1000; i++) {
+         set.add(i);
+      }
+      set.clear();
+      assertEquals(0, set.size());
+      assertFalse(set.contains(0));
+      assertFalse(set.contains(500));
+   }
+
+   @Test
+   public void concurrentAddsAcceptEachValueOnce() throws Exception {
+      final ConcurrentLongHashSet set = new ConcurrentLongHashSet(16);
+      final int threads = 8;
+      final int values = 100000;
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+         for (int t = 0; t < threads; t++) {
+            final int offset = t * values / 2;
+            // Each range overlaps half of the next one
+            results.add(executor.submit(new Callable<Integer>() {
+               public Integer call() {
+                  int added = 0;
+                  for (long i = offset; i < offset + values; i++) {
+                     if (set.add(i)) {
+                        added++;
+                     }
+                  }
+                  return added;
+               }
+            }));
+         }
+         int added = 0;
+         for (Future<Integer> result : results) {
+            added += result.get();
+         }
+         long distinct = (threads + 1) * (long) values / 2;
+         assertEquals(distinct, added);
+         assertEquals(distinct, set.size());
+         for (long i = 0; i < distinct; i++) {
+            assertTrue(set.contains(i));
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+}
@@ -0,0 +1,45 @@
+package com.pastya.spider.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConcurrentLongLongHashMapTest {
+
+   @Test
+   public void putIfAbsentKeepsTheFirstValue() {
+      ConcurrentLongLongHashMap map = new ConcurrentLongLongHashMap();
+      assertTrue(map.putIfAbsent(42, 1));
+      assertFalse(map.putIfAbsent(42, 2));
+      assertEquals(1, map.get(42, -1));
+      assertEquals(-1, map.get(43, -1));
+      assertTrue(map.containsKey(42));
+      assertFalse(map.containsKey(43));
+      assertEquals(1, map.size());
+   }
+
+   @Test
+   public void zeroIsAKeyLikeAnyOther() {
+      ConcurrentLongLongHashMap map = new ConcurrentLongLongHashMap();
+      assertFalse(map.containsKey(0));
+      assertTrue(map.putIfAbsent(0, 7));
+      assertFalse(map.putIfAbsent(0, 8));
+      assertEquals(7, map.get(0, -1));
+      assertEquals(1, map.size());
+   }
+
+   @Test
+   public void growsBeyondTheExpectedSize() {
+      ConcurrentLongLongHashMap map = new ConcurrentLongLongHashMap(16);
+      for (long i = 1; i <= 200000; i++) {
+         assertTrue(map.putIfAbsent(i * 31, i));
+      }
+      assertEquals(200000, map.size());
+      for (long i = 1; i <= 200000; i++) {
+         assertEquals(i, map.get(i * 31, -1));
+         assertFalse(map.containsKey(i * 31 + 1));
+      }
+   }
+}
@@ -0,0 +1,103 @@
+package com.pastya.spider.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class LongBloomFilterTest {
+
+   @Test
+   public void neverMissesAnAddedValue() {
+      LongBloomFilter filter = new LongBloomFilter(100000, 0.01);
+      for (long i = 0; i < 100000; i++) {
+         filter.add(i * 7919);
+      }
+      for (long i = 0; i < 100000; i++) {
+         assertTrue(filter.contains(i * 7919));
+      }
+   }
+
+   @Test
+   public void falsePositiveRateStaysNearTheConfiguredOne() {
+      LongBloomFilter filter = new LongBloomFilter(100000, 0.01);
+      for (long i = 0; i < 100000; i++) {
+         filter.add(i);
+      }
+      int falsePositives = 0;
+      for (long i = 1000000; i < 1100000; i++) {
+         if (filter.contains(i)) {
+            falsePositives++;
+         }
+      }
+      assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+   }
+
+   @Test
+   public void addReportsWhetherTheValueWasNew() {
+      LongBloomFilter filter = new LongBloomFilter(1000, 0.01);
+      assertTrue(filter.add(42));
+      assertFalse(filter.add(42));
+      assertEquals(1, filter.size());
+   }
+
+   @Test
+   public void clearForgetsEverything() {
+      LongBloomFilter filter = new LongBloomFilter(1000, 0.01);
+      for (long i = 0; i < 1000; i++) {
+         filter.add(i);
+      }
+      filter.clear();
+      assertEquals(0, filter.size());
+      for (long i = 0; i < 1000; i++) {
+         assertFalse(filter.contains(i));
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsAFalsePositiveRateOfOne() {
+      new LongBloomFilter(1000, 1.0);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsNoExpectedInsertions() {
+      new LongBloomFilter(0, 0.01);
+   }
+
+   @Test
+   public void concurrentAddsSharingWordsLoseNoBits() throws Exception {
+      // A small filter makes threads set bits in the same words at once
+      final LongBloomFilter filter = new LongBloomFilter(10000, 0.1);
+      final int threads = 8;
+      final int values = 10000;
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<?>> results = new ArrayList<Future<?>>();
+         for (int t = 0; t < threads; t++) {
+            final long offset = (long) t * values;
+            results.add(executor.submit(new Runnable() {
+               public void run() {
+                  for (long i = offset; i < offset + values; i++) {
+                     filter.add(i);
+                  }
+               }
+            }));
+         }
+         for (Future<?> result : results) {
+            result.get();
+         }
+         for (long i = 0; i < (long) threads * values; i++) {
+            assertTrue(filter.contains(i));
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+}
@@ -0,0 +1,88 @@
+package com.pastya.spider.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class UrlHelperTest {
+
+   private static final String BASE = "http://a/b/c/d;p?q";
+
+   @Test
+   public void resolvesRelativeReferences() {
+      // Normal examples of RFC 3986 section 5.4.1
+      assertEquals("http://a/b/c/g", UrlHelper.canonicalize("g", BASE));
+      assertEquals("http://a/b/c/g", UrlHelper.canonicalize("./g", BASE));
+      assertEquals("http://a/b/c/g/", UrlHelper.canonicalize("g/", BASE));
+      assertEquals("http://a/g", UrlHelper.canonicalize("/g", BASE));
+      assertEquals("http://g/", UrlHelper.canonicalize("//g", BASE));
+      assertEquals("http://a/b/c/d;p?y", UrlHelper.canonicalize("?y", BASE));
+      assertEquals("http://a/b/c/g?y", UrlHelper.canonicalize("g?y", BASE));
+      assertEquals("http://a/b/c/g", UrlHelper.canonicalize("g#s", BASE));
+      assertEquals("http://a/b/c/d;p?q", UrlHelper.canonicalize("", BASE));
+      assertEquals("http://a/b/c/", UrlHelper.canonicalize(".", BASE));
+      assertEquals("http://a/b/", UrlHelper.canonicalize("..", BASE));
+      assertEquals("http://a/b/g", UrlHelper.canonicalize("../g", BASE));
+      assertEquals("http://a/", UrlHelper.canonicalize("../..", BASE));
+      assertEquals("http://a/g", UrlHelper.canonicalize("../../g", BASE));
+   }
+
+   @Test
+   public void dotSegmentsNeverClimbAboveTheRoot() {
+      assertEquals("http://a/g", UrlHelper.canonicalize("../../../g", BASE));
+      assertEquals("http://a/g", UrlHelper.canonicalize("/./g", BASE));
+      assertEquals("http://a/g", UrlHelper.canonicalize("/../g", BASE));
+   }
+
+   @Test
+   public void normalizesSchemeHostAndPort() {
+      assertEquals("http://www.example.com/", UrlHelper.canonicalize("HTTP://WWW.Example.COM", null));
+      assertEquals("http://www.example.com/a", UrlHelper.canonicalize("http://www.example.com:80/a", null));
+      assertEquals("https://www.example.com/a", UrlHelper.canonicalize("https://www.example.com:443/a", null));
+      assertEquals("http://www.example.com:8080/a", UrlHelper.canonicalize("http://www.example.com:8080/a", null));
+      assertEquals("http://www.example.com/", UrlHelper.canonicalize("http://www.example.com./", null));
+   }
+
+   @Test
+   public void normalizesEscapes() {
+      // Unreserved characters are decoded, other escapes uppercased, unsafe characters escaped as UTF-8
+      assertEquals("http://a/~user/a%2Fb", UrlHelper.canonicalize("http://a/%7Euser/a%2fb", null));
+      assertEquals("http://a/a%20b", UrlHelper.canonicalize("http://a/a b", null));
+      assertEquals("http://a/caf%C3%A9", UrlHelper.canonicalize("http://a/caf\u00e9", null));
+   }
+
+   @Test
+   public void dropsFragmentEmptyQueryAndSurroundingWhitespace() {
+      assertEquals("http://a/b", UrlHelper.canonicalize("  http://a/b?#top \n", null));
+      assertEquals("http://a/b?c=d", UrlHelper.canonicalize("http://a/b?c=d#e", null));
+   }
+
+   @Test
+   public void rejectsWhatCannotBeCrawled() {
+      assertNull(UrlHelper.canonicalize("mailto:someone@example.com", BASE));
+      assertNull(UrlHelper.canonicalize("javascript:void(0)", BASE));
+      assertNull(UrlHelper.canonicalize("ftp://a/file", null));
+      assertNull(UrlHelper.canonicalize("relative/page.html", null));
+      assertNull(UrlHelper.canonicalize("http://a:99999/", null));
+      assertNull(UrlHelper.canonicalize("http:///path", null));
+   }
+
+   @Test
+   public void fingerprintIsStableAndTellsUrlsApart() {
+      String url = "http://www.example.com/page.html";
+      assertEquals(UrlHelper.fingerprint(url), UrlHelper.fingerprint(new StringBuilder(url)));
+      assertNotEquals(UrlHelper.fingerprint(url), UrlHelper.fingerprint(url + "?"));
+      assertNotEquals(UrlHelper.fingerprint("http://a/\u0101"), UrlHelper.fingerprint("http://a/\u0001"));
+      // Persisted by the frontier log and the overflow, a change of the hash would orphan their records
+      assertEquals(6501964694956621101L, UrlHelper.fingerprint("http://www.example.com/"));
+   }
+
+   @Test
+   public void equivalentLinksShareTheirFingerprint() {
+      long expected = UrlHelper.fingerprint(UrlHelper.canonicalize("http://www.example.com/a/b.html", null));
+      assertEquals(expected, UrlHelper.fingerprint(UrlHelper.canonicalize("HTTP://www.EXAMPLE.com:80/a/./c/../b.html#part", null)));
+      assertEquals(expected, UrlHelper.fingerprint(UrlHelper.canonicalize("b.html", "http://www.example.com/a/index.html")));
+   }
+}